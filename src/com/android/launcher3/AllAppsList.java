@@ -115,13 +115,10 @@ public class AllAppsList {
     }
 
     /**
-     * Add the icons for the supplied apk called packageName.
+     * Add the icons for the supplied launcher activities of a package.
      */
-    public void addPackage(Context context, String packageName, UserHandleCompat user) {
-        final LauncherAppsCompat launcherApps = LauncherAppsCompat.getInstance(context);
-        final List<LauncherActivityInfoCompat> matches = launcherApps.getActivityList(packageName,
-                user);
-
+    public void addPackage(Context context, List<LauncherActivityInfoCompat> matches,
+            UserHandleCompat user) {
         for (LauncherActivityInfoCompat info : matches) {
             add(new AppInfo(context, info, user, mIconCache));
         }
@@ -174,11 +171,10 @@ public class AllAppsList {
 
     /**
      * Add and remove icons for this package which has been updated.
+     * @param matches the current launcher activities of the package
      */
-    public void updatePackage(Context context, String packageName, UserHandleCompat user) {
-        final LauncherAppsCompat launcherApps = LauncherAppsCompat.getInstance(context);
-        final List<LauncherActivityInfoCompat> matches = launcherApps.getActivityList(packageName,
-                user);
+    public void updatePackage(Context context, String packageName,
+            List<LauncherActivityInfoCompat> matches, UserHandleCompat user) {
         if (LauncherLog.DEBUG) {
             LauncherLog.d(TAG, "updatePackage: packageName = " + packageName
                 + ", matches = " + matches.size());
@@ -54,6 +54,18 @@ public class AppInfo extends ItemInfo {
 
     public ComponentName componentName;
 
+    /**
+     * Additional words matched by search, see {@link IconCache#getTitleAndIcon}.
+     */
+    public String searchKeys;
+
+    /**
+     * The section of the title in all apps, and its collation key used to sort the apps. Both are
+     * null when not computed by the icon cache.
+     */
+    public String sectionName;
+    public byte[] sortKey;
+
     static final int DOWNLOADED_FLAG = 1;
     static final int UPDATED_SYSTEM_APP_FLAG = 2;
 
@@ -119,6 +131,9 @@ public class AppInfo extends ItemInfo {
         super(info);
         componentName = info.componentName;
         title = Utilities.trim(info.title);
+        searchKeys = info.searchKeys;
+        sectionName = info.sectionName;
+        sortKey = info.sortKey;
         intent = new Intent(info.intent);
         flags = info.flags;
         isDisabled = info.isDisabled;
@@ -20,40 +20,69 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.os.MessageQueue;
+import android.os.SystemClock;
+import android.view.Choreographer;
 
+import com.android.launcher3.util.LatencyStats;
 import com.android.launcher3.util.Thunk;
 
-import java.util.LinkedList;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
 
 /**
- * Queue of things to run on a looper thread.  Items posted with {@link #post} will not
- * be actually enqued on the handler until after the last one has run, to keep from
- * starving the thread.
+ * Queue of things to run on a looper thread.  Items posted with {@link #post} are run in
+ * batches once per frame, from a {@link Choreographer} frame callback, for as long as they fit
+ * in {@link #FRAME_BUDGET_MS}, so that the rest of the frame can still be drawn on time.
  *
  * This class is fifo.
  */
 public class DeferredHandler {
-    @Thunk LinkedList<Runnable> mQueue = new LinkedList<>();
+
+    // Time spent running the queued items in each frame, at least one item runs per frame.
+    private static final long FRAME_BUDGET_MS = 8;
+    // Delay after which the items are run even if no frame came, e.g. when the screen is off.
+    private static final long FRAME_TIMEOUT_MS = 32;
+
+    private static final int MSG_RUN = 1;
+
+    @Thunk final ArrayDeque<Runnable> mQueue = new ArrayDeque<>();
     private MessageQueue mMessageQueue = Looper.myQueue();
+    private final Choreographer mChoreographer = Choreographer.getInstance();
     private Impl mHandler = new Impl();
+    // Whether a frame callback, a timeout message or an idle handler will run the next items.
+    // Guarded by mQueue.
+    private boolean mScheduled;
 
-    @Thunk class Impl extends Handler implements MessageQueue.IdleHandler {
+    // Number of items run in each frame, and the time it took
+    private final LatencyStats mItemsPerFrame = new LatencyStats("Deferred items per frame", 100,
+            " items");
+    private final LatencyStats mTimePerFrame = new LatencyStats("Deferred time per frame", 100);
+
+    @Thunk class Impl extends Handler implements MessageQueue.IdleHandler,
+            Choreographer.FrameCallback {
         public void handleMessage(Message msg) {
+            mChoreographer.removeFrameCallback(this);
+            runBatch();
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            removeMessages(MSG_RUN);
+            runBatch();
+        }
+
+        public boolean queueIdle() {
             Runnable r;
             synchronized (mQueue) {
-                if (mQueue.size() == 0) {
-                    return;
-                }
-                r = mQueue.removeFirst();
+                mScheduled = false;
+                r = mQueue.pollFirst();
+            }
+            if (r != null) {
+                r.run();
             }
-            r.run();
             synchronized (mQueue) {
                 scheduleNextLocked();
             }
-        }
-
-        public boolean queueIdle() {
-            handleMessage(null);
             return false;
         }
     }
@@ -77,9 +106,15 @@ public class DeferredHandler {
     public void post(Runnable runnable) {
         synchronized (mQueue) {
             mQueue.add(runnable);
-            if (mQueue.size() == 1) {
-                scheduleNextLocked();
-            }
+            scheduleNextLocked();
+        }
+    }
+
+    /** Schedule runnable to run before everything that's on the queue right now. */
+    public void postAtFrontOfQueue(Runnable runnable) {
+        synchronized (mQueue) {
+            mQueue.addFirst(runnable);
+            scheduleNextLocked();
         }
     }
 
@@ -94,27 +129,72 @@ public class DeferredHandler {
         }
     }
 
-    /** Runs all queued Runnables from the calling thread. */
+    /**
+     * Runs all queued Runnables from the calling thread, including the ones queued while they
+     * run, such as the next chunks of a bind.
+     */
     public void flush() {
-        LinkedList<Runnable> queue = new LinkedList<>();
+        while (true) {
+            Runnable r;
+            synchronized (mQueue) {
+                r = mQueue.pollFirst();
+            }
+            if (r == null) {
+                break;
+            }
+            r.run();
+        }
+    }
+
+    /**
+     * Runs the queued items until the frame budget is used, or until an idle item is next.
+     */
+    @Thunk void runBatch() {
         synchronized (mQueue) {
-            queue.addAll(mQueue);
-            mQueue.clear();
+            mScheduled = false;
         }
-        for (Runnable r : queue) {
+        long start = SystemClock.uptimeMillis();
+        int count = 0;
+        while (true) {
+            Runnable r;
+            synchronized (mQueue) {
+                r = mQueue.peekFirst();
+                if (r == null || r instanceof IdleRunnable
+                        || (count > 0 && SystemClock.uptimeMillis() - start >= FRAME_BUDGET_MS)) {
+                    break;
+                }
+                mQueue.removeFirst();
+            }
             r.run();
+            count++;
+        }
+        if (count > 0) {
+            mItemsPerFrame.add(count);
+            mTimePerFrame.add(SystemClock.uptimeMillis() - start);
+        }
+        synchronized (mQueue) {
+            scheduleNextLocked();
         }
     }
 
     void scheduleNextLocked() {
-        if (mQueue.size() > 0) {
+        if (mQueue.size() > 0 && !mScheduled) {
+            mScheduled = true;
             Runnable peek = mQueue.getFirst();
             if (peek instanceof IdleRunnable) {
                 mMessageQueue.addIdleHandler(mHandler);
             } else {
-                mHandler.sendEmptyMessage(1);
+                mChoreographer.postFrameCallback(mHandler);
+                mHandler.sendEmptyMessageDelayed(MSG_RUN, FRAME_TIMEOUT_MS);
             }
         }
     }
-}
 
+    /**
+     * Prints the number of items run in each frame, and the time it took.
+     */
+    public void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + mItemsPerFrame);
+        writer.println(prefix + mTimePerFrame);
+    }
+}
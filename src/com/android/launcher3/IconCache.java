@@ -16,6 +16,7 @@
 
 package com.android.launcher3;
 
+import android.app.ActivityManager;
 import android.content.ComponentName;
 import android.content.ContentValues;
 import android.content.Context;
@@ -41,21 +42,30 @@ import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.android.launcher3.compat.AlphabeticIndexCompat;
 import com.android.launcher3.compat.LauncherActivityInfoCompat;
 import com.android.launcher3.compat.LauncherAppsCompat;
+import com.android.launcher3.compat.TransliteratorCompat;
 import com.android.launcher3.compat.UserHandleCompat;
 import com.android.launcher3.compat.UserManagerCompat;
 import com.android.launcher3.config.FeatureFlags;
+import com.android.launcher3.model.AppNameComparator;
 import com.android.launcher3.model.PackageItemInfo;
 import com.android.launcher3.util.ComponentKey;
+import com.android.launcher3.util.IconAtlas;
 import com.android.launcher3.util.SQLiteCacheHelper;
 import com.android.launcher3.util.Thunk;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
 
@@ -70,6 +80,10 @@ public class IconCache {
 
     private static final int INITIAL_ICON_CACHE_CAPACITY = 50;
 
+    // Fraction of the app memory class used as the budget for the in-memory icons.
+    private static final int MEMORY_CACHE_FRACTION = 8;
+    private static final int MEMORY_CACHE_FRACTION_LOW_RAM = 16;
+
     // Empty class name is used for storing package default entry.
     private static final String EMPTY_CLASS_NAME = ".";
 
@@ -77,6 +91,26 @@ public class IconCache {
 
     private static final int LOW_RES_SCALE_FACTOR = 5;
 
+    // Number of apps rendered and written together by a ShardedIconUpdateTask.
+    private static final int ICON_UPDATE_SHARD_SIZE = 16;
+    // Maximum number of shards being rendered on the thread pool at the same time.
+    private static final int ICON_UPDATE_MAX_PARALLEL_SHARDS = 2;
+
+    // Number of locks used to serialize the loading of individual entries.
+    private static final int ENTRY_LOCK_STRIPES = 16;
+
+    // Maximum number of keys in a single preload query. This keeps the number of bound arguments
+    // well below the SQLite limit of 999.
+    private static final int PRELOAD_BATCH_SIZE = 500;
+
+    // Icon DB writes are executed in batches of up to this many rows, or after this delay.
+    private static final int DB_WRITE_BATCH_SIZE = 32;
+    private static final long DB_WRITE_BATCH_LATENCY_MS = 500;
+
+    // Above this many changed packages, the icon DB is reconciled with a full scan instead of
+    // one range query per package.
+    private static final int MAX_PARTIAL_RECONCILE_PACKAGES = 100;
+
     @Thunk static final Object ICON_UPDATE_TOKEN = new Object();
 
     @Thunk static class CacheEntry {
@@ -84,19 +118,34 @@ public class IconCache {
         public CharSequence title = "";
         public CharSequence contentDescription = "";
         public boolean isLowResIcon;
+
+        // Keys derived from the title, see ensureTitleKeys(). Replaced as a whole, so that readers
+        // never see keys of different titles or locales.
+        public volatile TitleKeys titleKeys;
+
+        // Number of bytes accounted for this entry in the memory cache.
+        int byteCount;
     }
 
     private final HashMap<UserHandleCompat, Bitmap> mDefaultIcons = new HashMap<>();
+
+    // Locks guarding the loading of component and package entries. An entry is only loaded
+    // while holding the lock of its stripe, so that two threads never load the same icon, while
+    // different icons can be loaded in parallel. Component entries may load the package entry
+    // while holding their lock, but never the other way round.
+    private final Object[] mComponentLocks = newLocks(ENTRY_LOCK_STRIPES);
+    private final Object[] mPackageLocks = newLocks(ENTRY_LOCK_STRIPES);
     @Thunk final MainThreadExecutor mMainThreadExecutor = new MainThreadExecutor();
 
     private final Context mContext;
     private final PackageManager mPackageManager;
     @Thunk final UserManagerCompat mUserManager;
     private final LauncherAppsCompat mLauncherApps;
-    private final HashMap<ComponentKey, CacheEntry> mCache =
-            new HashMap<ComponentKey, CacheEntry>(INITIAL_ICON_CACHE_CAPACITY);
+    private final MemoryCache mCache;
     private final int mIconDpi;
     @Thunk final IconDB mIconDb;
+    // Raw storage for the high-res icons, or null if they are stored as PNG in the DB.
+    private final IconAtlas mIconAtlas;
 
     @Thunk final Handler mWorkerHandler;
 
@@ -107,12 +156,18 @@ public class IconCache {
     // The background color used for package icons. These are displayed in widget tray, which
     // has a dark quantum panel background.
     private final int mPackageBgColor;
-    private final BitmapFactory.Options mLowResOptions;
 
-    private String mSystemState;
-    private Bitmap mLowResBitmap;
-    private Canvas mLowResCanvas;
-    private Paint mLowResPaint;
+    @Thunk String mSystemState;
+    private final LowResIconRenderer mLowResRenderer = new LowResIconRenderer();
+    // Cheap to create, the system transliterator is only loaded when the keys are first computed.
+    private final TransliteratorCompat mTransliterator = new TransliteratorCompat();
+    // Recreated whenever mSystemState changes, see updateSystemStateString()
+    private volatile TitleKeyHelpers mTitleKeyHelpers;
+
+    // Incremented every time the icon DB update is restarted, so that shards which are still
+    // being rendered on the thread pool can detect that they are stale.
+    @Thunk volatile int mIconUpdateGeneration;
+    private volatile UpdateStats mLastUpdateStats;
 
     public IconCache(Context context, InvariantDeviceProfile inv) {
         mContext = context;
@@ -125,16 +180,43 @@ public class IconCache {
             LauncherLog.d(TAG, "IconCache, mIconDpi = " + mIconDpi);
         }
         mIconDb = new IconDB(context, inv.iconBitmapSize);
+        mIconAtlas = FeatureFlags.LAUNCHER3_ICON_ATLAS
+                ? new IconAtlas(context.getDatabasePath(LauncherFiles.APP_ICONS_ATLAS),
+                        inv.iconBitmapSize)
+                : null;
 
         mWorkerHandler = new Handler(LauncherModel.getWorkerLooper());
+        mIconDb.enableWriteBatching(mWorkerHandler, DB_WRITE_BATCH_SIZE,
+                DB_WRITE_BATCH_LATENCY_MS);
 
         mActivityBgColor = context.getResources().getColor(R.color.quantum_panel_bg_color);
         mPackageBgColor = context.getResources().getColor(R.color.quantum_panel_bg_color_dark);
-        mLowResOptions = new BitmapFactory.Options();
+        updateSystemStateString();
+
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        boolean isLowRam = Utilities.ATLEAST_KITKAT && am.isLowRamDevice();
+        mCache = new MemoryCache(am.getMemoryClass() * 1024L * 1024L
+                / (isLowRam ? MEMORY_CACHE_FRACTION_LOW_RAM : MEMORY_CACHE_FRACTION));
+    }
+
+    private static Object[] newLocks(int count) {
+        Object[] locks = new Object[count];
+        for (int i = 0; i < count; i++) {
+            locks[i] = new Object();
+        }
+        return locks;
+    }
+
+    private static Object getLock(Object[] locks, ComponentKey key) {
+        return locks[(key.hashCode() & Integer.MAX_VALUE) % locks.length];
+    }
+
+    private static BitmapFactory.Options newLowResOptions() {
+        BitmapFactory.Options options = new BitmapFactory.Options();
         // Always prefer RGB_565 config for low res. If the bitmap has transparency, it will
         // automatically be loaded as ALPHA_8888.
-        mLowResOptions.inPreferredConfig = Bitmap.Config.RGB_565;
-        updateSystemStateString();
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        return options;
     }
 
     private Drawable getFullResDefaultActivityIcon() {
@@ -193,37 +275,25 @@ public class IconCache {
     /**
      * Remove any records for the supplied ComponentName.
      */
-    public synchronized void remove(ComponentName componentName, UserHandleCompat user) {
+    public void remove(ComponentName componentName, UserHandleCompat user) {
         mCache.remove(new ComponentKey(componentName, user));
     }
 
-    /**
-     * Remove any records for the supplied package name from memory.
-     */
-    private void removeFromMemCacheLocked(String packageName, UserHandleCompat user) {
-        HashSet<ComponentKey> forDeletion = new HashSet<ComponentKey>();
-        for (ComponentKey key: mCache.keySet()) {
-            if (key.componentName.getPackageName().equals(packageName)
-                    && key.user.equals(user)) {
-                forDeletion.add(key);
-            }
-        }
-        for (ComponentKey condemned: forDeletion) {
-            mCache.remove(condemned);
-        }
-    }
-
     /**
      * Updates the entries related to the given package in memory and persistent DB.
+     * @param apps the current launcher activities of the package
      */
-    public synchronized void updateIconsForPkg(String packageName, UserHandleCompat user) {
+    public void updateIconsForPkg(String packageName, UserHandleCompat user,
+            List<LauncherActivityInfoCompat> apps) {
         removeIconsForPkg(packageName, user);
         try {
             PackageInfo info = mPackageManager.getPackageInfo(packageName,
                     PackageManager.GET_UNINSTALLED_PACKAGES);
             long userSerial = mUserManager.getSerialNumberForUser(user);
-            for (LauncherActivityInfoCompat app : mLauncherApps.getActivityList(packageName, user)) {
-                addIconToDBAndMemCache(app, info, userSerial);
+            for (LauncherActivityInfoCompat app : apps) {
+                // The entries of the package are not reused: they are removed without holding
+                // their locks, so a concurrent lookup may have loaded them again from the old row.
+                addIconToDBAndMemCache(app, info, true, userSerial);
             }
         } catch (NameNotFoundException e) {
             Log.d(TAG, "Package not found", e);
@@ -234,9 +304,12 @@ public class IconCache {
     /**
      * Removes the entries related to the given package in memory and persistent DB.
      */
-    public synchronized void removeIconsForPkg(String packageName, UserHandleCompat user) {
-        removeFromMemCacheLocked(packageName, user);
+    public void removeIconsForPkg(String packageName, UserHandleCompat user) {
+        mCache.removePackage(packageName, user);
         long userSerial = mUserManager.getSerialNumberForUser(user);
+        if (mIconAtlas != null) {
+            mIconAtlas.release(packageName + "/", "#" + userSerial);
+        }
         mIconDb.delete(
                 IconDB.COLUMN_COMPONENT + " LIKE ? AND " + IconDB.COLUMN_USER + " = ?",
                 new String[]{packageName + "/%", Long.toString(userSerial)});
@@ -245,6 +318,7 @@ public class IconCache {
     public void updateDbIcons(Set<String> ignorePackagesForMainUser) {
         // Remove all active icon update tasks.
         mWorkerHandler.removeCallbacksAndMessages(ICON_UPDATE_TOKEN);
+        mIconUpdateGeneration++;
 
         updateSystemStateString();
         for (UserHandleCompat user : mUserManager.getUserProfiles()) {
@@ -277,22 +351,66 @@ public class IconCache {
             pkgInfoMap.put(info.packageName, info);
         }
 
+        // Compare the packages against the last complete reconciliation, so that only the rows
+        // of the packages which changed since then need to be checked.
+        final HashMap<String, String> fingerprints = getPackageFingerprints(pkgInfoMap, apps);
+        HashMap<String, String> reconciled = mIconDb.getReconciledFingerprints(userSerial);
+        if (fingerprints.get(IconDB.USER_FINGERPRINT_KEY).equals(
+                reconciled.get(IconDB.USER_FINGERPRINT_KEY))) {
+            if (DEBUG) Log.d(TAG, "Icon DB is up to date for user " + userSerial);
+            return;
+        }
+        HashSet<String> changedPackages = new HashSet<>();
+        for (Map.Entry<String, String> e : fingerprints.entrySet()) {
+            if (!e.getValue().equals(reconciled.get(e.getKey()))) {
+                changedPackages.add(e.getKey());
+            }
+        }
+        for (String packageName : reconciled.keySet()) {
+            if (!fingerprints.containsKey(packageName)) {
+                changedPackages.add(packageName);
+            }
+        }
+        changedPackages.remove(IconDB.USER_FINGERPRINT_KEY);
+        boolean fullScan = reconciled.isEmpty()
+                || changedPackages.size() > MAX_PARTIAL_RECONCILE_PACKAGES;
+        if (DEBUG) Log.d(TAG, "Reconciling icon DB for user " + userSerial + ", "
+                + (fullScan ? "full scan" : changedPackages.size() + " changed packages"));
+
         HashMap<ComponentName, LauncherActivityInfoCompat> componentMap = new HashMap<>();
         for (LauncherActivityInfoCompat app : apps) {
-            componentMap.put(app.getComponentName(), app);
+            if (fullScan || changedPackages.contains(app.getComponentName().getPackageName())) {
+                componentMap.put(app.getComponentName(), app);
+            }
         }
 
         HashSet<Integer> itemsToRemove = new HashSet<Integer>();
+        ArrayList<String> atlasKeysToRelease = new ArrayList<>();
         Stack<LauncherActivityInfoCompat> appsToUpdate = new Stack<>();
 
+        StringBuilder selection = new StringBuilder(IconDB.COLUMN_USER + " = ?");
+        ArrayList<String> selectionArgs = new ArrayList<>();
+        selectionArgs.add(Long.toString(userSerial));
+        if (!fullScan) {
+            // Components of a package sort between "package/" and "package0", as '0' follows '/'.
+            selection.append(" AND (0");
+            for (String packageName : changedPackages) {
+                selection.append(" OR (" + IconDB.COLUMN_COMPONENT + " >= ? AND "
+                        + IconDB.COLUMN_COMPONENT + " < ?)");
+                selectionArgs.add(packageName + "/");
+                selectionArgs.add(packageName + "0");
+            }
+            selection.append(")");
+        }
+
         Cursor c = null;
         try {
             c = mIconDb.query(
                     new String[]{IconDB.COLUMN_ROWID, IconDB.COLUMN_COMPONENT,
                             IconDB.COLUMN_LAST_UPDATED, IconDB.COLUMN_VERSION,
                             IconDB.COLUMN_SYSTEM_STATE},
-                    IconDB.COLUMN_USER + " = ? ",
-                    new String[]{Long.toString(userSerial)});
+                    selection.toString(),
+                    selectionArgs.toArray(new String[selectionArgs.size()]));
 
             final int indexComponent = c.getColumnIndex(IconDB.COLUMN_COMPONENT);
             final int indexLastUpdate = c.getColumnIndex(IconDB.COLUMN_LAST_UPDATED);
@@ -308,6 +426,7 @@ public class IconCache {
                     if (!ignorePackages.contains(component.getPackageName())) {
                         remove(component, user);
                         itemsToRemove.add(c.getInt(rowIndex));
+                        atlasKeysToRelease.add(getAtlasKey(cn, userSerial));
                     }
                     continue;
                 }
@@ -326,6 +445,7 @@ public class IconCache {
                 if (app == null) {
                     remove(component, user);
                     itemsToRemove.add(c.getInt(rowIndex));
+                    atlasKeysToRelease.add(getAtlasKey(cn, userSerial));
                 } else {
                     appsToUpdate.add(app);
                 }
@@ -339,24 +459,82 @@ public class IconCache {
             }
         }
         if (!itemsToRemove.isEmpty()) {
+            if (mIconAtlas != null) {
+                mIconAtlas.release(atlasKeysToRelease);
+            }
             mIconDb.delete(
                     Utilities.createDbSelectionQuery(IconDB.COLUMN_ROWID, itemsToRemove), null);
         }
 
+        // The fingerprints are only saved once all the rows are up to date, so that an
+        // interrupted update is resumed during the next reconciliation.
+        final long serial = userSerial;
+        Runnable onReconciled = new Runnable() {
+
+            @Override
+            public void run() {
+                mIconDb.setReconciledFingerprints(serial, fingerprints);
+            }
+        };
+
         // Insert remaining apps.
         if (!componentMap.isEmpty() || !appsToUpdate.isEmpty()) {
             Stack<LauncherActivityInfoCompat> appsToAdd = new Stack<>();
             appsToAdd.addAll(componentMap.values());
-            new SerializedIconUpdateTask(userSerial, pkgInfoMap,
-                    appsToAdd, appsToUpdate).scheduleNext();
+            if (FeatureFlags.LAUNCHER3_PARALLEL_ICON_UPDATE) {
+                new ShardedIconUpdateTask(userSerial, pkgInfoMap,
+                        appsToAdd, appsToUpdate, onReconciled).start();
+            } else {
+                new SerializedIconUpdateTask(userSerial, pkgInfoMap,
+                        appsToAdd, appsToUpdate, onReconciled).scheduleNext();
+            }
+        } else {
+            onReconciled.run();
+        }
+    }
+
+    /**
+     * Returns a fingerprint for every installed package, which changes whenever the icon DB rows
+     * of the package might need to be updated. The fingerprint of the whole user is stored with
+     * the key {@link IconDB#USER_FINGERPRINT_KEY}.
+     */
+    private HashMap<String, String> getPackageFingerprints(
+            HashMap<String, PackageInfo> pkgInfoMap, List<LauncherActivityInfoCompat> apps) {
+        // Activities can be enabled or disabled without updating the package.
+        HashMap<String, Integer> componentHashes = new HashMap<>();
+        for (LauncherActivityInfoCompat app : apps) {
+            String packageName = app.getComponentName().getPackageName();
+            Integer hash = componentHashes.get(packageName);
+            componentHashes.put(packageName, (hash == null ? 0 : hash)
+                    + app.getComponentName().getClassName().hashCode());
         }
+
+        HashMap<String, String> fingerprints = new HashMap<>();
+        long maxLastUpdated = 0;
+        long userHash = 0;
+        for (PackageInfo info : pkgInfoMap.values()) {
+            Integer componentHash = componentHashes.get(info.packageName);
+            boolean dataOnly = info.applicationInfo != null
+                    && (info.applicationInfo.flags & ApplicationInfo.FLAG_IS_DATA_ONLY) != 0;
+            String fingerprint = mSystemState + ":" + info.versionCode + ":"
+                    + info.lastUpdateTime + ":" + (dataOnly ? 1 : 0) + ":"
+                    + Integer.toHexString(componentHash == null ? 0 : componentHash);
+            fingerprints.put(info.packageName, fingerprint);
+
+            maxLastUpdated = Math.max(maxLastUpdated, info.lastUpdateTime);
+            userHash += 31L * info.packageName.hashCode() + fingerprint.hashCode();
+        }
+        fingerprints.put(IconDB.USER_FINGERPRINT_KEY, mSystemState + ":" + pkgInfoMap.size()
+                + ":" + maxLastUpdated + ":" + Long.toHexString(userHash));
+        return fingerprints;
     }
 
     @Thunk void addIconToDBAndMemCache(LauncherActivityInfoCompat app, PackageInfo info,
-            long userSerial) {
-        // Reuse the existing entry if it already exists in the DB. This ensures that we do not
-        // create bitmap if it was already created during loader.
-        ContentValues values = updateCacheAndGetContentValues(app, false);
+            boolean replaceExisting, long userSerial) {
+        // Unless replaceExisting is set, reuse the existing entry if it already exists in the
+        // memory cache. This ensures that we do not create bitmap if it was already created
+        // during loader.
+        ContentValues values = updateCacheAndGetContentValues(app, replaceExisting, userSerial);
         addIconToDB(values, app.getComponentName(), info, userSerial);
     }
 
@@ -374,26 +552,30 @@ public class IconCache {
     }
 
     @Thunk ContentValues updateCacheAndGetContentValues(LauncherActivityInfoCompat app,
-            boolean replaceExisting) {
+            boolean replaceExisting, long userSerial) {
         final ComponentKey key = new ComponentKey(app.getComponentName(), app.getUser());
         CacheEntry entry = null;
-        if (!replaceExisting) {
-            entry = mCache.get(key);
-            // We can't reuse the entry if the high-res icon is not present.
-            if (entry == null || entry.isLowResIcon || entry.icon == null) {
-                entry = null;
+        synchronized (getLock(mComponentLocks, key)) {
+            if (!replaceExisting) {
+                entry = mCache.peek(key);
+                // We can't reuse the entry if the high-res icon is not present.
+                if (entry == null || entry.isLowResIcon || entry.icon == null) {
+                    entry = null;
+                }
             }
+            if (entry == null) {
+                entry = new CacheEntry();
+                entry.icon = Utilities.createBadgedIconBitmap(
+                        app.getIcon(mIconDpi), app.getUser(), mContext);
+            }
+            entry.title = app.getLabel();
+            entry.contentDescription =
+                    mUserManager.getBadgedLabelForUser(entry.title, app.getUser());
+            mCache.put(key, entry);
         }
-        if (entry == null) {
-            entry = new CacheEntry();
-            entry.icon = Utilities.createBadgedIconBitmap(
-                    app.getIcon(mIconDpi), app.getUser(), mContext);
-        }
-        entry.title = app.getLabel();
-        entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, app.getUser());
-        mCache.put(new ComponentKey(app.getComponentName(), app.getUser()), entry);
 
-        return newContentValues(entry.icon, entry.title.toString(), mActivityBgColor);
+        return newContentValues(entry, app.getComponentName().flattenToString(), userSerial,
+                mActivityBgColor);
     }
 
     /**
@@ -429,6 +611,33 @@ public class IconCache {
         return new IconLoadRequest(request, mWorkerHandler);
     }
 
+    /**
+     * Loads the high res icons of {@param apps} in the background, so that they are ready when
+     * the apps are first shown.
+     */
+    public void prefetchHighResIcons(List<AppInfo> apps) {
+        final ArrayList<AppInfo> lowResApps = new ArrayList<>();
+        for (AppInfo app : apps) {
+            if (app.usingLowResIcon) {
+                lowResApps.add(app);
+            }
+        }
+        if (lowResApps.isEmpty()) {
+            return;
+        }
+        mWorkerHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                for (AppInfo app : lowResApps) {
+                    if (app.usingLowResIcon) {
+                        getTitleAndIcon(app, null, false);
+                    }
+                }
+            }
+        });
+    }
+
     private Bitmap getNonNullIcon(CacheEntry entry, UserHandleCompat user) {
         return entry.icon == null ? getDefaultIcon(user) : entry.icon;
     }
@@ -436,25 +645,58 @@ public class IconCache {
     /**
      * Fill in "application" with the icon and label for "info."
      */
-    public synchronized void getTitleAndIcon(AppInfo application,
+    public void getTitleAndIcon(AppInfo application,
             LauncherActivityInfoCompat info, boolean useLowResIcon) {
         UserHandleCompat user = info == null ? application.user : info.getUser();
-        CacheEntry entry = cacheLocked(application.componentName, info, user,
+        CacheEntry entry = getOrCreateEntry(application.componentName, info, user,
                 false, useLowResIcon);
         application.title = Utilities.trim(entry.title);
+        setTitleKeys(application, entry);
         application.iconBitmap = getNonNullIcon(entry, user);
         application.contentDescription = entry.contentDescription;
         application.usingLowResIcon = entry.isLowResIcon;
     }
 
+    private void setTitleKeys(AppInfo application, CacheEntry entry) {
+        TitleKeys keys = ensureTitleKeys(entry);
+        application.searchKeys = keys.searchKeys;
+        application.sectionName = keys.sectionName;
+        application.sortKey = keys.sortKey;
+    }
+
+    /**
+     * Returns the search keys, section name and sort key of the title of {@param entry}, and
+     * computes them unless they were loaded from the DB along with the title.
+     */
+    private TitleKeys ensureTitleKeys(CacheEntry entry) {
+        TitleKeyHelpers helpers = mTitleKeyHelpers;
+        CharSequence title = entry.title;
+        TitleKeys keys = entry.titleKeys;
+        if (keys != null && TextUtils.equals(keys.title, title)
+                && helpers.locale.equals(keys.locale)) {
+            return keys;
+        }
+        String trimmedTitle = title == null ? "" : Utilities.trim(title);
+        String sectionName;
+        // The index walks an iterator internally, and is not thread safe.
+        synchronized (helpers.indexer) {
+            sectionName = helpers.indexer.computeSectionName(trimmedTitle);
+        }
+        keys = new TitleKeys(mTransliterator.getSearchKeys(title), sectionName,
+                helpers.comparator.getSortKey(trimmedTitle), title, helpers.locale);
+        entry.titleKeys = keys;
+        return keys;
+    }
+
     /**
      * Updates {@param application} only if a valid entry is found.
      */
-    public synchronized void updateTitleAndIcon(AppInfo application) {
-        CacheEntry entry = cacheLocked(application.componentName, null, application.user,
+    public void updateTitleAndIcon(AppInfo application) {
+        CacheEntry entry = getOrCreateEntry(application.componentName, null, application.user,
                 false, application.usingLowResIcon);
         if (entry.icon != null && !isDefaultIcon(entry.icon, application.user)) {
             application.title = Utilities.trim(entry.title);
+            setTitleKeys(application, entry);
             application.iconBitmap = entry.icon;
             application.contentDescription = entry.contentDescription;
             application.usingLowResIcon = entry.isLowResIcon;
@@ -464,7 +706,7 @@ public class IconCache {
     /**
      * Returns a high res icon for the given intent and user
      */
-    public synchronized Bitmap getIcon(Intent intent, UserHandleCompat user) {
+    public Bitmap getIcon(Intent intent, UserHandleCompat user) {
         ComponentName component = intent.getComponent();
         // null info means not installed, but if we have a component from the intent then
         // we should still look in the cache for restored app icons.
@@ -473,7 +715,8 @@ public class IconCache {
         }
 
         LauncherActivityInfoCompat launcherActInfo = mLauncherApps.resolveActivity(intent, user);
-        CacheEntry entry = cacheLocked(component, launcherActInfo, user, true, false /* useLowRes */);
+        CacheEntry entry = getOrCreateEntry(component, launcherActInfo, user, true,
+                false /* useLowRes */);
         return entry.icon;
     }
 
@@ -481,7 +724,7 @@ public class IconCache {
      * Fill in {@param shortcutInfo} with the icon and label for {@param intent}. If the
      * corresponding activity is not found, it reverts to the package icon.
      */
-    public synchronized void getTitleAndIcon(ShortcutInfo shortcutInfo, Intent intent,
+    public void getTitleAndIcon(ShortcutInfo shortcutInfo, Intent intent,
             UserHandleCompat user, boolean useLowResIcon) {
         ComponentName component = intent.getComponent();
         // null info means not installed, but if we have a component from the intent then
@@ -500,10 +743,10 @@ public class IconCache {
     /**
      * Fill in {@param shortcutInfo} with the icon and label for {@param info}
      */
-    public synchronized void getTitleAndIcon(
+    public void getTitleAndIcon(
             ShortcutInfo shortcutInfo, ComponentName component, LauncherActivityInfoCompat info,
             UserHandleCompat user, boolean usePkgIcon, boolean useLowResIcon) {
-        CacheEntry entry = cacheLocked(component, info, user, usePkgIcon, useLowResIcon);
+        CacheEntry entry = getOrCreateEntry(component, info, user, usePkgIcon, useLowResIcon);
         shortcutInfo.setIcon(getNonNullIcon(entry, user));
         shortcutInfo.title = Utilities.trim(entry.title);
         shortcutInfo.usingFallbackIcon = isDefaultIcon(entry.icon, user);
@@ -513,78 +756,56 @@ public class IconCache {
     /**
      * Fill in {@param appInfo} with the icon and label for {@param packageName}
      */
-    public synchronized void getTitleAndIconForApp(
+    public void getTitleAndIconForApp(
             String packageName, UserHandleCompat user, boolean useLowResIcon,
             PackageItemInfo infoOut) {
-        CacheEntry entry = getEntryForPackageLocked(packageName, user, useLowResIcon);
+        CacheEntry entry = getOrCreatePackageEntry(packageName, user, useLowResIcon);
         infoOut.iconBitmap = getNonNullIcon(entry, user);
         infoOut.title = Utilities.trim(entry.title);
         infoOut.usingLowResIcon = entry.isLowResIcon;
         infoOut.contentDescription = entry.contentDescription;
     }
 
-    public synchronized Bitmap getDefaultIcon(UserHandleCompat user) {
-        if (!mDefaultIcons.containsKey(user)) {
-            mDefaultIcons.put(user, makeDefaultIcon(user));
+    public Bitmap getDefaultIcon(UserHandleCompat user) {
+        synchronized (mDefaultIcons) {
+            if (!mDefaultIcons.containsKey(user)) {
+                mDefaultIcons.put(user, makeDefaultIcon(user));
+            }
+            return mDefaultIcons.get(user);
         }
-        return mDefaultIcons.get(user);
     }
 
     public boolean isDefaultIcon(Bitmap icon, UserHandleCompat user) {
-        return mDefaultIcons.get(user) == icon;
+        synchronized (mDefaultIcons) {
+            return mDefaultIcons.get(user) == icon;
+        }
     }
 
     /**
      * Retrieves the entry from the cache. If the entry is not present, it creates a new entry.
-     * This method is not thread safe, it must be called from a synchronized method.
+     * Cached entries are returned without any locking. Otherwise the entry is loaded while
+     * holding the lock for its key, so that concurrent requests for the same key wait for the
+     * first one instead of loading the icon again.
      */
-    private CacheEntry cacheLocked(ComponentName componentName, LauncherActivityInfoCompat info,
-            UserHandleCompat user, boolean usePackageIcon, boolean useLowResIcon) {
+    private CacheEntry getOrCreateEntry(ComponentName componentName,
+            LauncherActivityInfoCompat info, UserHandleCompat user, boolean usePackageIcon,
+            boolean useLowResIcon) {
         if (LauncherLog.DEBUG_LAYOUT) {
-            LauncherLog.d(TAG, "cacheLocked: componentName = " + componentName
+            LauncherLog.d(TAG, "getOrCreateEntry: componentName = " + componentName
                     + ", info = " + info);
         }
 
         ComponentKey cacheKey = new ComponentKey(componentName, user);
         CacheEntry entry = mCache.get(cacheKey);
         if (entry == null || (entry.isLowResIcon && !useLowResIcon)) {
-            entry = new CacheEntry();
-            mCache.put(cacheKey, entry);
-
-            // Check the DB first.
-            if (!getEntryFromDB(cacheKey, entry, useLowResIcon)) {
-                if (info != null) {
-                    entry.icon = Utilities.createBadgedIconBitmap(
-                            info.getIcon(mIconDpi), info.getUser(), mContext);
-                } else {
-                    if (usePackageIcon) {
-                        CacheEntry packageEntry = getEntryForPackageLocked(
-                                componentName.getPackageName(), user, false);
-                        if (packageEntry != null) {
-                            if (DEBUG) Log.d(TAG, "using package default icon for " +
-                                    componentName.toShortString());
-                            entry.icon = packageEntry.icon;
-                            entry.title = packageEntry.title;
-                            entry.contentDescription = packageEntry.contentDescription;
-
-                            if (LauncherLog.DEBUG_LOADERS) {
-                                LauncherLog.d(TAG, "CacheLocked get title from pms: title = "
-                                    + entry.title);
-                            }
-                        }
-                    }
-                    if (entry.icon == null) {
-                        if (DEBUG) Log.d(TAG, "using default icon for " +
-                                componentName.toShortString());
-                        entry.icon = getDefaultIcon(user);
-                    }
+            synchronized (getLock(mComponentLocks, cacheKey)) {
+                // The entry might have been loaded while we were waiting for the lock.
+                entry = mCache.peek(cacheKey);
+                if (entry == null || (entry.isLowResIcon && !useLowResIcon)) {
+                    entry = loadEntry(cacheKey, info, usePackageIcon, useLowResIcon);
+                    mCache.put(cacheKey, entry);
                 }
             }
-
-            if (TextUtils.isEmpty(entry.title) && info != null) {
-                entry.title = info.getLabel();
-                entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, user);
-            }
         }
 
        ///M: ALPS02586389. Fix language switch slowly.
@@ -595,28 +816,85 @@ public class IconCache {
         return entry;
     }
 
+    /**
+     * Creates a new entry from the DB, or from {@param info} if it is not present in the DB.
+     */
+    private CacheEntry loadEntry(ComponentKey cacheKey, LauncherActivityInfoCompat info,
+            boolean usePackageIcon, boolean useLowResIcon) {
+        final ComponentName componentName = cacheKey.componentName;
+        final UserHandleCompat user = cacheKey.user;
+        CacheEntry entry = new CacheEntry();
+
+        // Check the DB first.
+        if (!getEntryFromDB(cacheKey, entry, useLowResIcon)) {
+            if (info != null) {
+                entry.icon = Utilities.createBadgedIconBitmap(
+                        info.getIcon(mIconDpi), info.getUser(), mContext);
+            } else {
+                if (usePackageIcon) {
+                    CacheEntry packageEntry = getOrCreatePackageEntry(
+                            componentName.getPackageName(), user, false);
+                    if (packageEntry != null) {
+                        if (DEBUG) Log.d(TAG, "using package default icon for " +
+                                componentName.toShortString());
+                        entry.icon = packageEntry.icon;
+                        entry.title = packageEntry.title;
+                        entry.contentDescription = packageEntry.contentDescription;
+
+                        if (LauncherLog.DEBUG_LOADERS) {
+                            LauncherLog.d(TAG, "loadEntry get title from pms: title = "
+                                + entry.title);
+                        }
+                    }
+                }
+                if (entry.icon == null) {
+                    if (DEBUG) Log.d(TAG, "using default icon for " +
+                            componentName.toShortString());
+                    entry.icon = getDefaultIcon(user);
+                }
+            }
+        }
+
+        if (TextUtils.isEmpty(entry.title) && info != null) {
+            entry.title = info.getLabel();
+            entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, user);
+        }
+        return entry;
+    }
+
     /**
      * Adds a default package entry in the cache. This entry is not persisted and will be removed
      * when the cache is flushed.
      */
-    public synchronized void cachePackageInstallInfo(String packageName, UserHandleCompat user,
+    public void cachePackageInstallInfo(String packageName, UserHandleCompat user,
             Bitmap icon, CharSequence title) {
-        removeFromMemCacheLocked(packageName, user);
+        mCache.removePackage(packageName, user);
 
         ComponentKey cacheKey = getPackageKey(packageName, user);
-        CacheEntry entry = mCache.get(cacheKey);
+        synchronized (getLock(mPackageLocks, cacheKey)) {
+            CacheEntry entry = mCache.peek(cacheKey);
 
-        // For icon caching, do not go through DB. Just update the in-memory entry.
-        if (entry == null) {
-            entry = new CacheEntry();
+            // For icon caching, do not go through DB. Just update the in-memory entry.
+            if (entry == null) {
+                entry = new CacheEntry();
+            }
+            if (!TextUtils.isEmpty(title)) {
+                entry.title = title;
+            }
+            if (icon != null) {
+                entry.icon = Utilities.createIconBitmap(icon, mContext);
+            }
             mCache.put(cacheKey, entry);
         }
-        if (!TextUtils.isEmpty(title)) {
-            entry.title = title;
-        }
-        if (icon != null) {
-            entry.icon = Utilities.createIconBitmap(icon, mContext);
-        }
+    }
+
+    /**
+     * Sets the components whose entries should never be evicted from memory, usually the ones
+     * bound to the workspace. The bitmaps of these entries are referenced by the bound items,
+     * so evicting them would not free any memory.
+     */
+    public void setPinnedComponents(HashSet<ComponentKey> keys) {
+        mCache.setPinnedKeys(keys);
     }
 
     private static ComponentKey getPackageKey(String packageName, UserHandleCompat user) {
@@ -626,51 +904,62 @@ public class IconCache {
 
     /**
      * Gets an entry for the package, which can be used as a fallback entry for various components.
-     * This method is not thread safe, it must be called from a synchronized method.
+     * Similar to {@link #getOrCreateEntry}, a missing entry is loaded while holding its key lock.
      */
-    private CacheEntry getEntryForPackageLocked(String packageName, UserHandleCompat user,
+    private CacheEntry getOrCreatePackageEntry(String packageName, UserHandleCompat user,
             boolean useLowResIcon) {
         ComponentKey cacheKey = getPackageKey(packageName, user);
         CacheEntry entry = mCache.get(cacheKey);
-
         if (entry == null || (entry.isLowResIcon && !useLowResIcon)) {
-            entry = new CacheEntry();
-            boolean entryUpdated = true;
-
-            // Check the DB first.
-            if (!getEntryFromDB(cacheKey, entry, useLowResIcon)) {
-                try {
-                    int flags = UserHandleCompat.myUserHandle().equals(user) ? 0 :
-                        PackageManager.GET_UNINSTALLED_PACKAGES;
-                    PackageInfo info = mPackageManager.getPackageInfo(packageName, flags);
-                    ApplicationInfo appInfo = info.applicationInfo;
-                    if (appInfo == null) {
-                        throw new NameNotFoundException("ApplicationInfo is null");
-                    }
-                    entry.icon = Utilities.createBadgedIconBitmap(
-                            appInfo.loadIcon(mPackageManager), user, mContext);
-                    entry.title = appInfo.loadLabel(mPackageManager);
-                    entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, user);
-                    entry.isLowResIcon = false;
-
-                    // Add the icon in the DB here, since these do not get written during
-                    // package updates.
-                    ContentValues values =
-                            newContentValues(entry.icon, entry.title.toString(), mPackageBgColor);
-                    addIconToDB(values, cacheKey.componentName, info,
-                            mUserManager.getSerialNumberForUser(user));
-
-                } catch (NameNotFoundException e) {
-                    if (DEBUG) Log.d(TAG, "Application not installed " + packageName);
-                    entryUpdated = false;
+            synchronized (getLock(mPackageLocks, cacheKey)) {
+                entry = mCache.peek(cacheKey);
+                if (entry == null || (entry.isLowResIcon && !useLowResIcon)) {
+                    entry = loadPackageEntry(cacheKey, useLowResIcon);
                 }
             }
+        }
+        return entry;
+    }
 
-            // Only add a filled-out entry to the cache
-            if (entryUpdated) {
-                mCache.put(cacheKey, entry);
+    private CacheEntry loadPackageEntry(ComponentKey cacheKey, boolean useLowResIcon) {
+        final String packageName = cacheKey.componentName.getPackageName();
+        final UserHandleCompat user = cacheKey.user;
+        CacheEntry entry = new CacheEntry();
+        boolean entryUpdated = true;
+
+        // Check the DB first.
+        if (!getEntryFromDB(cacheKey, entry, useLowResIcon)) {
+            try {
+                int flags = UserHandleCompat.myUserHandle().equals(user) ? 0 :
+                    PackageManager.GET_UNINSTALLED_PACKAGES;
+                PackageInfo info = mPackageManager.getPackageInfo(packageName, flags);
+                ApplicationInfo appInfo = info.applicationInfo;
+                if (appInfo == null) {
+                    throw new NameNotFoundException("ApplicationInfo is null");
+                }
+                entry.icon = Utilities.createBadgedIconBitmap(
+                        appInfo.loadIcon(mPackageManager), user, mContext);
+                entry.title = appInfo.loadLabel(mPackageManager);
+                entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, user);
+                entry.isLowResIcon = false;
+
+                // Add the icon in the DB here, since these do not get written during
+                // package updates.
+                long userSerial = mUserManager.getSerialNumberForUser(user);
+                ContentValues values = newContentValues(entry,
+                        cacheKey.componentName.flattenToString(), userSerial, mPackageBgColor);
+                addIconToDB(values, cacheKey.componentName, info, userSerial);
+
+            } catch (NameNotFoundException e) {
+                if (DEBUG) Log.d(TAG, "Application not installed " + packageName);
+                entryUpdated = false;
             }
         }
+
+        // Only add a filled-out entry to the cache
+        if (entryUpdated) {
+            mCache.put(cacheKey, entry);
+        }
         return entry;
     }
 
@@ -696,35 +985,36 @@ public class IconCache {
             // pass
         }
 
-        ContentValues values = newContentValues(
-                Bitmap.createScaledBitmap(icon, idp.iconBitmapSize, idp.iconBitmapSize, true),
-                label, Color.TRANSPARENT);
+        CacheEntry entry = new CacheEntry();
+        entry.icon = Bitmap.createScaledBitmap(icon, idp.iconBitmapSize, idp.iconBitmapSize, true);
+        entry.title = label;
+        ContentValues values = newContentValues(entry, componentName.flattenToString(), userSerial,
+                Color.TRANSPARENT);
         values.put(IconDB.COLUMN_COMPONENT, componentName.flattenToString());
         values.put(IconDB.COLUMN_USER, userSerial);
         mIconDb.insertOrReplace(values);
     }
 
     private boolean getEntryFromDB(ComponentKey cacheKey, CacheEntry entry, boolean lowRes) {
+        return getEntryFromDB(cacheKey, entry, lowRes, lowRes ? newLowResOptions() : null);
+    }
+
+    private boolean getEntryFromDB(ComponentKey cacheKey, CacheEntry entry, boolean lowRes,
+            BitmapFactory.Options options) {
+        String component = cacheKey.componentName.flattenToString();
+        long userSerial = mUserManager.getSerialNumberForUser(cacheKey.user);
         Cursor c = null;
         try {
             c = mIconDb.query(
                 new String[]{lowRes ? IconDB.COLUMN_ICON_LOW_RES : IconDB.COLUMN_ICON,
-                        IconDB.COLUMN_LABEL},
+                        IconDB.COLUMN_LABEL, IconDB.COLUMN_ICON_SLOT, IconDB.COLUMN_SEARCH_KEYS,
+                        IconDB.COLUMN_SECTION_NAME, IconDB.COLUMN_SORT_KEY,
+                        IconDB.COLUMN_SYSTEM_STATE},
                 IconDB.COLUMN_COMPONENT + " = ? AND " + IconDB.COLUMN_USER + " = ?",
-                new String[]{cacheKey.componentName.flattenToString(),
-                        Long.toString(mUserManager.getSerialNumberForUser(cacheKey.user))});
+                new String[]{component, Long.toString(userSerial)});
             if (c.moveToNext()) {
-                entry.icon = loadIconNoResize(c, 0, lowRes ? mLowResOptions : null);
-                entry.isLowResIcon = lowRes;
-                entry.title = c.getString(1);
-                if (entry.title == null) {
-                    entry.title = "";
-                    entry.contentDescription = "";
-                } else {
-                    entry.contentDescription = mUserManager.getBadgedLabelForUser(
-                            entry.title, cacheKey.user);
-                }
-                return true;
+                return readEntryFromCursor(c, 0, 1, 2, 3, getAtlasKey(component, userSerial),
+                        cacheKey.user, entry, lowRes, options);
             }
         } catch (SQLiteException e) {
             Log.d(TAG, "Error reading icon cache", e);
@@ -736,6 +1026,122 @@ public class IconCache {
         return false;
     }
 
+    /**
+     * Reads a DB row into {@param entry}. {@param titleKeysIndex} is the index of the search keys
+     * column, which must be followed by the section name, sort key and system state columns.
+     * @return false if the icon could not be read, in which case the row should be treated as
+     * missing, so that the icon is generated again.
+     */
+    private boolean readEntryFromCursor(Cursor c, int iconIndex, int labelIndex, int slotIndex,
+            int titleKeysIndex, String atlasKey, UserHandleCompat user, CacheEntry entry,
+            boolean lowRes, BitmapFactory.Options options) {
+        entry.icon = null;
+        if (!lowRes && mIconAtlas != null) {
+            entry.icon = mIconAtlas.read(c.getInt(slotIndex), atlasKey);
+        }
+        if (entry.icon == null) {
+            // The atlas slot was lost or never written, the DB always has the PNG as well.
+            entry.icon = loadIconNoResize(c, iconIndex, options);
+            if (entry.icon == null) {
+                return false;
+            }
+        }
+        entry.isLowResIcon = lowRes;
+        entry.title = c.getString(labelIndex);
+        if (entry.title == null) {
+            entry.title = "";
+            entry.contentDescription = "";
+        } else {
+            entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, user);
+        }
+
+        // The section name and sort key depend on the locale the row was written in.
+        String keysLocale = c.getString(titleKeysIndex + 3);
+        if (mSystemState.equals(keysLocale) && !c.isNull(titleKeysIndex + 2)) {
+            entry.titleKeys = new TitleKeys(c.getString(titleKeysIndex),
+                    c.getString(titleKeysIndex + 1), c.getBlob(titleKeysIndex + 2), entry.title,
+                    keysLocale);
+        }
+        return true;
+    }
+
+    /**
+     * Loads the DB entries for all the {@param keys} using a few bulk queries, instead of one
+     * query per cache miss, and adds them to the memory cache. Keys which are already present in
+     * memory or which are not in the DB are left untouched.
+     *
+     * The rows are read and decoded without holding any lock.
+     */
+    public void preloadEntries(Collection<ComponentKey> keys, boolean lowRes) {
+        // Maps the atlas key of each row to the requested key.
+        HashMap<String, ComponentKey> pendingKeys = new HashMap<>();
+        ArrayList<String> components = new ArrayList<>();
+        for (ComponentKey key : keys) {
+            CacheEntry entry = mCache.peek(key);
+            if (entry != null && !(entry.isLowResIcon && !lowRes)) {
+                continue;
+            }
+            String component = key.componentName.flattenToString();
+            pendingKeys.put(getAtlasKey(component, mUserManager.getSerialNumberForUser(key.user)),
+                    key);
+            components.add(component);
+        }
+        if (pendingKeys.isEmpty()) {
+            return;
+        }
+
+        BitmapFactory.Options options = lowRes ? newLowResOptions() : null;
+        HashMap<ComponentKey, CacheEntry> loadedEntries = new HashMap<>();
+        for (int start = 0; start < components.size(); start += PRELOAD_BATCH_SIZE) {
+            List<String> batch = components.subList(start,
+                    Math.min(start + PRELOAD_BATCH_SIZE, components.size()));
+            StringBuilder selection = new StringBuilder(IconDB.COLUMN_COMPONENT).append(" IN (");
+            for (int i = 0; i < batch.size(); i++) {
+                selection.append(i == 0 ? "?" : ", ?");
+            }
+            selection.append(")");
+
+            Cursor c = null;
+            try {
+                c = mIconDb.query(
+                        new String[]{IconDB.COLUMN_COMPONENT, IconDB.COLUMN_USER,
+                                lowRes ? IconDB.COLUMN_ICON_LOW_RES : IconDB.COLUMN_ICON,
+                                IconDB.COLUMN_LABEL, IconDB.COLUMN_ICON_SLOT,
+                                IconDB.COLUMN_SEARCH_KEYS, IconDB.COLUMN_SECTION_NAME,
+                                IconDB.COLUMN_SORT_KEY, IconDB.COLUMN_SYSTEM_STATE},
+                        selection.toString(), batch.toArray(new String[batch.size()]));
+                while (c.moveToNext()) {
+                    String atlasKey = getAtlasKey(c.getString(0), c.getLong(1));
+                    ComponentKey key = pendingKeys.get(atlasKey);
+                    if (key == null) {
+                        // Same component for a different user.
+                        continue;
+                    }
+                    CacheEntry entry = new CacheEntry();
+                    if (readEntryFromCursor(c, 2, 3, 4, 5, atlasKey, key.user, entry, lowRes,
+                            options)) {
+                        loadedEntries.put(key, entry);
+                    }
+                }
+            } catch (SQLiteException e) {
+                Log.d(TAG, "Error reading icon cache", e);
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+            }
+        }
+
+        for (Map.Entry<ComponentKey, CacheEntry> loaded : loadedEntries.entrySet()) {
+            // The entry might have been added while we were reading the DB.
+            mCache.putIfBetter(loaded.getKey(), loaded.getValue());
+        }
+        if (DEBUG) {
+            Log.d(TAG, "Preloaded " + loadedEntries.size() + "/" + pendingKeys.size()
+                    + " entries, lowRes=" + lowRes);
+        }
+    }
+
     public static class IconLoadRequest {
         private final Runnable mRunnable;
         private final Handler mHandler;
@@ -761,14 +1167,18 @@ public class IconCache {
         private final Stack<LauncherActivityInfoCompat> mAppsToAdd;
         private final Stack<LauncherActivityInfoCompat> mAppsToUpdate;
         private final HashSet<String> mUpdatedPackages = new HashSet<String>();
+        private final Runnable mOnFinished;
+        private final UpdateStats mStats;
 
         @Thunk SerializedIconUpdateTask(long userSerial, HashMap<String, PackageInfo> pkgInfoMap,
                 Stack<LauncherActivityInfoCompat> appsToAdd,
-                Stack<LauncherActivityInfoCompat> appsToUpdate) {
+                Stack<LauncherActivityInfoCompat> appsToUpdate, Runnable onFinished) {
             mUserSerial = userSerial;
             mPkgInfoMap = pkgInfoMap;
             mAppsToAdd = appsToAdd;
             mAppsToUpdate = appsToUpdate;
+            mOnFinished = onFinished;
+            mStats = startUpdateStats("serialized", appsToAdd.size() + appsToUpdate.size());
         }
 
         @Override
@@ -776,11 +1186,12 @@ public class IconCache {
             if (!mAppsToUpdate.isEmpty()) {
                 LauncherActivityInfoCompat app = mAppsToUpdate.pop();
                 String cn = app.getComponentName().flattenToString();
-                ContentValues values = updateCacheAndGetContentValues(app, true);
+                ContentValues values = updateCacheAndGetContentValues(app, true, mUserSerial);
                 mIconDb.update(values,
                         IconDB.COLUMN_COMPONENT + " = ? AND " + IconDB.COLUMN_USER + " = ?",
                         new String[]{cn, Long.toString(mUserSerial)});
                 mUpdatedPackages.add(app.getComponentName().getPackageName());
+                mStats.onBatchCommitted(1);
 
                 if (mAppsToUpdate.isEmpty() && !mUpdatedPackages.isEmpty()) {
                     // No more app to update. Notify model.
@@ -794,15 +1205,17 @@ public class IconCache {
                 LauncherActivityInfoCompat app = mAppsToAdd.pop();
                 PackageInfo info = mPkgInfoMap.get(app.getComponentName().getPackageName());
                 if (info != null) {
-                    synchronized (IconCache.this) {
-                        addIconToDBAndMemCache(app, info, mUserSerial);
-                    }
+                    addIconToDBAndMemCache(app, info, false, mUserSerial);
                 }
+                mStats.onBatchCommitted(1);
 
                 if (!mAppsToAdd.isEmpty()) {
                     scheduleNext();
                 }
             }
+            if (mAppsToAdd.isEmpty() && mAppsToUpdate.isEmpty() && mStats.onFinished()) {
+                mOnFinished.run();
+            }
         }
 
         public void scheduleNext() {
@@ -810,12 +1223,275 @@ public class IconCache {
         }
     }
 
+    /**
+     * An alternative to {@link SerializedIconUpdateTask} which splits the apps into shards. Each
+     * shard is rendered on {@link Utilities#THREAD_POOL_EXECUTOR} and then written back to the DB
+     * in a single transaction on the worker thread. The model is notified once per shard.
+     */
+    @Thunk class ShardedIconUpdateTask {
+        private final long mUserSerial;
+        private final HashMap<String, PackageInfo> mPkgInfoMap;
+        private final Stack<IconUpdateShard> mPendingShards = new Stack<>();
+        private final int mGeneration;
+        private final Runnable mOnFinished;
+        private final UpdateStats mStats;
+
+        // Only accessed on the worker thread
+        private int mShardsInFlight = 0;
+
+        @Thunk ShardedIconUpdateTask(long userSerial, HashMap<String, PackageInfo> pkgInfoMap,
+                Stack<LauncherActivityInfoCompat> appsToAdd,
+                Stack<LauncherActivityInfoCompat> appsToUpdate, Runnable onFinished) {
+            mUserSerial = userSerial;
+            mPkgInfoMap = pkgInfoMap;
+            mOnFinished = onFinished;
+            mGeneration = mIconUpdateGeneration;
+            mStats = startUpdateStats("sharded", appsToAdd.size() + appsToUpdate.size());
+
+            // Updates are processed last to first, similar to SerializedIconUpdateTask.
+            addShards(appsToAdd, false);
+            addShards(appsToUpdate, true);
+        }
+
+        private void addShards(Stack<LauncherActivityInfoCompat> apps, boolean replaceExisting) {
+            IconUpdateShard shard = null;
+            for (LauncherActivityInfoCompat app : apps) {
+                PackageInfo info = mPkgInfoMap.get(app.getComponentName().getPackageName());
+                if (info == null) {
+                    continue;
+                }
+                if (shard == null || shard.apps.size() >= ICON_UPDATE_SHARD_SIZE) {
+                    shard = new IconUpdateShard(replaceExisting);
+                    mPendingShards.add(shard);
+                }
+                Bitmap existingIcon = null;
+                if (!replaceExisting) {
+                    // Reuse the icon if it was already created during loader.
+                    CacheEntry entry = mCache.peek(
+                            new ComponentKey(app.getComponentName(), app.getUser()));
+                    if (entry != null && !entry.isLowResIcon) {
+                        existingIcon = entry.icon;
+                    }
+                }
+                shard.apps.add(app);
+                shard.packageInfos.add(info);
+                shard.existingIcons.add(existingIcon);
+            }
+        }
+
+        public void start() {
+            while (!mPendingShards.isEmpty()
+                    && mShardsInFlight < ICON_UPDATE_MAX_PARALLEL_SHARDS) {
+                submitNextShard();
+            }
+            if (mShardsInFlight == 0 && mStats.onFinished()) {
+                mOnFinished.run();
+            }
+        }
+
+        private void submitNextShard() {
+            final IconUpdateShard shard = mPendingShards.pop();
+            mShardsInFlight++;
+            Utilities.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (mGeneration != mIconUpdateGeneration) {
+                        return;
+                    }
+                    shard.render(mUserSerial);
+                    mWorkerHandler.postAtTime(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            onShardRendered(shard);
+                        }
+                    }, ICON_UPDATE_TOKEN, SystemClock.uptimeMillis());
+                }
+            });
+        }
+
+        @Thunk void onShardRendered(IconUpdateShard shard) {
+            mShardsInFlight--;
+            if (mGeneration != mIconUpdateGeneration) {
+                return;
+            }
+
+            if (shard.replaceExisting) {
+                mIconDb.replace(shard.values);
+            } else {
+                mIconDb.insertOrReplace(shard.values);
+            }
+            for (int i = shard.apps.size() - 1; i >= 0; i--) {
+                LauncherActivityInfoCompat app = shard.apps.get(i);
+                ComponentKey key = new ComponentKey(app.getComponentName(), app.getUser());
+                synchronized (getLock(mComponentLocks, key)) {
+                    mCache.put(key, shard.entries.get(i));
+                }
+            }
+            mStats.onBatchCommitted(shard.apps.size());
+
+            if (shard.replaceExisting) {
+                HashSet<String> updatedPackages = new HashSet<>();
+                for (LauncherActivityInfoCompat app : shard.apps) {
+                    updatedPackages.add(app.getComponentName().getPackageName());
+                }
+                LauncherAppState.getInstance().getModel().onPackageIconsUpdated(
+                        updatedPackages, mUserManager.getUserForSerialNumber(mUserSerial));
+            }
+
+            if (!mPendingShards.isEmpty()) {
+                submitNextShard();
+            } else if (mShardsInFlight == 0 && mStats.onFinished()) {
+                mOnFinished.run();
+            }
+        }
+    }
+
+    /**
+     * A set of apps rendered together by {@link ShardedIconUpdateTask}.
+     */
+    @Thunk class IconUpdateShard {
+        final boolean replaceExisting;
+        final ArrayList<LauncherActivityInfoCompat> apps = new ArrayList<>();
+        final ArrayList<PackageInfo> packageInfos = new ArrayList<>();
+        final ArrayList<Bitmap> existingIcons = new ArrayList<>();
+
+        // Output of render()
+        final ArrayList<CacheEntry> entries = new ArrayList<>();
+        final ArrayList<ContentValues> values = new ArrayList<>();
+
+        IconUpdateShard(boolean replaceExisting) {
+            this.replaceExisting = replaceExisting;
+        }
+
+        /**
+         * Creates the cache entries and DB rows for all the apps. This does not touch the
+         * in-memory cache and can be called on any thread.
+         */
+        void render(long userSerial) {
+            LowResIconRenderer lowResRenderer = new LowResIconRenderer();
+            for (int i = 0; i < apps.size(); i++) {
+                LauncherActivityInfoCompat app = apps.get(i);
+                CacheEntry entry = new CacheEntry();
+                entry.icon = existingIcons.get(i);
+                if (entry.icon == null) {
+                    entry.icon = Utilities.createBadgedIconBitmap(
+                            app.getIcon(mIconDpi), app.getUser(), mContext);
+                }
+                entry.title = app.getLabel();
+                entry.contentDescription =
+                        mUserManager.getBadgedLabelForUser(entry.title, app.getUser());
+                entries.add(entry);
+
+                // Always write the complete row (including the version info), so that updated
+                // rows are not considered stale during the next update.
+                String component = app.getComponentName().flattenToString();
+                ContentValues row = newContentValues(entry, component, userSerial,
+                        mActivityBgColor, lowResRenderer);
+                PackageInfo info = packageInfos.get(i);
+                row.put(IconDB.COLUMN_COMPONENT, component);
+                row.put(IconDB.COLUMN_USER, userSerial);
+                row.put(IconDB.COLUMN_LAST_UPDATED, info.lastUpdateTime);
+                row.put(IconDB.COLUMN_VERSION, info.versionCode);
+                values.add(row);
+            }
+        }
+    }
+
+    @Thunk UpdateStats startUpdateStats(String mode, int total) {
+        UpdateStats stats = new UpdateStats(mode, total);
+        mLastUpdateStats = stats;
+        return stats;
+    }
+
+    /**
+     * Progress and latency of an icon DB update, used to compare the different update modes.
+     */
+    @Thunk static class UpdateStats {
+        private final String mMode;
+        private final int mTotal;
+        private final long mStartTime = SystemClock.uptimeMillis();
+
+        private int mDone;
+        private int mBatches;
+        private long mEndTime;
+
+        UpdateStats(String mode, int total) {
+            mMode = mode;
+            mTotal = total;
+        }
+
+        synchronized void onBatchCommitted(int count) {
+            mDone += count;
+            mBatches++;
+        }
+
+        /**
+         * @return true if the update was not already marked as finished.
+         */
+        synchronized boolean onFinished() {
+            if (mEndTime == 0) {
+                mEndTime = SystemClock.uptimeMillis();
+                if (DEBUG) Log.d(TAG, "Icon DB update finished, " + this);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public synchronized String toString() {
+            long elapsed = (mEndTime == 0 ? SystemClock.uptimeMillis() : mEndTime) - mStartTime;
+            return mMode + ": " + mDone + "/" + mTotal + " icons in " + mBatches + " batches, "
+                    + elapsed + "ms" + (mEndTime == 0 ? " (running)" : "");
+        }
+    }
+
     private void updateSystemStateString() {
         mSystemState = Locale.getDefault().toString();
+        if (mTitleKeyHelpers == null || !mTitleKeyHelpers.locale.equals(mSystemState)) {
+            // The keys of the cached entries are recomputed lazily, as their locale differs.
+            mTitleKeyHelpers = new TitleKeyHelpers(mContext, mSystemState);
+        }
+    }
+
+    /**
+     * The keys derived from an app title in a given locale.
+     */
+    @Thunk static final class TitleKeys {
+        final String searchKeys;
+        final String sectionName;
+        final byte[] sortKey;
+        final CharSequence title;
+        final String locale;
+
+        TitleKeys(String searchKeys, String sectionName, byte[] sortKey, CharSequence title,
+                String locale) {
+            this.searchKeys = searchKeys;
+            this.sectionName = sectionName;
+            this.sortKey = sortKey;
+            this.title = title;
+            this.locale = locale;
+        }
+    }
+
+    /**
+     * The section index and collator used to compute the title keys in a given locale.
+     */
+    private static final class TitleKeyHelpers {
+        final String locale;
+        final AlphabeticIndexCompat indexer;
+        final AppNameComparator comparator;
+
+        TitleKeyHelpers(Context context, String locale) {
+            this.locale = locale;
+            indexer = new AlphabeticIndexCompat(context);
+            comparator = new AppNameComparator(context);
+        }
     }
 
     private static final class IconDB extends SQLiteCacheHelper {
-        private final static int DB_VERSION = 7;
+        private final static int DB_VERSION = 12;
 
         private final static int RELEASE_VERSION = DB_VERSION +
                 (FeatureFlags.LAUNCHER3_ICON_NORMALIZATION ? 1 : 0);
@@ -828,9 +1504,20 @@ public class IconCache {
         private final static String COLUMN_VERSION = "version";
         private final static String COLUMN_ICON = "icon";
         private final static String COLUMN_ICON_LOW_RES = "icon_low_res";
+        private final static String COLUMN_ICON_SLOT = "icon_slot";
         private final static String COLUMN_LABEL = "label";
+        private final static String COLUMN_SEARCH_KEYS = "search_keys";
+        private final static String COLUMN_SECTION_NAME = "section_name";
+        private final static String COLUMN_SORT_KEY = "sort_key";
         private final static String COLUMN_SYSTEM_STATE = "system_state";
 
+        // Fingerprints of the packages, as of the last complete reconciliation of the icons.
+        private final static String PACKAGES_TABLE_NAME = "packages";
+        private final static String COLUMN_PACKAGE = "packageName";
+        private final static String COLUMN_FINGERPRINT = "fingerprint";
+        // Key of the fingerprint of the whole user, which is never a valid package name.
+        private final static String USER_FINGERPRINT_KEY = "";
+
         public IconDB(Context context, int iconPixelSize) {
             super(context, LauncherFiles.APP_ICONS_DB,
                     (RELEASE_VERSION << 16) + iconPixelSize,
@@ -846,19 +1533,97 @@ public class IconCache {
                     COLUMN_VERSION + " INTEGER NOT NULL DEFAULT 0, " +
                     COLUMN_ICON + " BLOB, " +
                     COLUMN_ICON_LOW_RES + " BLOB, " +
+                    COLUMN_ICON_SLOT + " INTEGER NOT NULL DEFAULT -1, " +
                     COLUMN_LABEL + " TEXT, " +
+                    COLUMN_SEARCH_KEYS + " TEXT, " +
+                    COLUMN_SECTION_NAME + " TEXT, " +
+                    COLUMN_SORT_KEY + " BLOB, " +
                     COLUMN_SYSTEM_STATE + " TEXT, " +
                     "PRIMARY KEY (" + COLUMN_COMPONENT + ", " + COLUMN_USER + ") " +
                     ");");
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + PACKAGES_TABLE_NAME + " (" +
+                    COLUMN_PACKAGE + " TEXT NOT NULL, " +
+                    COLUMN_USER + " INTEGER NOT NULL, " +
+                    COLUMN_FINGERPRINT + " TEXT NOT NULL, " +
+                    "PRIMARY KEY (" + COLUMN_PACKAGE + ", " + COLUMN_USER + ") " +
+                    ");");
+        }
+
+        @Override
+        protected void onDropTables(SQLiteDatabase db) {
+            db.execSQL("DROP TABLE IF EXISTS " + PACKAGES_TABLE_NAME);
         }
+
+        /**
+         * Returns the fingerprints saved by {@link #setReconciledFingerprints}, or an empty map
+         * if the user was never reconciled.
+         */
+        public HashMap<String, String> getReconciledFingerprints(long userSerial) {
+            HashMap<String, String> fingerprints = new HashMap<>();
+            Cursor c = null;
+            try {
+                c = query(PACKAGES_TABLE_NAME,
+                        new String[]{COLUMN_PACKAGE, COLUMN_FINGERPRINT},
+                        COLUMN_USER + " = ?", new String[]{Long.toString(userSerial)});
+                while (c.moveToNext()) {
+                    fingerprints.put(c.getString(0), c.getString(1));
+                }
+            } catch (SQLiteException e) {
+                Log.d(TAG, "Error reading package fingerprints", e);
+                fingerprints.clear();
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+            }
+            return fingerprints;
+        }
+
+        public void setReconciledFingerprints(long userSerial,
+                HashMap<String, String> fingerprints) {
+            ArrayList<ContentValues> valuesList = new ArrayList<>(fingerprints.size());
+            for (Map.Entry<String, String> e : fingerprints.entrySet()) {
+                ContentValues values = new ContentValues();
+                values.put(COLUMN_PACKAGE, e.getKey());
+                values.put(COLUMN_USER, userSerial);
+                values.put(COLUMN_FINGERPRINT, e.getValue());
+                valuesList.add(values);
+            }
+            replaceRows(PACKAGES_TABLE_NAME, COLUMN_USER + " = ?",
+                    new String[]{Long.toString(userSerial)}, valuesList);
+        }
+    }
+
+    private ContentValues newContentValues(CacheEntry entry, String component, long userSerial,
+            int lowResBackgroundColor) {
+        return newContentValues(entry, component, userSerial, lowResBackgroundColor,
+                mLowResRenderer);
     }
 
-    private ContentValues newContentValues(Bitmap icon, String label, int lowResBackgroundColor) {
+    @Thunk ContentValues newContentValues(CacheEntry entry, String component, long userSerial,
+            int lowResBackgroundColor, LowResIconRenderer lowResRenderer) {
+        Bitmap icon = entry.icon;
+        TitleKeys keys = ensureTitleKeys(entry);
         ContentValues values = new ContentValues();
+        // The PNG is kept even for icons in the atlas, as the fallback if the slot is lost or the
+        // atlas is disabled.
+        int slot = mIconAtlas == null ? -1 : writeToAtlas(getAtlasKey(component, userSerial), icon);
         values.put(IconDB.COLUMN_ICON, Utilities.flattenBitmap(icon));
-
-        values.put(IconDB.COLUMN_LABEL, label);
-        values.put(IconDB.COLUMN_SYSTEM_STATE, mSystemState);
+        values.put(IconDB.COLUMN_ICON_SLOT, slot);
+
+        values.put(IconDB.COLUMN_LABEL, entry.title.toString());
+        String systemState = mSystemState;
+        if (systemState.equals(keys.locale)) {
+            values.put(IconDB.COLUMN_SEARCH_KEYS, keys.searchKeys);
+            values.put(IconDB.COLUMN_SECTION_NAME, keys.sectionName);
+            values.put(IconDB.COLUMN_SORT_KEY, keys.sortKey);
+        } else {
+            // The locale changed while the keys were computed, they are recomputed when read.
+            values.putNull(IconDB.COLUMN_SEARCH_KEYS);
+            values.putNull(IconDB.COLUMN_SECTION_NAME);
+            values.putNull(IconDB.COLUMN_SORT_KEY);
+        }
+        values.put(IconDB.COLUMN_SYSTEM_STATE, systemState);
 
         if (lowResBackgroundColor == Color.TRANSPARENT) {
           values.put(IconDB.COLUMN_ICON_LOW_RES, Utilities.flattenBitmap(
@@ -866,25 +1631,264 @@ public class IconCache {
                   icon.getWidth() / LOW_RES_SCALE_FACTOR,
                   icon.getHeight() / LOW_RES_SCALE_FACTOR, true)));
         } else {
-            synchronized (this) {
-                if (mLowResBitmap == null) {
-                    mLowResBitmap = Bitmap.createBitmap(icon.getWidth() / LOW_RES_SCALE_FACTOR,
-                            icon.getHeight() / LOW_RES_SCALE_FACTOR, Bitmap.Config.RGB_565);
-                    mLowResCanvas = new Canvas(mLowResBitmap);
-                    mLowResPaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.ANTI_ALIAS_FLAG);
+            values.put(IconDB.COLUMN_ICON_LOW_RES,
+                    lowResRenderer.render(icon, lowResBackgroundColor));
+        }
+        return values;
+    }
+
+    private static String getAtlasKey(String component, long userSerial) {
+        return component + "#" + userSerial;
+    }
+
+    /**
+     * Stores the high-res {@param icon} in the atlas, loading the slots used by the DB rows first
+     * if needed.
+     * @return the slot of the icon, or -1 if it is not in the atlas.
+     */
+    private int writeToAtlas(String atlasKey, Bitmap icon) {
+        synchronized (mIconAtlas) {
+            if (!mIconAtlas.hasSlotIndex()) {
+                HashMap<String, Integer> slots = new HashMap<>();
+                Cursor c = null;
+                try {
+                    c = mIconDb.query(
+                            new String[]{IconDB.COLUMN_COMPONENT, IconDB.COLUMN_USER,
+                                    IconDB.COLUMN_ICON_SLOT},
+                            IconDB.COLUMN_ICON_SLOT + " >= 0", null);
+                    while (c.moveToNext()) {
+                        slots.put(getAtlasKey(c.getString(0), c.getLong(1)), c.getInt(2));
+                    }
+                } catch (SQLiteException e) {
+                    Log.d(TAG, "Error reading icon slots", e);
+                    return -1;
+                } finally {
+                    if (c != null) {
+                        c.close();
+                    }
                 }
-                mLowResCanvas.drawColor(lowResBackgroundColor);
-                mLowResCanvas.drawBitmap(icon, new Rect(0, 0, icon.getWidth(), icon.getHeight()),
-                        new Rect(0, 0, mLowResBitmap.getWidth(), mLowResBitmap.getHeight()),
-                        mLowResPaint);
-                values.put(IconDB.COLUMN_ICON_LOW_RES, Utilities.flattenBitmap(mLowResBitmap));
+                mIconAtlas.setSlotIndex(slots);
             }
+            return mIconAtlas.write(atlasKey, icon);
+        }
+    }
+
+    /**
+     * Draws scaled down icons on an opaque background. An instance can be used from any thread,
+     * but the calls are serialized.
+     */
+    @Thunk static class LowResIconRenderer {
+        private Bitmap mLowResBitmap;
+        private Canvas mLowResCanvas;
+        private Paint mLowResPaint;
+
+        synchronized byte[] render(Bitmap icon, int backgroundColor) {
+            if (mLowResBitmap == null) {
+                mLowResBitmap = Bitmap.createBitmap(icon.getWidth() / LOW_RES_SCALE_FACTOR,
+                        icon.getHeight() / LOW_RES_SCALE_FACTOR, Bitmap.Config.RGB_565);
+                mLowResCanvas = new Canvas(mLowResBitmap);
+                mLowResPaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.ANTI_ALIAS_FLAG);
+            }
+            mLowResCanvas.drawColor(backgroundColor);
+            mLowResCanvas.drawBitmap(icon, new Rect(0, 0, icon.getWidth(), icon.getHeight()),
+                    new Rect(0, 0, mLowResBitmap.getWidth(), mLowResBitmap.getHeight()),
+                    mLowResPaint);
+            return Utilities.flattenBitmap(mLowResBitmap);
+        }
+    }
+
+    /**
+     * Prints out the state of the cache for debugging.
+     */
+    public void dumpState() {
+        Log.d(TAG, "Last icon DB update: " + mLastUpdateStats);
+        Log.d(TAG, "Memory cache: " + mCache);
+        Log.d(TAG, "Icon DB writes: " + mIconDb.getWriteStats());
+        if (mIconAtlas != null) {
+            Log.d(TAG, "Icon atlas: " + (mIconAtlas.getFileSize() / 1024) + " KB");
+        }
+    }
+
+    /**
+     * In-memory map of {@link CacheEntry}s with a budget based on the byte count of the icons.
+     * Entries are kept in access order. When the budget is exceeded, the least recently used
+     * high-res entries are removed first, and reloaded with their low-res icon from the DB on the
+     * worker thread. Low-res entries are removed after that. Pinned entries are never evicted.
+     *
+     * All the methods are synchronized on this object, and none of them does any I/O, so that
+     * the lock is only ever held for a short time.
+     */
+    private class MemoryCache {
+        private final LinkedHashMap<ComponentKey, CacheEntry> mEntries =
+                new LinkedHashMap<>(INITIAL_ICON_CACHE_CAPACITY, 0.75f, true /* accessOrder */);
+        private final long mMaxBytes;
+        private HashSet<ComponentKey> mPinnedKeys = new HashSet<>();
+        private long mSizeBytes;
+
+        private int mHitCount;
+        private int mMissCount;
+        private int mDegradeCount;
+        private int mEvictionCount;
+
+        MemoryCache(long maxBytes) {
+            mMaxBytes = maxBytes;
+        }
+
+        synchronized CacheEntry get(ComponentKey key) {
+            CacheEntry entry = mEntries.get(key);
+            if (entry == null) {
+                mMissCount++;
+            } else {
+                mHitCount++;
+            }
+            return entry;
+        }
+
+        /**
+         * Same as {@link #get} but does not update the stats.
+         */
+        synchronized CacheEntry peek(ComponentKey key) {
+            return mEntries.get(key);
+        }
+
+        /**
+         * Adds or re-adds {@param entry}. This must be called again whenever the icon of an
+         * existing entry is changed, so that its size is updated.
+         */
+        synchronized void put(ComponentKey key, CacheEntry entry) {
+            CacheEntry old = mEntries.put(key, entry);
+            if (old != null) {
+                mSizeBytes -= old.byteCount;
+            }
+            entry.byteCount = getByteCount(key, entry);
+            mSizeBytes += entry.byteCount;
+            trimToSize(key);
+        }
+
+        /**
+         * Adds {@param entry} only if there is no entry for {@param key}, or if the existing
+         * entry is low-res while the new one is not.
+         */
+        synchronized boolean putIfBetter(ComponentKey key, CacheEntry entry) {
+            CacheEntry existing = mEntries.get(key);
+            if (existing == null || (existing.isLowResIcon && !entry.isLowResIcon)) {
+                put(key, entry);
+                return true;
+            }
+            return false;
+        }
+
+        synchronized CacheEntry remove(ComponentKey key) {
+            CacheEntry entry = mEntries.remove(key);
+            if (entry != null) {
+                mSizeBytes -= entry.byteCount;
+            }
+            return entry;
+        }
+
+        synchronized void removePackage(String packageName, UserHandleCompat user) {
+            Iterator<Map.Entry<ComponentKey, CacheEntry>> itr = mEntries.entrySet().iterator();
+            while (itr.hasNext()) {
+                Map.Entry<ComponentKey, CacheEntry> e = itr.next();
+                ComponentKey key = e.getKey();
+                if (key.componentName.getPackageName().equals(packageName)
+                        && key.user.equals(user)) {
+                    mSizeBytes -= e.getValue().byteCount;
+                    itr.remove();
+                }
+            }
+        }
+
+        synchronized void setPinnedKeys(HashSet<ComponentKey> keys) {
+            mPinnedKeys = keys;
+            trimToSize(null);
+        }
+
+        private int getByteCount(ComponentKey key, CacheEntry entry) {
+            // Default icons are shared between entries, and are never released.
+            return (entry.icon == null || isDefaultIcon(entry.icon, key.user))
+                    ? 0 : entry.icon.getByteCount();
+        }
+
+        /**
+         * Evicts entries until the cache fits in the budget.
+         * @param keep the key which was just added, which is never evicted.
+         */
+        private void trimToSize(ComponentKey keep) {
+            if (mSizeBytes <= mMaxBytes) {
+                return;
+            }
+
+            // Remove the least recently used high-res entries first, they are brought back
+            // with their low-res icon.
+            final ArrayList<ComponentKey> keysToDegrade = new ArrayList<>();
+            Iterator<Map.Entry<ComponentKey, CacheEntry>> itr = mEntries.entrySet().iterator();
+            while (mSizeBytes > mMaxBytes && itr.hasNext()) {
+                Map.Entry<ComponentKey, CacheEntry> e = itr.next();
+                if (!e.getValue().isLowResIcon && isEvictable(e.getKey(), keep)) {
+                    mSizeBytes -= e.getValue().byteCount;
+                    itr.remove();
+                    keysToDegrade.add(e.getKey());
+                }
+            }
+
+            // Drop low-res entries if still over the budget.
+            itr = mEntries.entrySet().iterator();
+            while (mSizeBytes > mMaxBytes && itr.hasNext()) {
+                Map.Entry<ComponentKey, CacheEntry> e = itr.next();
+                if (isEvictable(e.getKey(), keep)) {
+                    mSizeBytes -= e.getValue().byteCount;
+                    itr.remove();
+                    mEvictionCount++;
+                }
+            }
+
+            if (!keysToDegrade.isEmpty()) {
+                mWorkerHandler.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        degradeToLowRes(keysToDegrade);
+                    }
+                });
+            }
+        }
+
+        @Thunk void degradeToLowRes(ArrayList<ComponentKey> keys) {
+            BitmapFactory.Options options = newLowResOptions();
+            for (ComponentKey key : keys) {
+                CacheEntry entry = new CacheEntry();
+                if (getEntryFromDB(key, entry, true, options) && entry.icon != null
+                        && putIfBetter(key, entry)) {
+                    synchronized (this) {
+                        mDegradeCount++;
+                    }
+                } else {
+                    synchronized (this) {
+                        mEvictionCount++;
+                    }
+                }
+            }
+        }
+
+        private boolean isEvictable(ComponentKey key, ComponentKey keep) {
+            return (keep == null || !keep.equals(key)) && !mPinnedKeys.contains(key);
+        }
+
+        @Override
+        public synchronized String toString() {
+            return mEntries.size() + " entries (" + mPinnedKeys.size() + " pinned), "
+                    + (mSizeBytes / 1024) + "/" + (mMaxBytes / 1024) + " KB, hits=" + mHitCount
+                    + ", misses=" + mMissCount + ", degraded=" + mDegradeCount
+                    + ", evicted=" + mEvictionCount;
         }
-        return values;
     }
 
     private static Bitmap loadIconNoResize(Cursor c, int iconIndex, BitmapFactory.Options options) {
         byte[] data = c.getBlob(iconIndex);
+        if (data == null) {
+            return null;
+        }
         try {
             return BitmapFactory.decodeByteArray(data, 0, data.length, options);
         } catch (Exception e) {
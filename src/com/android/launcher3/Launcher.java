@@ -106,12 +106,15 @@ import com.android.launcher3.DropTarget.DragObject;
 import com.android.launcher3.PagedView.PageSwitchListener;
 import com.android.launcher3.compat.PackageInstallerCompat;
 import com.android.launcher3.allapps.AllAppsContainerView;
+import com.android.launcher3.allapps.AllAppsRecyclerView;
 import com.android.launcher3.allapps.DefaultAppSearchController;
+import com.android.launcher3.allapps.DefaultAppSearchAlgorithm;
 import com.android.launcher3.compat.AppWidgetManagerCompat;
 import com.android.launcher3.compat.LauncherActivityInfoCompat;
 import com.android.launcher3.compat.LauncherAppsCompat;
 import com.android.launcher3.compat.UserHandleCompat;
 import com.android.launcher3.compat.UserManagerCompat;
+import com.android.launcher3.config.FeatureFlags;
 import com.android.launcher3.model.WidgetsModel;
 import com.android.launcher3.util.ComponentKey;
 import com.android.launcher3.util.LongArrayMap;
@@ -3185,6 +3188,11 @@ public class Launcher extends Activity
             Toast.makeText(this, R.string.activity_not_found, Toast.LENGTH_SHORT).show();
             Log.e(TAG, "Unable to launch. tag=" + tag + " intent=" + intent, e);
         }
+        if (success && FeatureFlags.LAUNCHER3_APP_PREDICTIONS && tag instanceof ItemInfo
+                && Utilities.isLauncherAppTarget(intent)) {
+            LauncherAppState.getInstance().getAppLaunchPredictor().recordLaunch(
+                    intent.getComponent(), ((ItemInfo) tag).user);
+        }
         return success;
     }
 
@@ -3631,6 +3639,9 @@ public class Launcher extends Activity
             tryAndUpdatePredictedApps();
         }
         showAppsOrWidgets(State.APPS, animated, focusSearchBar);
+        if (mAppsView != null) {
+            mAppsView.onAppsViewShown();
+        }
     }
 
     /**
@@ -3758,11 +3769,15 @@ public class Launcher extends Activity
      * resumed.
      */
     private void tryAndUpdatePredictedApps() {
+        List<ComponentKey> apps = null;
         if (mLauncherCallbacks != null) {
-            List<ComponentKey> apps = mLauncherCallbacks.getPredictedApps();
-            if (apps != null) {
-                mAppsView.setPredictedApps(apps);
-            }
+            apps = mLauncherCallbacks.getPredictedApps();
+        }
+        if (apps == null && FeatureFlags.LAUNCHER3_APP_PREDICTIONS) {
+            apps = LauncherAppState.getInstance().getAppLaunchPredictor().getPredictedApps();
+        }
+        if (apps != null) {
+            mAppsView.setPredictedApps(apps);
         }
     }
 
@@ -4764,6 +4779,15 @@ public class Launcher extends Activity
         }
     }
 
+    /**
+     * Called by {@link LauncherAppWidgetHost} when the widget providers changed.
+     */
+    public void onWidgetProvidersChanged() {
+        if (mWorkspace != null && mWorkspace.getState().shouldUpdateWidget) {
+            mModel.onWidgetProvidersChanged(this, mWidgetsView.isEmpty());
+        }
+    }
+
     private int mapConfigurationOriActivityInfoOri(int configOri) {
         final Display d = getWindowManager().getDefaultDisplay();
         int naturalOri = Configuration.ORIENTATION_LANDSCAPE;
@@ -5096,6 +5120,17 @@ public class Launcher extends Activity
                 writer.println("  " + sDumpLogs.get(i));
             }
         }
+        writer.println(prefix + DefaultAppSearchAlgorithm.getLatencyStats());
+        writer.println(prefix + AllAppsRecyclerView.getFirstOpenFrameTimes());
+        writer.println(prefix + AllAppsRecyclerView.getScrollFrameTimes());
+        if (mModel != null) {
+            mModel.dumpBindStats(prefix, writer);
+        }
+        LauncherAppState app = LauncherAppState.getInstanceNoCreate();
+        if (app != null) {
+            app.getWidgetCache().dump(prefix, writer);
+            writer.println(prefix + app.getBitmapPool());
+        }
         if (mLauncherCallbacks != null) {
             mLauncherCallbacks.dump(prefix, fd, writer, args);
         }
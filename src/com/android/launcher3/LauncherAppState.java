@@ -16,6 +16,7 @@
 
 package com.android.launcher3;
 
+import android.app.ActivityManager;
 import android.app.SearchManager;
 import android.content.Context;
 import android.content.Intent;
@@ -27,6 +28,8 @@ import com.android.launcher3.compat.LauncherAppsCompat;
 import com.android.launcher3.compat.PackageInstallerCompat;
 import com.android.launcher3.compat.UserManagerCompat;
 import com.android.launcher3.config.FeatureFlags;
+import com.android.launcher3.model.AppLaunchPredictor;
+import com.android.launcher3.util.BitmapPool;
 import com.android.launcher3.util.ConfigMonitor;
 import com.android.launcher3.util.TestingUtils;
 import com.android.launcher3.util.Thunk;
@@ -35,10 +38,16 @@ import java.lang.ref.WeakReference;
 
 public class LauncherAppState {
 
+    // Fraction of the memory class of the device used for the unused bitmaps of the pool.
+    private static final int BITMAP_POOL_FRACTION = 32;
+    private static final int BITMAP_POOL_FRACTION_LOW_RAM = 64;
+
     private final AppFilter mAppFilter;
     @Thunk final LauncherModel mModel;
     private final IconCache mIconCache;
     private final WidgetPreviewLoader mWidgetCache;
+    private final BitmapPool mBitmapPool;
+    private final AppLaunchPredictor mAppLaunchPredictor;
 
     private boolean mWallpaperChangedSinceLastCheck;
 
@@ -86,10 +95,15 @@ public class LauncherAppState {
 
         mInvariantDeviceProfile = new InvariantDeviceProfile(sContext);
         mIconCache = new IconCache(sContext, mInvariantDeviceProfile);
-        mWidgetCache = new WidgetPreviewLoader(sContext, mIconCache);
+        ActivityManager am = (ActivityManager) sContext.getSystemService(Context.ACTIVITY_SERVICE);
+        boolean isLowRam = Utilities.ATLEAST_KITKAT && am.isLowRamDevice();
+        mBitmapPool = new BitmapPool(am.getMemoryClass() * 1024L * 1024L
+                / (isLowRam ? BITMAP_POOL_FRACTION_LOW_RAM : BITMAP_POOL_FRACTION));
+        mWidgetCache = new WidgetPreviewLoader(sContext, mIconCache, mBitmapPool);
 
         mAppFilter = AppFilter.loadByName(sContext.getString(R.string.app_filter_class));
         mModel = new LauncherModel(this, mIconCache, mAppFilter);
+        mAppLaunchPredictor = new AppLaunchPredictor(sContext, LauncherModel.getWorkerLooper());
 
         LauncherAppsCompat.getInstance(sContext).addOnAppsChangedCallback(mModel);
 
@@ -162,6 +176,14 @@ public class LauncherAppState {
         return mWidgetCache;
     }
 
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    public AppLaunchPredictor getAppLaunchPredictor() {
+        return mAppLaunchPredictor;
+    }
+
     public void onWallpaperChanged() {
         mWallpaperChangedSinceLastCheck = true;
     }
@@ -57,13 +57,19 @@ import com.android.launcher3.compat.PackageInstallerCompat;
 import com.android.launcher3.compat.PackageInstallerCompat.PackageInstallInfo;
 import com.android.launcher3.compat.UserHandleCompat;
 import com.android.launcher3.compat.UserManagerCompat;
+import com.android.launcher3.config.FeatureFlags;
+import com.android.launcher3.model.BindChunkPolicy;
+import com.android.launcher3.model.FavoritesRowParser;
 import com.android.launcher3.model.GridSizeMigrationTask;
+import com.android.launcher3.model.PackageValidityCache;
 import com.android.launcher3.model.WidgetsModel;
+import com.android.launcher3.model.WorkspaceSnapshot;
 import com.android.launcher3.util.ComponentKey;
 import com.android.launcher3.util.CursorIconInfo;
 import com.android.launcher3.util.FlagOp;
 import com.android.launcher3.util.LongArrayMap;
 import com.android.launcher3.util.ManagedProfileHeuristic;
+import com.android.launcher3.util.ModCountArrayList;
 import com.android.launcher3.util.PackageManagerHelper;
 import com.android.launcher3.util.StringFilter;
 import com.android.launcher3.util.Thunk;
@@ -73,6 +79,7 @@ import com.mediatek.launcher3.AllApps;
 import com.mediatek.launcher3.AllAppsListPluginEx;
 import com.mediatek.launcher3.LauncherLog;
 
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
 import java.net.URISyntaxException;
 import java.security.InvalidParameterException;
@@ -104,14 +111,22 @@ public class LauncherModel extends BroadcastReceiver
     public static final int LOADER_FLAG_CLEAR_WORKSPACE = 1 << 0;
     public static final int LOADER_FLAG_MIGRATE_SHORTCUTS = 1 << 1;
 
-    private static final int ITEMS_CHUNK = 6; // batch size for the workspace icons
     private static final long INVALID_SCREEN_ID = -1L;
 
+    // Widget provider changes are handled after this delay, so that the incremental update of a
+    // package event which caused them has run, and a full refresh can be avoided.
+    private static final long PROVIDERS_CHANGED_DELAY_MS = 1000;
+
+    // Column added to the workspace query, which is 1 for the items loaded with the first page.
+    private static final String COLUMN_FIRST_PAGE = "firstPage";
+
     private final boolean mOldContentProviderExists;
 
     @Thunk final LauncherAppState mApp;
     @Thunk final Object mLock = new Object();
     @Thunk DeferredHandler mHandler = new DeferredHandler();
+    // Sizes the chunks of workspace items bound on the main thread
+    @Thunk final BindChunkPolicy mBindChunkPolicy = new BindChunkPolicy();
     @Thunk LoaderTask mLoaderTask;
     @Thunk boolean mIsLoaderTaskRunning;
     @Thunk boolean mHasLoaderCompletedOnce;
@@ -148,6 +163,8 @@ public class LauncherModel extends BroadcastReceiver
     private final AllAppsList mBgAllAppsList;
     // Entire list of widgets.
     private final WidgetsModel mBgWidgetsModel;
+    // Time of the last incremental update of the widgets for a package event.
+    @Thunk long mLastWidgetsPackageUpdateTime;
 
     // The lock that must be acquired before referencing any static bg data structures.  Unlike
     // other locks, this one can generally be held long-term because we never expect any of these
@@ -162,17 +179,21 @@ public class LauncherModel extends BroadcastReceiver
     // sBgWorkspaceItems is passed to bindItems, which expects a list of all folders and shortcuts
     //       created by LauncherModel that are directly on the home screen (however, no widgets or
     //       shortcuts within folders).
-    static final ArrayList<ItemInfo> sBgWorkspaceItems = new ArrayList<ItemInfo>();
+    static final ModCountArrayList<ItemInfo> sBgWorkspaceItems = new ModCountArrayList<>();
 
     // sBgAppWidgets is all LauncherAppWidgetInfo created by LauncherModel. Passed to bindAppWidget()
-    static final ArrayList<LauncherAppWidgetInfo> sBgAppWidgets =
-        new ArrayList<LauncherAppWidgetInfo>();
+    static final ModCountArrayList<LauncherAppWidgetInfo> sBgAppWidgets =
+        new ModCountArrayList<>();
 
     // sBgFolders is all FolderInfos created by LauncherModel. Passed to bindFolders()
     static final LongArrayMap<FolderInfo> sBgFolders = new LongArrayMap<>();
 
     // sBgWorkspaceScreens is the ordered set of workspace screens.
-    static final ArrayList<Long> sBgWorkspaceScreens = new ArrayList<Long>();
+    static final ModCountArrayList<Long> sBgWorkspaceScreens = new ModCountArrayList<>();
+
+    // The last snapshot of the static bg data structures above, shared by the binds until any of
+    // them changes. See getWorkspaceSnapshot().
+    private static volatile WorkspaceSnapshot sBgSnapshot;
 
     // sPendingPackages is a set of packages which could be on sdcard and are not available yet
     static final HashMap<UserHandleCompat, HashSet<String>> sPendingPackages =
@@ -609,16 +630,15 @@ public class LauncherModel extends BroadcastReceiver
     /** Unbinds all the sBgWorkspaceItems and sBgAppWidgets on the main thread */
     void unbindWorkspaceItemsOnMainThread() {
         // Ensure that we don't use the same workspace items data structure on the main thread
-        // by making a copy of workspace items first.
-        final ArrayList<ItemInfo> tmpItems = new ArrayList<ItemInfo>();
-        synchronized (sBgLock) {
-            tmpItems.addAll(sBgWorkspaceItems);
-            tmpItems.addAll(sBgAppWidgets);
-        }
+        // by using a snapshot of the workspace items.
+        final WorkspaceSnapshot snapshot = getWorkspaceSnapshot();
         Runnable r = new Runnable() {
                 @Override
                 public void run() {
-                   for (ItemInfo item : tmpItems) {
+                   for (ItemInfo item : snapshot.workspaceItems) {
+                       item.unbind();
+                   }
+                   for (ItemInfo item : snapshot.appWidgets) {
                        item.unbind();
                    }
                 }
@@ -626,6 +646,29 @@ public class LauncherModel extends BroadcastReceiver
         runOnMainThread(r);
     }
 
+    private static long getBgVersionLocked() {
+        return (long) sBgItemsIdMap.getModCount() + sBgFolders.getModCount()
+                + sBgWorkspaceItems.getModCount() + sBgAppWidgets.getModCount()
+                + sBgWorkspaceScreens.getModCount();
+    }
+
+    /**
+     * Returns an immutable snapshot of the static bg data structures. The same snapshot is
+     * returned until any of them changes, so that binding again does not copy them.
+     */
+    static WorkspaceSnapshot getWorkspaceSnapshot() {
+        WorkspaceSnapshot snapshot = sBgSnapshot;
+        synchronized (sBgLock) {
+            long version = getBgVersionLocked();
+            if (snapshot == null || snapshot.version != version) {
+                snapshot = new WorkspaceSnapshot(version, sBgWorkspaceItems, sBgAppWidgets,
+                        sBgWorkspaceScreens, sBgFolders, sBgItemsIdMap);
+                sBgSnapshot = snapshot;
+            }
+        }
+        return snapshot;
+    }
+
     /**
      * Adds an item to the DB if it was not created previously, or move it to a new
      * <container, screen, cellX, cellY>
@@ -1530,9 +1573,17 @@ public class LauncherModel extends BroadcastReceiver
         @Thunk boolean mLoadAndBindStepFinished;
         private int mFlags;
 
+        // Screens and items bound by bindFirstPage() while the workspace was still loading.
+        private List<Long> mFirstPageBoundScreens;
+        private HashSet<Long> mFirstPageBoundIds;
+
+        // Package and activity queries made during this load.
+        private final PackageValidityCache mValidityCache;
+
         LoaderTask(Context context, int flags) {
             mContext = context;
             mFlags = flags;
+            mValidityCache = new PackageValidityCache(mLauncherApps);
         }
 
         private void loadAndBindWorkspace() {
@@ -1847,7 +1898,6 @@ public class LauncherModel extends BroadcastReceiver
             final ContentResolver contentResolver = context.getContentResolver();
             final PackageManager manager = context.getPackageManager();
             final boolean isSafeMode = manager.isSafeMode();
-            final LauncherAppsCompat launcherApps = LauncherAppsCompat.getInstance(context);
             final boolean isSdCardReady = context.registerReceiver(null,
                     new IntentFilter(StartupReceiver.SYSTEM_READY)) != null;
 
@@ -1877,17 +1927,35 @@ public class LauncherModel extends BroadcastReceiver
                 LauncherAppState.getLauncherProvider().loadDefaultFavoritesIfNecessary();
             }
 
+            // The items of the hotseat and the current page are loaded first, and bound before
+            // the rest of the workspace is loaded.
+            final ArrayList<Long> screenIds = loadWorkspaceScreensDb(mContext);
+            final Callbacks oldCallbacks = mCallbacks.get();
+            final String firstPageSelection = getFirstPageSelection(oldCallbacks, screenIds);
+            mFirstPageBoundScreens = null;
+            mFirstPageBoundIds = null;
+
+            // Warm up the icon cache before the items are loaded, instead of querying the
+            // icon DB separately for every item.
+            preloadWorkspaceIcons(contentResolver, firstPageSelection);
+
             synchronized (sBgLock) {
                 clearSBgDataStructures();
                 final HashMap<String, Integer> installingPkgs = PackageInstallerCompat
                         .getInstance(mContext).updateAndGetActiveSessionCache();
-                sBgWorkspaceScreens.addAll(loadWorkspaceScreensDb(mContext));
+                sBgWorkspaceScreens.addAll(screenIds);
 
                 final ArrayList<Long> itemsToRemove = new ArrayList<>();
                 final ArrayList<Long> restoredRows = new ArrayList<>();
                 final Uri contentUri = LauncherSettings.Favorites.CONTENT_URI;
                 if (DEBUG_LOADERS) Log.d(TAG, "loading model from " + contentUri);
-                final Cursor c = contentResolver.query(contentUri, null, null, null, null);
+                final Cursor c = firstPageSelection == null
+                        ? contentResolver.query(contentUri, null, null, null, null)
+                        : contentResolver.query(contentUri,
+                                new String[] {"*", "(" + firstPageSelection + ") AS "
+                                        + COLUMN_FIRST_PAGE},
+                                null, null,
+                                COLUMN_FIRST_PAGE + " DESC, " + LauncherSettings.Favorites._ID);
 
                 // +1 for the hotseat (it can be larger than the workspace)
                 // Load workspace in reverse order to ensure that latest items are loaded first (and
@@ -1928,6 +1996,8 @@ public class LauncherModel extends BroadcastReceiver
                     final int optionsIndex = c.getColumnIndexOrThrow(
                             LauncherSettings.Favorites.OPTIONS);
                     final CursorIconInfo cursorIconInfo = new CursorIconInfo(c);
+                    int firstPageIndex = firstPageSelection == null
+                            ? -1 : c.getColumnIndexOrThrow(COLUMN_FIRST_PAGE);
 
                     final LongSparseArray<UserHandleCompat> allUsers = new LongSparseArray<>();
                     final LongSparseArray<Boolean> quietMode = new LongSparseArray<>();
@@ -1937,6 +2007,17 @@ public class LauncherModel extends BroadcastReceiver
                         quietMode.put(serialNo, mUserManager.isQuietModeEnabled(user));
                     }
 
+                    // Parse and validate the rows in parallel, before building the items.
+                    final long loopStartTime = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
+                    if (firstPageIndex < 0) {
+                        seedValidityCache(allUsers);
+                    }
+                    final FavoritesRowParser rowParser =
+                            new FavoritesRowParser(mValidityCache, allUsers);
+                    if (FeatureFlags.LAUNCHER3_PARALLEL_WORKSPACE_PARSE) {
+                        rowParser.prefetch(c, firstPageIndex);
+                    }
+
                     ShortcutInfo info;
                     String intentDescription;
                     LauncherAppWidgetInfo appWidgetInfo;
@@ -1948,6 +2029,17 @@ public class LauncherModel extends BroadcastReceiver
                     String targetPackage;
 
                     while (!mStopped && c.moveToNext()) {
+                        if (firstPageIndex >= 0 && c.getInt(firstPageIndex) == 0) {
+                            // All the items of the first page are loaded.
+                            firstPageIndex = -1;
+                            bindFirstPage(oldCallbacks, t);
+                            seedValidityCache(allUsers);
+                            preloadWorkspaceIcons(contentResolver,
+                                    "NOT (" + firstPageSelection + ")");
+                            if (FeatureFlags.LAUNCHER3_PARALLEL_WORKSPACE_PARSE) {
+                                rowParser.prefetch(c, -1);
+                            }
+                        }
                         try {
                             int itemType = c.getInt(itemTypeIndex);
                             boolean restored = 0 != c.getInt(restoredIndex);
@@ -1971,13 +2063,13 @@ public class LauncherModel extends BroadcastReceiver
                                     continue;
                                 }
                                 try {
-                                    intent = Intent.parseUri(intentDescription, 0);
+                                    intent = rowParser.parseIntent(id, intentDescription);
                                     ComponentName cn = intent.getComponent();
                                     if (cn != null && cn.getPackageName() != null) {
-                                        boolean validPkg = launcherApps.isPackageEnabledForProfile(
+                                        boolean validPkg = mValidityCache.isPackageEnabled(
                                                 cn.getPackageName(), user);
                                         boolean validComponent = validPkg &&
-                                                launcherApps.isActivityEnabledForProfile(cn, user);
+                                                mValidityCache.isActivityEnabled(cn, user);
                                         if (validPkg) {
                                             targetPackage = cn.getPackageName();
                                         }
@@ -2384,6 +2476,12 @@ public class LauncherModel extends BroadcastReceiver
                             Launcher.addDumpLog(TAG, "Desktop items loading interrupted", e, true);
                         }
                     }
+                    if (DEBUG_LOADERS) {
+                        long loopTime = SystemClock.uptimeMillis() - loopStartTime;
+                        Log.d(TAG, "workspace rows: " + rowParser.getStats() + ", build "
+                                + (loopTime - rowParser.getPrefetchMs()) + "ms, validity: "
+                                + mValidityCache.getStats());
+                    }
                 } finally {
                     if (c != null) {
                         c.close();
@@ -2415,18 +2513,11 @@ public class LauncherModel extends BroadcastReceiver
                     }
                 }
 
-                // Sort all the folder items and make sure the first 3 items are high resolution.
                 for (FolderInfo folder : sBgFolders) {
-                    Collections.sort(folder.contents, Folder.ITEM_POS_COMPARATOR);
-                    int pos = 0;
-                    for (ShortcutInfo info : folder.contents) {
-                        if (info.usingLowResIcon) {
-                            info.updateIcon(mIconCache, false);
-                        }
-                        pos ++;
-                        if (pos >= FolderIcon.NUM_ITEMS_IN_PREVIEW) {
-                            break;
-                        }
+                    // The folders bound with the first page were sorted with all their contents
+                    // before, and may be in use on the main thread.
+                    if (mFirstPageBoundIds == null || !mFirstPageBoundIds.contains(folder.id)) {
+                        sortFolderContents(folder);
                     }
                 }
 
@@ -2461,6 +2552,22 @@ public class LauncherModel extends BroadcastReceiver
                     updateWorkspaceScreenOrder(context, sBgWorkspaceScreens);
                 }
 
+                // Keep the icons bound to the workspace in the memory cache.
+                HashSet<ComponentKey> pinnedIcons = new HashSet<>();
+                for (ItemInfo item : sBgItemsIdMap) {
+                    if (item instanceof ShortcutInfo && item.itemType ==
+                            LauncherSettings.Favorites.ITEM_TYPE_APPLICATION) {
+                        ComponentName cn = ((ShortcutInfo) item).getTargetComponent();
+                        if (cn != null && item.user != null) {
+                            pinnedIcons.add(new ComponentKey(cn, item.user));
+                        }
+                    }
+                }
+                mIconCache.setPinnedComponents(pinnedIcons);
+
+                // Publish the snapshot of the loaded workspace, for bindWorkspace to use
+                getWorkspaceSnapshot();
+
                 if (DEBUG_LOADERS) {
                     Log.d(TAG, "loaded workspace in " + (SystemClock.uptimeMillis()-t) + "ms");
                     Log.d(TAG, "workspace layout: ");
@@ -2488,6 +2595,202 @@ public class LauncherModel extends BroadcastReceiver
             }
         }
 
+        /**
+         * Loads the activities of all the users in {@link #mValidityCache}, so that most items are
+         * validated in bulk instead of checking every package and activity separately. This is a
+         * large query, so until the first page is bound the items are checked separately.
+         */
+        private void seedValidityCache(LongSparseArray<UserHandleCompat> allUsers) {
+            if (mAllAppsLoaded) {
+                return;
+            }
+            // The apps are loaded next anyway, and use the same activity lists.
+            for (int i = 0; i < allUsers.size(); i++) {
+                mValidityCache.getActivityList(null, allUsers.valueAt(i));
+            }
+        }
+
+        /**
+         * Sorts the folder items and makes sure the items in the folder preview are high
+         * resolution.
+         */
+        private void sortFolderContents(FolderInfo folder) {
+            Collections.sort(folder.contents, Folder.ITEM_POS_COMPARATOR);
+            int pos = 0;
+            for (ShortcutInfo info : folder.contents) {
+                if (info.usingLowResIcon) {
+                    info.updateIcon(mIconCache, false);
+                }
+                pos ++;
+                if (pos >= FolderIcon.NUM_ITEMS_IN_PREVIEW) {
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Returns the selection matching the items of the hotseat and the current page, including
+         * the contents of their folders, or null if the workspace should be loaded in one pass.
+         */
+        private String getFirstPageSelection(Callbacks callbacks, ArrayList<Long> screenIds) {
+            if (!FeatureFlags.LAUNCHER3_INCREMENTAL_WORKSPACE_LOAD || callbacks == null) {
+                return null;
+            }
+            String pageItems = LauncherSettings.Favorites.CONTAINER + " = "
+                    + LauncherSettings.Favorites.CONTAINER_HOTSEAT;
+            int currentScreen = callbacks.getCurrentWorkspaceScreen();
+            if (currentScreen >= 0 && currentScreen < screenIds.size()) {
+                pageItems = "(" + pageItems + " OR (" + LauncherSettings.Favorites.CONTAINER
+                        + " = " + LauncherSettings.Favorites.CONTAINER_DESKTOP + " AND "
+                        + LauncherSettings.Favorites.SCREEN + " = "
+                        + screenIds.get(currentScreen) + "))";
+            }
+            return pageItems + " OR " + LauncherSettings.Favorites.CONTAINER + " IN (SELECT "
+                    + LauncherSettings.Favorites._ID + " FROM "
+                    + LauncherSettings.Favorites.TABLE_NAME + " WHERE " + pageItems + ")";
+        }
+
+        /**
+         * Binds the items loaded so far, which are the items of the hotseat and the current page,
+         * while the rest of the workspace is still loading. The remaining items are bound by
+         * {@link #bindWorkspace}. Must be called with sBgLock held.
+         */
+        private void bindFirstPage(final Callbacks oldCallbacks, long loadStartTime) {
+            if (oldCallbacks == null) {
+                return;
+            }
+            final WorkspaceSnapshot snapshot = getWorkspaceSnapshot();
+            for (FolderInfo folder : snapshot.folders) {
+                sortFolderContents(folder);
+            }
+            final ArrayList<ItemInfo> workspaceItems = new ArrayList<>(snapshot.workspaceItems);
+            sortWorkspaceItemsSpatially(workspaceItems);
+
+            mFirstPageBoundScreens = snapshot.orderedScreenIds;
+            mFirstPageBoundIds = new HashSet<>();
+            for (ItemInfo item : snapshot.itemsIdMap) {
+                mFirstPageBoundIds.add(item.id);
+            }
+
+            unbindWorkspaceItemsOnMainThread();
+            runOnMainThread(new Runnable() {
+                public void run() {
+                    Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+                    if (callbacks != null) {
+                        callbacks.startBinding();
+                    }
+                }
+            });
+            bindWorkspaceScreens(oldCallbacks, snapshot.orderedScreenIds);
+            bindWorkspaceItems(oldCallbacks, workspaceItems, snapshot.appWidgets, snapshot.folders,
+                    null);
+
+            if (DEBUG_LOADERS) {
+                Log.d(TAG, "bound " + mFirstPageBoundIds.size() + " items of the first page in "
+                        + (SystemClock.uptimeMillis() - loadStartTime) + "ms");
+            }
+        }
+
+        /**
+         * Returns true if the items bound by {@link #bindFirstPage} are still valid after the
+         * whole workspace was loaded, in which case only the remaining items need to be bound.
+         */
+        private boolean isFirstPageBound(List<Long> orderedScreenIds,
+                LongArrayMap<ItemInfo> itemsIdMap) {
+            if (mFirstPageBoundIds == null || !orderedScreenIds.equals(mFirstPageBoundScreens)) {
+                return false;
+            }
+            for (long id : mFirstPageBoundIds) {
+                if (itemsIdMap.get(id) == null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Filters the items which were not bound by {@link #bindFirstPage}. */
+        private void filterUnboundItems(HashSet<Long> boundIds,
+                List<ItemInfo> workspaceItems,
+                List<LauncherAppWidgetInfo> appWidgets,
+                LongArrayMap<FolderInfo> folders,
+                ArrayList<ItemInfo> otherWorkspaceItems,
+                ArrayList<LauncherAppWidgetInfo> otherAppWidgets,
+                LongArrayMap<FolderInfo> otherFolders) {
+            for (ItemInfo info : workspaceItems) {
+                if (info != null && !boundIds.contains(info.id)) {
+                    otherWorkspaceItems.add(info);
+                }
+            }
+            for (LauncherAppWidgetInfo widget : appWidgets) {
+                if (widget != null && !boundIds.contains(widget.id)) {
+                    otherAppWidgets.add(widget);
+                }
+            }
+            int total = folders.size();
+            for (int i = 0; i < total; i++) {
+                if (folders.valueAt(i) != null && !boundIds.contains(folders.keyAt(i))) {
+                    otherFolders.put(folders.keyAt(i), folders.valueAt(i));
+                }
+            }
+        }
+
+        /**
+         * Loads the icon cache entries of the app shortcuts in the workspace matching
+         * {@param selection} in bulk. Icons of folder items which are not part of the folder
+         * preview are loaded in low-res.
+         */
+        private void preloadWorkspaceIcons(ContentResolver contentResolver, String selection) {
+            final long t = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
+            final Cursor c = contentResolver.query(LauncherSettings.Favorites.CONTENT_URI,
+                    new String[] {
+                            LauncherSettings.Favorites.INTENT,
+                            LauncherSettings.Favorites.PROFILE_ID,
+                            LauncherSettings.Favorites.CONTAINER,
+                            LauncherSettings.Favorites.RANK },
+                    LauncherSettings.Favorites.ITEM_TYPE + " = "
+                            + LauncherSettings.Favorites.ITEM_TYPE_APPLICATION
+                            + (selection == null ? "" : " AND (" + selection + ")"),
+                    null, null);
+            if (c == null) {
+                return;
+            }
+
+            final ArrayList<ComponentKey> highResKeys = new ArrayList<>();
+            final ArrayList<ComponentKey> lowResKeys = new ArrayList<>();
+            try {
+                final LongSparseArray<UserHandleCompat> allUsers = new LongSparseArray<>();
+                for (UserHandleCompat user : mUserManager.getUserProfiles()) {
+                    allUsers.put(mUserManager.getSerialNumberForUser(user), user);
+                }
+                while (!mStopped && c.moveToNext()) {
+                    UserHandleCompat user = allUsers.get(c.getLong(1));
+                    if (user == null) {
+                        continue;
+                    }
+                    try {
+                        ComponentName cn = Intent.parseUri(c.getString(0), 0).getComponent();
+                        if (cn == null) {
+                            continue;
+                        }
+                        boolean useLowResIcon = c.getInt(2) >= 0 &&
+                                c.getInt(3) >= FolderIcon.NUM_ITEMS_IN_PREVIEW;
+                        (useLowResIcon ? lowResKeys : highResKeys).add(new ComponentKey(cn, user));
+                    } catch (URISyntaxException e) {
+                        // Invalid items are removed during the actual load.
+                    }
+                }
+            } finally {
+                c.close();
+            }
+
+            mIconCache.preloadEntries(highResKeys, false);
+            mIconCache.preloadEntries(lowResKeys, true);
+            if (DEBUG_LOADERS) {
+                Log.d(TAG, "preloaded " + (highResKeys.size() + lowResKeys.size())
+                        + " workspace icons in " + (SystemClock.uptimeMillis() - t) + "ms");
+            }
+        }
+
         /**
          * Partially updates the item without any notification. Must be called on the worker thread.
          */
@@ -2502,29 +2805,18 @@ public class LauncherModel extends BroadcastReceiver
         /** Filters the set of items who are directly or indirectly (via another container) on the
          * specified screen. */
         private void filterCurrentWorkspaceItems(long currentScreenId,
-                ArrayList<ItemInfo> allWorkspaceItems,
+                List<ItemInfo> allWorkspaceItems,
                 ArrayList<ItemInfo> currentScreenItems,
                 ArrayList<ItemInfo> otherScreenItems) {
-            // Purge any null ItemInfos
-            Iterator<ItemInfo> iter = allWorkspaceItems.iterator();
-            while (iter.hasNext()) {
-                ItemInfo i = iter.next();
-                if (i == null) {
-                    iter.remove();
-                }
-            }
-
-            // Order the set of items by their containers first, this allows use to walk through the
-            // list sequentially, build up a list of containers that are in the specified screen,
-            // as well as all items in those containers.
+            // Walk through the items on the desktop and in the hotseat first, to build up the set
+            // of containers that are in the specified screen, and then through all the items in
+            // those containers. The list is shared and can not be sorted, null ItemInfos are
+            // skipped.
             Set<Long> itemsOnScreen = new HashSet<Long>();
-            Collections.sort(allWorkspaceItems, new Comparator<ItemInfo>() {
-                @Override
-                public int compare(ItemInfo lhs, ItemInfo rhs) {
-                    return Utilities.longCompare(lhs.container, rhs.container);
-                }
-            });
             for (ItemInfo info : allWorkspaceItems) {
+                if (info == null) {
+                    continue;
+                }
                 if (info.container == LauncherSettings.Favorites.CONTAINER_DESKTOP) {
                     if (info.screenId == currentScreenId) {
                         currentScreenItems.add(info);
@@ -2535,20 +2827,26 @@ public class LauncherModel extends BroadcastReceiver
                 } else if (info.container == LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
                     currentScreenItems.add(info);
                     itemsOnScreen.add(info.id);
+                }
+            }
+            for (ItemInfo info : allWorkspaceItems) {
+                if (info == null
+                        || info.container == LauncherSettings.Favorites.CONTAINER_DESKTOP
+                        || info.container == LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
+                    continue;
+                }
+                if (itemsOnScreen.contains(info.container)) {
+                    currentScreenItems.add(info);
+                    itemsOnScreen.add(info.id);
                 } else {
-                    if (itemsOnScreen.contains(info.container)) {
-                        currentScreenItems.add(info);
-                        itemsOnScreen.add(info.id);
-                    } else {
-                        otherScreenItems.add(info);
-                    }
+                    otherScreenItems.add(info);
                 }
             }
         }
 
         /** Filters the set of widgets which are on the specified screen. */
         private void filterCurrentAppWidgets(long currentScreenId,
-                ArrayList<LauncherAppWidgetInfo> appWidgets,
+                List<LauncherAppWidgetInfo> appWidgets,
                 ArrayList<LauncherAppWidgetInfo> currentScreenWidgets,
                 ArrayList<LauncherAppWidgetInfo> otherScreenWidgets) {
 
@@ -2609,7 +2907,8 @@ public class LauncherModel extends BroadcastReceiver
         }
 
         private void bindWorkspaceScreens(final Callbacks oldCallbacks,
-                final ArrayList<Long> orderedScreens) {
+                List<Long> screenIds) {
+            final ArrayList<Long> orderedScreens = new ArrayList<>(screenIds);
             final Runnable r = new Runnable() {
                 @Override
                 public void run() {
@@ -2624,24 +2923,38 @@ public class LauncherModel extends BroadcastReceiver
 
         private void bindWorkspaceItems(final Callbacks oldCallbacks,
                 final ArrayList<ItemInfo> workspaceItems,
-                final ArrayList<LauncherAppWidgetInfo> appWidgets,
+                final List<LauncherAppWidgetInfo> appWidgets,
                 final LongArrayMap<FolderInfo> folders,
                 ArrayList<Runnable> deferredBindRunnables) {
 
             final boolean postOnMainThread = (deferredBindRunnables != null);
-
-            // Bind the workspace items
-            int N = workspaceItems.size();
-            for (int i = 0; i < N; i += ITEMS_CHUNK) {
-                final int start = i;
-                final int chunkSize = (i+ITEMS_CHUNK <= N) ? ITEMS_CHUNK : (N-i);
+            // When called on the main thread (synchronous bind of the current page), the items are
+            // bound right away instead of being posted.
+            final boolean bindNow = !postOnMainThread
+                    && sWorkerThread.getThreadId() != Process.myTid();
+
+            // Bind the workspace items, a chunk at a time. Each chunk is sized from the time the
+            // previous ones took, and the next chunk is posted ahead of the other bind tasks.
+            if (!workspaceItems.isEmpty()) {
                 final Runnable r = new Runnable() {
+                    private int mStart = 0;
+
                     @Override
                     public void run() {
                         Callbacks callbacks = tryGetCallbacks(oldCallbacks);
-                        if (callbacks != null) {
-                            callbacks.bindItems(workspaceItems, start, start+chunkSize,
-                                    false);
+                        if (callbacks == null) {
+                            return;
+                        }
+                        do {
+                            int end = mBindChunkPolicy.getChunkEnd(workspaceItems, mStart);
+                            long startTime = System.nanoTime();
+                            callbacks.bindItems(workspaceItems, mStart, end, false);
+                            mBindChunkPolicy.onItemsBound(workspaceItems, mStart, end,
+                                    System.nanoTime() - startTime);
+                            mStart = end;
+                        } while (bindNow && mStart < workspaceItems.size());
+                        if (mStart < workspaceItems.size()) {
+                            mHandler.postAtFrontOfQueue(this);
                         }
                     }
                 };
@@ -2673,15 +2986,29 @@ public class LauncherModel extends BroadcastReceiver
                 }
             }
 
-            // Bind the widgets, one at a time
-            N = appWidgets.size();
-            for (int i = 0; i < N; i++) {
-                final LauncherAppWidgetInfo widget = appWidgets.get(i);
+            // Bind the widgets, as many at a time as fit in the bind budget
+            if (!appWidgets.isEmpty()) {
                 final Runnable r = new Runnable() {
+                    private int mStart = 0;
+
                     public void run() {
                         Callbacks callbacks = tryGetCallbacks(oldCallbacks);
-                        if (callbacks != null) {
-                            callbacks.bindAppWidget(widget);
+                        if (callbacks == null) {
+                            return;
+                        }
+                        do {
+                            int end = Math.min(appWidgets.size(),
+                                    mStart + mBindChunkPolicy.getWidgetChunkSize());
+                            long startTime = System.nanoTime();
+                            for (int i = mStart; i < end; i++) {
+                                callbacks.bindAppWidget(appWidgets.get(i));
+                            }
+                            mBindChunkPolicy.onWidgetsBound(end - mStart,
+                                    System.nanoTime() - startTime);
+                            mStart = end;
+                        } while (bindNow && mStart < appWidgets.size());
+                        if (mStart < appWidgets.size()) {
+                            mHandler.postAtFrontOfQueue(this);
                         }
                     }
                 };
@@ -2709,26 +3036,23 @@ public class LauncherModel extends BroadcastReceiver
                 return;
             }
 
-            // Save a copy of all the bg-thread collections
-            ArrayList<ItemInfo> workspaceItems = new ArrayList<ItemInfo>();
-            ArrayList<LauncherAppWidgetInfo> appWidgets =
-                    new ArrayList<LauncherAppWidgetInfo>();
-            ArrayList<Long> orderedScreenIds = new ArrayList<Long>();
-
-            final LongArrayMap<FolderInfo> folders;
-            final LongArrayMap<ItemInfo> itemsIdMap;
-
-            synchronized (sBgLock) {
-                workspaceItems.addAll(sBgWorkspaceItems);
-                appWidgets.addAll(sBgAppWidgets);
-                orderedScreenIds.addAll(sBgWorkspaceScreens);
-
-                folders = sBgFolders.clone();
-                itemsIdMap = sBgItemsIdMap.clone();
-            }
+            // Use the snapshot of all the bg-thread collections, which is only copied again if
+            // they changed since the last bind
+            final WorkspaceSnapshot snapshot = getWorkspaceSnapshot();
+            final List<ItemInfo> workspaceItems = snapshot.workspaceItems;
+            final List<LauncherAppWidgetInfo> appWidgets = snapshot.appWidgets;
+            final List<Long> orderedScreenIds = snapshot.orderedScreenIds;
+            final LongArrayMap<FolderInfo> folders = snapshot.folders;
+            final LongArrayMap<ItemInfo> itemsIdMap = snapshot.itemsIdMap;
 
             final boolean isLoadingSynchronously =
                     synchronizeBindPage != PagedView.INVALID_RESTORE_PAGE;
+            // Whether the hotseat and current page were already bound while loading.
+            final boolean firstPageBound = !isLoadingSynchronously
+                    && isFirstPageBound(orderedScreenIds, itemsIdMap);
+            final HashSet<Long> firstPageBoundIds = mFirstPageBoundIds;
+            mFirstPageBoundScreens = null;
+            mFirstPageBoundIds = null;
             int currScreen = isLoadingSynchronously ? synchronizeBindPage :
                 oldCallbacks.getCurrentWorkspaceScreen();
             if (currScreen >= orderedScreenIds.size()) {
@@ -2741,7 +3065,9 @@ public class LauncherModel extends BroadcastReceiver
 
             // Load all the items that are on the current page first (and in the process, unbind
             // all the existing workspace items before we call startBinding() below.
-            unbindWorkspaceItemsOnMainThread();
+            if (!firstPageBound) {
+                unbindWorkspaceItemsOnMainThread();
+            }
 
             // Separate the items that are on the current screen, and all the other remaining items
             ArrayList<ItemInfo> currentWorkspaceItems = new ArrayList<ItemInfo>();
@@ -2753,27 +3079,34 @@ public class LauncherModel extends BroadcastReceiver
             LongArrayMap<FolderInfo> currentFolders = new LongArrayMap<>();
             LongArrayMap<FolderInfo> otherFolders = new LongArrayMap<>();
 
-            filterCurrentWorkspaceItems(currentScreenId, workspaceItems, currentWorkspaceItems,
-                    otherWorkspaceItems);
-            filterCurrentAppWidgets(currentScreenId, appWidgets, currentAppWidgets,
-                    otherAppWidgets);
-            filterCurrentFolders(currentScreenId, itemsIdMap, folders, currentFolders,
-                    otherFolders);
+            if (firstPageBound) {
+                filterUnboundItems(firstPageBoundIds, workspaceItems, appWidgets, folders,
+                        otherWorkspaceItems, otherAppWidgets, otherFolders);
+            } else {
+                filterCurrentWorkspaceItems(currentScreenId, workspaceItems,
+                        currentWorkspaceItems, otherWorkspaceItems);
+                filterCurrentAppWidgets(currentScreenId, appWidgets, currentAppWidgets,
+                        otherAppWidgets);
+                filterCurrentFolders(currentScreenId, itemsIdMap, folders, currentFolders,
+                        otherFolders);
+            }
             sortWorkspaceItemsSpatially(currentWorkspaceItems);
             sortWorkspaceItemsSpatially(otherWorkspaceItems);
 
-            // Tell the workspace that we're about to start binding items
-            r = new Runnable() {
-                public void run() {
-                    Callbacks callbacks = tryGetCallbacks(oldCallbacks);
-                    if (callbacks != null) {
-                        callbacks.startBinding();
+            if (!firstPageBound) {
+                // Tell the workspace that we're about to start binding items
+                r = new Runnable() {
+                    public void run() {
+                        Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+                        if (callbacks != null) {
+                            callbacks.startBinding();
+                        }
                     }
-                }
-            };
-            runOnMainThread(r);
+                };
+                runOnMainThread(r);
 
-            bindWorkspaceScreens(oldCallbacks, orderedScreenIds);
+                bindWorkspaceScreens(oldCallbacks, orderedScreenIds);
+            }
 
             // Load items on the current page
             bindWorkspaceItems(oldCallbacks, currentWorkspaceItems, currentAppWidgets,
@@ -2935,7 +3268,8 @@ public class LauncherModel extends BroadcastReceiver
             for (UserHandleCompat user : profiles) {
                 // Query for the set of apps
                 final long qiaTime = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
-                final List<LauncherActivityInfoCompat> apps = mLauncherApps.getActivityList(null, user);
+                final List<LauncherActivityInfoCompat> apps =
+                        mValidityCache.getActivityList(null, user);
                 if (DEBUG_LOADERS) {
                     Log.d(TAG, "getActivityList took "
                             + (SystemClock.uptimeMillis()-qiaTime) + "ms for user " + user);
@@ -2947,6 +3281,14 @@ public class LauncherModel extends BroadcastReceiver
                     return;
                 }
                 boolean quietMode = mUserManager.isQuietModeEnabled(user);
+
+                // Load all the cached low-res icons in bulk
+                ArrayList<ComponentKey> keys = new ArrayList<>(apps.size());
+                for (LauncherActivityInfoCompat app : apps) {
+                    keys.add(new ComponentKey(app.getComponentName(), user));
+                }
+                mIconCache.preloadEntries(keys, true /* lowRes */);
+
                 // Create the ApplicationInfos
                 for (int i = 0; i < apps.size(); i++) {
                     LauncherActivityInfoCompat app = apps.get(i);
@@ -3006,6 +3348,7 @@ public class LauncherModel extends BroadcastReceiver
             if (DEBUG_LOADERS) {
                 Log.d(TAG, "Icons processed in "
                         + (SystemClock.uptimeMillis() - loadTime) + "ms");
+                Log.d(TAG, "Package validity: " + mValidityCache.getStats());
             }
         }
 
@@ -3139,6 +3482,7 @@ public class LauncherModel extends BroadcastReceiver
                 return;
             }
             final Context context = mApp.getContext();
+            final PackageValidityCache validityCache = new PackageValidityCache(mLauncherApps);
 
             final String[] packages = mPackages;
             final int N = packages.length;
@@ -3148,8 +3492,10 @@ public class LauncherModel extends BroadcastReceiver
                 case OP_ADD: {
                     for (int i=0; i<N; i++) {
                         if (DEBUG_LOADERS) Log.d(TAG, "mAllAppsList.addPackage " + packages[i]);
-                        mIconCache.updateIconsForPkg(packages[i], mUser);
-                        mBgAllAppsList.addPackage(context, packages[i], mUser);
+                        List<LauncherActivityInfoCompat> activities =
+                                validityCache.getActivityList(packages[i], mUser);
+                        mIconCache.updateIconsForPkg(packages[i], mUser, activities);
+                        mBgAllAppsList.addPackage(context, activities, mUser);
                     }
 
                     ManagedProfileHeuristic heuristic = ManagedProfileHeuristic.get(context, mUser);
@@ -3161,8 +3507,10 @@ public class LauncherModel extends BroadcastReceiver
                 case OP_UPDATE:
                     for (int i=0; i<N; i++) {
                         if (DEBUG_LOADERS) Log.d(TAG, "mAllAppsList.updatePackage " + packages[i]);
-                        mIconCache.updateIconsForPkg(packages[i], mUser);
-                        mBgAllAppsList.updatePackage(context, packages[i], mUser);
+                        List<LauncherActivityInfoCompat> activities =
+                                validityCache.getActivityList(packages[i], mUser);
+                        mIconCache.updateIconsForPkg(packages[i], mUser, activities);
+                        mBgAllAppsList.updatePackage(context, packages[i], activities, mUser);
                         mApp.getWidgetCache().removePackage(packages[i], mUser);
                     }
                     // Since package was just updated, the target must be available now.
@@ -3397,7 +3745,7 @@ public class LauncherModel extends BroadcastReceiver
             } else if (mOp == OP_UPDATE) {
                 // Mark disabled packages in the broadcast to be removed
                 for (int i=0; i<N; i++) {
-                    if (isPackageDisabled(context, packages[i], mUser)) {
+                    if (!validityCache.isPackageEnabled(packages[i], mUser)) {
                         removedPackages.add(packages[i]);
                     }
                 }
@@ -3418,6 +3766,8 @@ public class LauncherModel extends BroadcastReceiver
 
                 // Remove any queued items from the install queue
                 InstallShortcutReceiver.removeFromInstallQueue(context, removedPackages, mUser);
+                mApp.getAppLaunchPredictor().removeApps(
+                        removedPackages, removedComponents, mUser);
 
                 // Call the components-removed callback
                 final Callbacks callbacks = getCallback();
@@ -3445,19 +3795,22 @@ public class LauncherModel extends BroadcastReceiver
                 });
             }
 
-            // Notify launcher of widget update. From marshmallow onwards we use AppWidgetHost to
-            // get widget update signals.
-            if (!Utilities.ATLEAST_MARSHMALLOW &&
-                    (mOp == OP_ADD || mOp == OP_REMOVE || mOp == OP_UPDATE)) {
-                final Callbacks callbacks = getCallback();
-                mHandler.post(new Runnable() {
-                    public void run() {
-                        Callbacks cb = getCallback();
-                        if (callbacks == cb && cb != null) {
-                            callbacks.notifyWidgetProvidersChanged();
-                        }
+            // Update the widgets and shortcuts of the changed packages only. From marshmallow
+            // onwards AppWidgetHost also signals the provider changes which have no package event.
+            if (mOp == OP_ADD || mOp == OP_REMOVE || mOp == OP_UPDATE
+                    || mOp == OP_UNAVAILABLE) {
+                final WidgetsModel model = mBgWidgetsModel.updatePackagesAndClone(
+                        context, new HashSet<>(Arrays.asList(packages)), mUser);
+                if (model != null) {
+                    mLastWidgetsPackageUpdateTime = SystemClock.uptimeMillis();
+                    final Callbacks callbacks = getCallback();
+                    bindWidgetsModel(callbacks, model);
+                    if (FeatureFlags.LAUNCHER3_WIDGET_PREVIEW_PREGENERATION
+                            && callbacks instanceof Launcher) {
+                        mApp.getWidgetCache().pregeneratePreviews(
+                                (Launcher) callbacks, model.getRawList());
                     }
-                });
+                }
             }
         }
     }
@@ -3474,6 +3827,31 @@ public class LauncherModel extends BroadcastReceiver
         });
     }
 
+    /**
+     * Refreshes the widgets and shortcuts after a change of the widget providers, unless a
+     * package event updated them around the change and the model already has all the installed
+     * providers. From marshmallow onwards the providers changes are also signalled for the
+     * package events.
+     */
+    public void onWidgetProvidersChanged(final Callbacks callbacks, final boolean bindFirst) {
+        final long changeTime = SystemClock.uptimeMillis();
+        sWorker.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                // A change of unrelated packages or users leaves providers which are missing from
+                // the model, or which are no longer installed.
+                if (mLastWidgetsPackageUpdateTime >= changeTime - PROVIDERS_CHANGED_DELAY_MS
+                        && mBgWidgetsModel.hasAllProviders()) {
+                    if (DEBUG_LOADERS) {
+                        Log.d(TAG, "Widget providers already updated by a package event");
+                    }
+                    return;
+                }
+                refreshAndBindWidgetsAndShortcuts(callbacks, bindFirst);
+            }
+        }, PROVIDERS_CHANGED_DELAY_MS);
+    }
+
     public void refreshAndBindWidgetsAndShortcuts(
             final Callbacks callbacks, final boolean bindFirst) {
         runOnWorkerThread(new Runnable() {
@@ -3485,18 +3863,17 @@ public class LauncherModel extends BroadcastReceiver
                 final WidgetsModel model = mBgWidgetsModel.updateAndClone(mApp.getContext());
                 bindWidgetsModel(callbacks, model);
                 // update the Widget entries inside DB on the worker thread.
-                LauncherAppState.getInstance().getWidgetCache().removeObsoletePreviews(
-                        model.getRawList());
+                WidgetPreviewLoader widgetCache = LauncherAppState.getInstance().getWidgetCache();
+                widgetCache.removeObsoletePreviews(model.getRawList());
+                // and generate the previews which are missing, before the tray is opened.
+                if (FeatureFlags.LAUNCHER3_WIDGET_PREVIEW_PREGENERATION
+                        && callbacks instanceof Launcher) {
+                    widgetCache.pregeneratePreviews((Launcher) callbacks, model.getRawList());
+                }
             }
         });
     }
 
-    @Thunk static boolean isPackageDisabled(Context context, String packageName,
-            UserHandleCompat user) {
-        final LauncherAppsCompat launcherApps = LauncherAppsCompat.getInstance(context);
-        return !launcherApps.isPackageEnabledForProfile(packageName, user);
-    }
-
     public static boolean isValidPackageActivity(Context context, ComponentName cn,
             UserHandleCompat user) {
         if (cn == null) {
@@ -3784,6 +4161,15 @@ public class LauncherModel extends BroadcastReceiver
         } else {
             Log.d(TAG, "mLoaderTask=null");
         }
+        mIconCache.dumpState();
+    }
+
+    /**
+     * Prints the statistics of the bind tasks run in each frame.
+     */
+    public void dumpBindStats(String prefix, PrintWriter writer) {
+        mHandler.dump(prefix, writer);
+        mBindChunkPolicy.dump(prefix, writer);
     }
 
     public Callbacks getCallback() {
@@ -1,8 +1,11 @@
 package com.android.launcher3;
 
+import android.app.ActivityManager;
 import android.content.ComponentName;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.ResolveInfo;
@@ -23,26 +26,35 @@ import android.graphics.RectF;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
+import android.os.BatteryManager;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.LongSparseArray;
 
 import com.android.launcher3.compat.AppWidgetManagerCompat;
 import com.android.launcher3.compat.UserHandleCompat;
 import com.android.launcher3.compat.UserManagerCompat;
+import com.android.launcher3.util.BitmapPool;
 import com.android.launcher3.util.ComponentKey;
+import com.android.launcher3.util.LifoExecutor;
 import com.android.launcher3.util.SQLiteCacheHelper;
 import com.android.launcher3.util.Thunk;
 import com.android.launcher3.widget.WidgetCell;
 
+import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Set;
-import java.util.WeakHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class WidgetPreviewLoader {
 
@@ -51,53 +63,88 @@ public class WidgetPreviewLoader {
 
     private static final float WIDGET_PREVIEW_ICON_PADDING_PERCENTAGE = 0.25f;
 
-    private final HashMap<String, long[]> mPackageVersions = new HashMap<>();
+    // Previews are written to the DB in batches of up to this many rows, or after this delay.
+    private static final int DB_WRITE_BATCH_SIZE = 8;
+    private static final long DB_WRITE_BATCH_LATENCY_MS = 1000;
 
-    /**
-     * Weak reference objects, do not prevent their referents from being made finalizable,
-     * finalized, and then reclaimed.
-     * Note: synchronized block used for this variable is expensive and the block should always
-     * be posted to a background thread.
-     */
-    @Thunk final Set<Bitmap> mUnusedBitmaps =
-            Collections.newSetFromMap(new WeakHashMap<Bitmap, Boolean>());
+    // Fraction of the memory class of the device used for the decoded previews.
+    private static final int MEMORY_CACHE_FRACTION = 16;
+    private static final int MEMORY_CACHE_FRACTION_LOW_RAM = 32;
+
+    // Missing previews are generated on a background priority thread in batches of this many,
+    // with a delay between the batches so that they do not compete with the foreground work.
+    private static final int PREGENERATION_BATCH_SIZE = 4;
+    private static final long PREGENERATION_BATCH_DELAY_MS = 500;
+    // Below this battery level, previews are only generated in the background while charging.
+    private static final int PREGENERATION_MIN_BATTERY_PERCENT = 20;
+
+    // Number of threads loading the previews for the widgets tray, kept low so that scrolling
+    // does not compete with many decoding threads.
+    private static final int LOADER_THREAD_COUNT = 2;
+
+    private final HashMap<String, long[]> mPackageVersions = new HashMap<>();
 
     private final Context mContext;
     private final IconCache mIconCache;
     private final UserManagerCompat mUserManager;
     private final AppWidgetManagerCompat mWidgetManager;
     private final CacheDb mDb;
+    @Thunk final MemoryCache mMemoryCache;
+    @Thunk final BitmapPool mBitmapPool;
     private final int mProfileBadgeMargin;
 
     private final MainThreadExecutor mMainThreadExecutor = new MainThreadExecutor();
+    private final LifoExecutor mLoaderExecutor =
+            new LifoExecutor("Widget preview loader", LOADER_THREAD_COUNT);
     @Thunk final Handler mWorkerHandler;
 
-    public WidgetPreviewLoader(Context context, IconCache iconCache) {
+    // Created when the first previews are generated in the background.
+    private Handler mGenerationHandler;
+    @Thunk final AtomicReference<PreviewGenerationTask> mGenerationTask = new AtomicReference<>();
+    // Time of the last request from the widgets tray, which stops the background generation.
+    @Thunk volatile long mLastPreviewRequestTime;
+
+    public WidgetPreviewLoader(Context context, IconCache iconCache, BitmapPool bitmapPool) {
         mContext = context;
         mIconCache = iconCache;
+        mBitmapPool = bitmapPool;
         mWidgetManager = AppWidgetManagerCompat.getInstance(context);
         mUserManager = UserManagerCompat.getInstance(context);
         mDb = new CacheDb(context);
         mWorkerHandler = new Handler(LauncherModel.getWorkerLooper());
+        mDb.enableWriteBatching(mWorkerHandler, DB_WRITE_BATCH_SIZE, DB_WRITE_BATCH_LATENCY_MS);
+
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        boolean isLowRam = Utilities.ATLEAST_KITKAT && am.isLowRamDevice();
+        mMemoryCache = new MemoryCache(am.getMemoryClass() * 1024L * 1024L
+                / (isLowRam ? MEMORY_CACHE_FRACTION_LOW_RAM : MEMORY_CACHE_FRACTION));
+
         mProfileBadgeMargin = context.getResources()
                 .getDimensionPixelSize(R.dimen.profile_badge_margin);
     }
 
     /**
-     * Generates the widget preview on {@link AsyncTask#THREAD_POOL_EXECUTOR}. Must be
-     * called on UI thread
+     * Applies the widget preview right away if it is in the memory cache, or loads it on a
+     * dedicated executor, where the most recent requests run first. Must be called on UI thread
      *
      * @param o either {@link LauncherAppWidgetProviderInfo} or {@link ResolveInfo}
      * @return a request id which can be used to cancel the request.
      */
     public PreviewLoadRequest getPreview(final Object o, int previewWidth,
             int previewHeight, WidgetCell caller) {
+        mLastPreviewRequestTime = SystemClock.uptimeMillis();
         String size = previewWidth + "x" + previewHeight;
         WidgetCacheKey key = getObjectKey(o, size);
 
+        Bitmap cached = mMemoryCache.get(key);
+        if (cached != null) {
+            caller.applyPreview(cached);
+            return new PreviewLoadRequest(key, null);
+        }
+
         PreviewLoadTask task = new PreviewLoadTask(key, o, previewWidth, previewHeight, caller);
-        task.executeOnExecutor(Utilities.THREAD_POOL_EXECUTOR);
-        return new PreviewLoadRequest(task);
+        task.executeOnExecutor(mLoaderExecutor);
+        return new PreviewLoadRequest(key, task);
     }
 
     /**
@@ -168,6 +215,7 @@ public class WidgetPreviewLoader {
         synchronized(mPackageVersions) {
             mPackageVersions.remove(packageName);
         }
+        mMemoryCache.removePackage(packageName, user);
 
         mDb.delete(
                 CacheDb.COLUMN_PACKAGE + " = ? AND " + CacheDb.COLUMN_USER + " = ?",
@@ -264,7 +312,7 @@ public class WidgetPreviewLoader {
                     CacheDb.COLUMN_COMPONENT + " = ? AND " + CacheDb.COLUMN_USER + " = ? AND "
                             + CacheDb.COLUMN_SIZE + " = ?",
                     new String[]{
-                            key.componentName.flattenToString(),
+                            key.componentName.flattenToShortString(),
                             Long.toString(mUserManager.getSerialNumberForUser(key.user)),
                             key.size
                     });
@@ -294,6 +342,147 @@ public class WidgetPreviewLoader {
         return null;
     }
 
+    /**
+     * Generates the missing previews of {@param widgets} on a background priority thread, at the
+     * size used by the widgets tray, so that they are read from the DB when the tray is opened.
+     * Replaces any pending generation, and stops once the tray requests previews, as they are
+     * then generated by the loader anyway. Must be called on the worker thread.
+     */
+    public void pregeneratePreviews(Launcher launcher, ArrayList<Object> widgets) {
+        Utilities.assertWorkerThread();
+        if (mGenerationHandler == null) {
+            HandlerThread thread = new HandlerThread("widget-preview-generation",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            mGenerationHandler = new Handler(thread.getLooper());
+        }
+        // The task reads the DB from another thread, which does not flush the queued writes.
+        mDb.flushPendingWrites();
+
+        int previewSize = WidgetCell.getPresetPreviewSize(launcher.getDeviceProfile());
+        PreviewGenerationTask task = new PreviewGenerationTask(launcher, widgets, previewSize);
+        PreviewGenerationTask oldTask = mGenerationTask.getAndSet(task);
+        if (oldTask != null) {
+            mGenerationHandler.removeCallbacks(oldTask);
+        }
+        mGenerationHandler.postDelayed(task, PREGENERATION_BATCH_DELAY_MS);
+    }
+
+    /**
+     * Returns false if previews should not be generated in the background, because the power
+     * saver is on, or the battery is low and not charging.
+     */
+    @Thunk boolean canPregeneratePreviews() {
+        if (Utilities.isPowerSaverOn(mContext)) {
+            return false;
+        }
+        Intent battery = mContext.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null || battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0) {
+            return true;
+        }
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        return level < 0 || scale <= 0
+                || level * 100 / scale >= PREGENERATION_MIN_BATTERY_PERCENT;
+    }
+
+    /**
+     * Returns the components and user serials of the previews of the given size in the DB.
+     */
+    @Thunk HashSet<String> getPreviewsInDb(String size) {
+        HashSet<String> previews = new HashSet<>();
+        Cursor c = null;
+        try {
+            c = mDb.query(new String[]{CacheDb.COLUMN_COMPONENT, CacheDb.COLUMN_USER},
+                    CacheDb.COLUMN_SIZE + " = ?", new String[]{size});
+            while (c.moveToNext()) {
+                previews.add(c.getString(0) + "#" + c.getLong(1));
+            }
+        } catch (SQLException e) {
+            Log.w(TAG, "Error reading the widget previews", e);
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        return previews;
+    }
+
+    /**
+     * Generates and writes to the DB the previews which are not in the DB yet, a batch at a time.
+     */
+    private class PreviewGenerationTask implements Runnable {
+        private final WeakReference<Launcher> mLauncher;
+        private final ArrayList<Object> mWidgets;
+        private final int mPreviewSize;
+        private final String mSize;
+        private final long mStartTime = SystemClock.uptimeMillis();
+
+        private HashSet<String> mPreviewsInDb;
+        private int mNext;
+        private int mGeneratedCount;
+
+        PreviewGenerationTask(Launcher launcher, ArrayList<Object> widgets, int previewSize) {
+            mLauncher = new WeakReference<>(launcher);
+            mWidgets = widgets;
+            mPreviewSize = previewSize;
+            mSize = previewSize + "x" + previewSize;
+        }
+
+        @Override
+        public void run() {
+            Launcher launcher = mLauncher.get();
+            if (mGenerationTask.get() != this || launcher == null
+                    || mLastPreviewRequestTime >= mStartTime || !canPregeneratePreviews()) {
+                finish();
+                return;
+            }
+            if (mPreviewsInDb == null) {
+                mPreviewsInDb = getPreviewsInDb(mSize);
+            }
+
+            int batchCount = 0;
+            while (mNext < mWidgets.size() && batchCount < PREGENERATION_BATCH_SIZE) {
+                Object info = mWidgets.get(mNext++);
+                WidgetCacheKey key = getObjectKey(info, mSize);
+                if (mPreviewsInDb.contains(key.componentName.flattenToShortString() + "#"
+                        + mUserManager.getSerialNumberForUser(key.user))) {
+                    continue;
+                }
+
+                long[] versions = getPackageVersion(key.componentName.getPackageName());
+                Bitmap unusedBitmap = mBitmapPool.get(mPreviewSize, mPreviewSize,
+                        Config.ARGB_8888);
+                Bitmap preview = generatePreview(launcher, info, unusedBitmap, mPreviewSize,
+                        mPreviewSize);
+                if (preview != null) {
+                    writeToDb(key, versions, preview);
+                    mBitmapPool.put(preview);
+                }
+                if (preview != unusedBitmap) {
+                    mBitmapPool.put(unusedBitmap);
+                }
+                batchCount++;
+                mGeneratedCount++;
+            }
+
+            if (mNext < mWidgets.size()) {
+                mGenerationHandler.postDelayed(this, PREGENERATION_BATCH_DELAY_MS);
+            } else {
+                finish();
+            }
+        }
+
+        private void finish() {
+            if (DEBUG) {
+                Log.d(TAG, "Generated " + mGeneratedCount + " previews in the background, "
+                        + mNext + "/" + mWidgets.size() + " widgets checked");
+            }
+            mGenerationTask.compareAndSet(this, null);
+        }
+    }
+
     @Thunk Bitmap generatePreview(Launcher launcher, Object info, Bitmap recycle,
             int previewWidth, int previewHeight) {
         if (info instanceof LauncherAppWidgetProviderInfo) {
@@ -518,30 +707,36 @@ public class WidgetPreviewLoader {
      */
     public class PreviewLoadRequest {
 
+        @Thunk final WidgetCacheKey mKey;
         @Thunk final PreviewLoadTask mTask;
 
-        public PreviewLoadRequest(PreviewLoadTask task) {
+        PreviewLoadRequest(WidgetCacheKey key, PreviewLoadTask task) {
+            mKey = key;
             mTask = task;
         }
 
+        /**
+         * Cancels the request. Must be called on UI thread, once the caller no longer displays
+         * the preview.
+         */
         public void cleanup() {
-            if (mTask != null) {
-                mTask.cancel(true);
+            if (mTask == null) {
+                // The preview came from the memory cache, and other cells may still display it
+                // after it is evicted, so it is never recycled.
+                return;
             }
-
-            // This only handles the case where the PreviewLoadTask is cancelled after the task has
-            // successfully completed (including having written to disk when necessary).  In the
-            // other cases where it is cancelled while the task is running, it will be cleaned up
-            // in the tasks's onCancelled() call, and if cancelled while the task is writing to
-            // disk, it will be cancelled in the task's onPostExecute() call.
-            if (mTask.mBitmapToRecycle != null) {
+            // If the task is cancelled while running, the bitmap is recycled in the task's
+            // onCancelled() call.
+            mTask.cancel(true);
+
+            // Once the preview is no longer displayed, it can be recycled unless it was added to
+            // the memory cache, from where other cells may have got it.
+            final Bitmap preview = mTask.mPreview;
+            if (preview != null && !mTask.mCached) {
                 mWorkerHandler.post(new Runnable() {
                     @Override
                     public void run() {
-                        synchronized (mUnusedBitmaps) {
-                            mUnusedBitmaps.add(mTask.mBitmapToRecycle);
-                        }
-                        mTask.mBitmapToRecycle = null;
+                        mBitmapPool.put(preview);
                     }
                 });
             }
@@ -554,12 +749,16 @@ public class WidgetPreviewLoader {
         private final int mPreviewHeight;
         private final int mPreviewWidth;
         private final WidgetCell mCaller;
+        private final int mCacheGeneration;
         @Thunk long[] mVersions;
-        @Thunk Bitmap mBitmapToRecycle;
+        @Thunk Bitmap mPreview;
+        // Whether mPreview was added to the memory cache, only accessed on UI thread
+        @Thunk boolean mCached;
 
         PreviewLoadTask(WidgetCacheKey key, Object info, int previewWidth,
                 int previewHeight, WidgetCell caller) {
             mKey = key;
+            mCacheGeneration = mMemoryCache.getGeneration();
             mInfo = info;
             mPreviewHeight = previewHeight;
             mPreviewWidth = previewWidth;
@@ -572,29 +771,11 @@ public class WidgetPreviewLoader {
 
         @Override
         protected Bitmap doInBackground(Void... params) {
-            Bitmap unusedBitmap = null;
-
             // If already cancelled before this gets to run in the background, then return early
             if (isCancelled()) {
                 return null;
             }
-            synchronized (mUnusedBitmaps) {
-                // Check if we can re-use a bitmap
-                for (Bitmap candidate : mUnusedBitmaps) {
-                    if (candidate != null && candidate.isMutable() &&
-                            candidate.getWidth() == mPreviewWidth &&
-                            candidate.getHeight() == mPreviewHeight) {
-                        unusedBitmap = candidate;
-                        mUnusedBitmaps.remove(unusedBitmap);
-                        break;
-                    }
-                }
-            }
-
-            // creating a bitmap is expensive. Do not do this inside synchronized block.
-            if (unusedBitmap == null) {
-                unusedBitmap = Bitmap.createBitmap(mPreviewWidth, mPreviewHeight, Config.ARGB_8888);
-            }
+            Bitmap unusedBitmap = mBitmapPool.get(mPreviewWidth, mPreviewHeight, Config.ARGB_8888);
             // If cancelled now, don't bother reading the preview from the DB
             if (isCancelled()) {
                 return unusedBitmap;
@@ -612,54 +793,137 @@ public class WidgetPreviewLoader {
                 // it's not in the db... we need to generate it
                 preview = generatePreview(launcher, mInfo, unusedBitmap, mPreviewWidth, mPreviewHeight);
             }
+            if (preview != null && preview != unusedBitmap) {
+                // The bitmap could not be reused, as the decoded or badged preview was allocated
+                mBitmapPool.put(unusedBitmap);
+            }
             return preview;
         }
 
         @Override
         protected void onPostExecute(final Bitmap preview) {
             mCaller.applyPreview(preview);
+            mPreview = preview;
+            if (preview == null) {
+                return;
+            }
+
+            // Once cached, the preview is never recycled. It is not cached if the package was
+            // removed since the task was created, as it may be stale.
+            mCached = mMemoryCache.put(mKey, preview, mCacheGeneration);
 
             // Write the generated preview to the DB in the worker thread
             if (mVersions != null) {
                 mWorkerHandler.post(new Runnable() {
                     @Override
                     public void run() {
-                        if (!isCancelled()) {
-                            // If we are still using this preview, then write it to the DB and then
-                            // let the normal clear mechanism recycle the bitmap
-                            writeToDb(mKey, mVersions, preview);
-                            mBitmapToRecycle = preview;
-                        } else {
-                            // If we've already cancelled, then skip writing the bitmap to the DB
-                            // and manually add the bitmap back to the recycled set
-                            synchronized (mUnusedBitmaps) {
-                                mUnusedBitmaps.add(preview);
-                            }
-                        }
+                        writeToDb(mKey, mVersions, preview);
                     }
                 });
-            } else {
-                // If we don't need to write to disk, then ensure the preview gets recycled by
-                // the normal clear mechanism
-                mBitmapToRecycle = preview;
             }
         }
 
         @Override
         protected void onCancelled(final Bitmap preview) {
-            // If we've cancelled while the task is running, then can return the bitmap to the
-            // recycled set immediately. Otherwise, it will be recycled after the preview is written
-            // to disk.
-            if (preview != null) {
-                mWorkerHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        synchronized (mUnusedBitmaps) {
-                            mUnusedBitmaps.add(preview);
-                        }
-                    }
-                });
+            // If we've cancelled while the task is running, the preview was never displayed, so
+            // the bitmap can be returned to the pool immediately.
+            mBitmapPool.put(preview);
+        }
+    }
+
+    /**
+     * Prints out the state of the memory cache and of the loader for debugging.
+     */
+    public void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "Widget preview memory cache: " + mMemoryCache);
+        mLoaderExecutor.dump(prefix, writer);
+    }
+
+    /**
+     * In-memory map of the decoded previews with a budget based on their byte count, in front of
+     * the DB. Entries are kept in access order and the least recently used ones are removed when
+     * the budget is exceeded. A preview may still be displayed after it is removed, so its bitmap
+     * is left to the garbage collector rather than recycled.
+     *
+     * All the methods are synchronized on this object, and none of them does any I/O.
+     */
+    private static class MemoryCache {
+        private final LinkedHashMap<WidgetCacheKey, Bitmap> mEntries =
+                new LinkedHashMap<>(16, 0.75f, true /* accessOrder */);
+        private final long mMaxBytes;
+        private long mSizeBytes;
+
+        // Incremented whenever entries are invalidated, so that previews loaded before that are
+        // not added back.
+        private int mGeneration;
+
+        private int mHitCount;
+        private int mMissCount;
+        private int mEvictionCount;
+
+        MemoryCache(long maxBytes) {
+            mMaxBytes = maxBytes;
+        }
+
+        synchronized Bitmap get(WidgetCacheKey key) {
+            Bitmap preview = mEntries.get(key);
+            if (preview == null) {
+                mMissCount++;
+            } else {
+                mHitCount++;
             }
+            return preview;
+        }
+
+        synchronized int getGeneration() {
+            return mGeneration;
+        }
+
+        /**
+         * Adds {@param preview}, unless entries were invalidated since {@param generation}.
+         * @return whether the preview was added
+         */
+        synchronized boolean put(WidgetCacheKey key, Bitmap preview, int generation) {
+            int byteCount = preview.getByteCount();
+            if (generation != mGeneration || byteCount > mMaxBytes) {
+                return false;
+            }
+            Bitmap old = mEntries.put(key, preview);
+            if (old != null) {
+                mSizeBytes -= old.getByteCount();
+            }
+            mSizeBytes += byteCount;
+
+            Iterator<Bitmap> itr = mEntries.values().iterator();
+            while (mSizeBytes > mMaxBytes && itr.hasNext()) {
+                mSizeBytes -= itr.next().getByteCount();
+                itr.remove();
+                mEvictionCount++;
+            }
+            return true;
+        }
+
+        synchronized void removePackage(String packageName, UserHandleCompat user) {
+            mGeneration++;
+            Iterator<Map.Entry<WidgetCacheKey, Bitmap>> itr = mEntries.entrySet().iterator();
+            while (itr.hasNext()) {
+                Map.Entry<WidgetCacheKey, Bitmap> e = itr.next();
+                WidgetCacheKey key = e.getKey();
+                if (key.componentName.getPackageName().equals(packageName)
+                        && key.user.equals(user)) {
+                    mSizeBytes -= e.getValue().getByteCount();
+                    itr.remove();
+                }
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            int requests = mHitCount + mMissCount;
+            return mEntries.size() + " entries, " + (mSizeBytes / 1024) + "/"
+                    + (mMaxBytes / 1024) + " KB, hits=" + mHitCount + ", misses=" + mMissCount
+                    + " (" + (requests == 0 ? 0 : 100 * mHitCount / requests) + "% hit rate)"
+                    + ", evicted=" + mEvictionCount;
         }
     }
 
@@ -35,6 +35,7 @@ import com.android.launcher3.AppInfo;
 import com.android.launcher3.BaseContainerView;
 import com.android.launcher3.BubbleTextView;
 import com.android.launcher3.CellLayout;
+import com.android.launcher3.DeferredHandler;
 import com.android.launcher3.DeleteDropTarget;
 import com.android.launcher3.DeviceProfile;
 import com.android.launcher3.DragSource;
@@ -43,6 +44,7 @@ import com.android.launcher3.ExtendedEditText;
 import com.android.launcher3.Folder;
 import com.android.launcher3.ItemInfo;
 import com.android.launcher3.Launcher;
+import com.android.launcher3.LauncherAppState;
 import com.android.launcher3.LauncherTransitionable;
 import com.android.launcher3.R;
 import com.android.launcher3.Utilities;
@@ -133,6 +135,7 @@ public class AllAppsContainerView extends BaseContainerView implements DragSourc
     private static final int MAX_NUM_MERGES_PHONE = 2;
 
     private final Launcher mLauncher;
+    private final DeferredHandler mIdleHandler = new DeferredHandler();
     private final AlphabeticalAppsList mApps;
     private final AllAppsGridAdapter mAdapter;
     private final RecyclerView.LayoutManager mLayoutManager;
@@ -197,6 +200,38 @@ public class AllAppsContainerView extends BaseContainerView implements DragSourc
      */
     public void setApps(List<AppInfo> apps) {
         mApps.setApps(apps);
+        warmUp();
+    }
+
+    /**
+     * Prepares the first open of all apps: pre-inflates the icon views when the main thread is
+     * idle, and loads the high res icons of the apps in the first screens.
+     */
+    private void warmUp() {
+        if (mApps.getApps().isEmpty()) {
+            return;
+        }
+        int count = mAppsRecyclerView.warmUpViewPool(mIdleHandler);
+        if (count == 0) {
+            return;
+        }
+        ArrayList<AppInfo> firstApps = new ArrayList<>(count);
+        for (AlphabeticalAppsList.AdapterItem item : mApps.getAdapterItems()) {
+            if (item.appInfo != null) {
+                firstApps.add(item.appInfo);
+                if (firstApps.size() == count) {
+                    break;
+                }
+            }
+        }
+        LauncherAppState.getInstance().getIconCache().prefetchHighResIcons(firstApps);
+    }
+
+    /**
+     * Called when all apps is shown.
+     */
+    public void onAppsViewShown() {
+        mAppsRecyclerView.onAppsViewShown();
     }
 
     /**
@@ -351,6 +386,7 @@ public class AllAppsContainerView extends BaseContainerView implements DragSourc
                 mAppsRecyclerView.setNumAppsPerRow(grid, mNumAppsPerRow);
                 mAdapter.setNumAppsPerRow(mNumAppsPerRow);
                 mApps.setNumAppsPerRow(mNumAppsPerRow, mNumPredictedAppsPerRow, mergeAlgorithm);
+                warmUp();
 
                 int iconSize = availableWidth / mNumAppsPerRow;
                 int iconSpacing = (iconSize - grid.allAppsIconSizePx) / 2;
@@ -597,6 +633,12 @@ public class AllAppsContainerView extends BaseContainerView implements DragSourc
         }
     }
 
+    @Override
+    public void onPartialSearchResult(String query, ArrayList<ComponentKey> apps) {
+        // Show the first results right away, the rest follow in onSearchResult().
+        onSearchResult(query, apps);
+    }
+
     @Override
     public void clearSearchResult() {
         if (mApps.setOrderedFilter(null)) {
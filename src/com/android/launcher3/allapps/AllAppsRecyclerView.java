@@ -21,15 +21,20 @@ import android.graphics.Canvas;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
 import android.support.v7.widget.RecyclerView;
+import android.os.SystemClock;
 import android.util.AttributeSet;
+import android.util.Log;
 import android.view.View;
 
 import com.android.launcher3.BaseRecyclerView;
 import com.android.launcher3.BubbleTextView;
+import com.android.launcher3.DeferredHandler;
 import com.android.launcher3.DeviceProfile;
 import com.android.launcher3.R;
 import com.android.launcher3.Stats;
 import com.android.launcher3.Utilities;
+import com.android.launcher3.util.FrameTimeTracker;
+import com.android.launcher3.util.LatencyStats;
 
 import java.util.List;
 
@@ -39,6 +44,21 @@ import java.util.List;
 public class AllAppsRecyclerView extends BaseRecyclerView
         implements Stats.LaunchSourceProvider {
 
+    private static final String TAG = "AllAppsRecyclerView";
+    private static final boolean DEBUG = false;
+
+    // Number of icon views inflated each time the main thread is idle while warming up the pool
+    private static final int WARM_UP_BATCH_SIZE = 4;
+    // Maximum duration of the frame time recording when all apps is first opened
+    private static final int FIRST_OPEN_TRACKING_MS = 5000;
+    // Maximum duration of the frame time recording of a single scroll
+    private static final int SCROLL_TRACKING_MS = 10000;
+
+    private static final LatencyStats sFirstOpenFrameTimes =
+            new LatencyStats("All apps first open frame time", 600);
+    private static final LatencyStats sScrollFrameTimes =
+            new LatencyStats("All apps scroll frame time", 600);
+
     private AlphabeticalAppsList mApps;
     private AllAppsFastScrollHelper mFastScrollHelper;
     private BaseRecyclerView.ScrollPositionState mScrollPosState =
@@ -55,6 +75,12 @@ public class AllAppsRecyclerView extends BaseRecyclerView
 
     private HeaderElevationController mElevationController;
 
+    private int mApproxRows;
+    private int mAvailableHeightPx;
+    private int mWarmUpViewCount;
+    private boolean mOpened;
+    private final FrameTimeTracker mFrameTimeTracker = new FrameTimeTracker();
+
     public AllAppsRecyclerView(Context context) {
         this(context, null);
     }
@@ -75,6 +101,16 @@ public class AllAppsRecyclerView extends BaseRecyclerView
         mScrollbar.setDetachThumbOnFastScroll();
         mEmptySearchBackgroundTopOffset = res.getDimensionPixelSize(
                 R.dimen.all_apps_empty_search_bg_top_offset);
+        addOnScrollListener(new OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+                if (newState == SCROLL_STATE_IDLE) {
+                    mFrameTimeTracker.stop();
+                } else if (!mFrameTimeTracker.isRunning()) {
+                    mFrameTimeTracker.start(sScrollFrameTimes, SCROLL_TRACKING_MS);
+                }
+            }
+        });
     }
 
     /**
@@ -97,10 +133,13 @@ public class AllAppsRecyclerView extends BaseRecyclerView
 
         RecyclerView.RecycledViewPool pool = getRecycledViewPool();
         int approxRows = (int) Math.ceil(grid.availableHeightPx / grid.allAppsIconSizePx);
+        mApproxRows = approxRows;
+        mAvailableHeightPx = grid.availableHeightPx;
         pool.setMaxRecycledViews(AllAppsGridAdapter.EMPTY_SEARCH_VIEW_TYPE, 1);
         pool.setMaxRecycledViews(AllAppsGridAdapter.SEARCH_MARKET_DIVIDER_VIEW_TYPE, 1);
         pool.setMaxRecycledViews(AllAppsGridAdapter.SEARCH_MARKET_VIEW_TYPE, 1);
-        pool.setMaxRecycledViews(AllAppsGridAdapter.ICON_VIEW_TYPE, approxRows * mNumAppsPerRow);
+        pool.setMaxRecycledViews(AllAppsGridAdapter.ICON_VIEW_TYPE,
+                Math.max(approxRows * mNumAppsPerRow, mWarmUpViewCount));
         pool.setMaxRecycledViews(AllAppsGridAdapter.PREDICTION_ICON_VIEW_TYPE, mNumAppsPerRow);
         pool.setMaxRecycledViews(AllAppsGridAdapter.SECTION_BREAK_VIEW_TYPE, approxRows);
     }
@@ -113,6 +152,77 @@ public class AllAppsRecyclerView extends BaseRecyclerView
         mIconHeight = iconHeight;
     }
 
+    /**
+     * Inflates icon view holders into the recycled view pool, a few at a time whenever
+     * {@param handler} is idle, so that the first open of all apps does not inflate them.
+     * @return the number of icons which fit in the first two screens, 0 if already warmed up.
+     */
+    public int warmUpViewPool(final DeferredHandler handler) {
+        final Adapter adapter = getAdapter();
+        if (mWarmUpViewCount > 0 || adapter == null || mNumAppsPerRow == 0) {
+            return 0;
+        }
+        // Use the premeasured icon height when available, the icon size alone over-estimates
+        // the number of visible rows.
+        int visibleRows = mIconHeight > 0
+                ? (int) Math.ceil((float) mAvailableHeightPx / mIconHeight)
+                : mApproxRows;
+        mWarmUpViewCount = mNumAppsPerRow * visibleRows * 2;
+        getRecycledViewPool().setMaxRecycledViews(AllAppsGridAdapter.ICON_VIEW_TYPE,
+                Math.max(mApproxRows * mNumAppsPerRow, mWarmUpViewCount));
+
+        final long startTime = SystemClock.uptimeMillis();
+        handler.postIdle(new Runnable() {
+            private int mCreatedCount;
+
+            @Override
+            public void run() {
+                if (getAdapter() != adapter || getChildCount() > 0) {
+                    // The apps are already shown, the views are created as needed
+                    return;
+                }
+                RecycledViewPool pool = getRecycledViewPool();
+                for (int i = 0; i < WARM_UP_BATCH_SIZE && mCreatedCount < mWarmUpViewCount; i++) {
+                    pool.putRecycledView(adapter.createViewHolder(AllAppsRecyclerView.this,
+                            AllAppsGridAdapter.ICON_VIEW_TYPE));
+                    mCreatedCount++;
+                }
+                if (mCreatedCount < mWarmUpViewCount) {
+                    handler.postIdle(this);
+                } else if (DEBUG) {
+                    Log.d(TAG, "Warmed up " + mCreatedCount + " icon views in "
+                            + (SystemClock.uptimeMillis() - startTime) + "ms");
+                }
+            }
+        });
+        return mWarmUpViewCount;
+    }
+
+    /**
+     * Called when all apps is shown, to record the frame times of the first open.
+     */
+    public void onAppsViewShown() {
+        if (!mOpened) {
+            mOpened = true;
+            mFrameTimeTracker.start(sFirstOpenFrameTimes, FIRST_OPEN_TRACKING_MS);
+        }
+    }
+
+    /**
+     * Returns the frame times recorded when all apps was first opened, and during the first
+     * scroll if it happened then.
+     */
+    public static LatencyStats getFirstOpenFrameTimes() {
+        return sFirstOpenFrameTimes;
+    }
+
+    /**
+     * Returns the frame times recorded during the scrolls of all apps.
+     */
+    public static LatencyStats getScrollFrameTimes() {
+        return sScrollFrameTimes;
+    }
+
     /**
      * Scrolls this recycler view to the top.
      */
@@ -184,6 +184,14 @@ public abstract class AllAppsSearchBarController
          */
         void onSearchResult(String query, ArrayList<ComponentKey> apps);
 
+        /**
+         * Called with the first results of a search which is still running. It is followed by
+         * {@link #onSearchResult} for the same query, unless a newer search is started.
+         *
+         * @param apps sorted list of the first matching components.
+         */
+        void onPartialSearchResult(String query, ArrayList<ComponentKey> apps);
+
         /**
          * Called when the search results should be cleared.
          */
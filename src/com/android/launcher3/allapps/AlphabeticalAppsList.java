@@ -19,7 +19,7 @@ import android.content.Context;
 import android.support.v7.widget.RecyclerView;
 import android.util.Log;
 import com.android.launcher3.AppInfo;
-import com.android.launcher3.Launcher;
+import com.android.launcher3.ItemInfo;
 import com.android.launcher3.LauncherAppState;
 import com.android.launcher3.compat.AlphabeticIndexCompat;
 import com.android.launcher3.compat.UserHandleCompat;
@@ -28,10 +28,13 @@ import com.android.launcher3.util.ComponentKey;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 
 /**
@@ -165,11 +168,13 @@ public class AlphabeticalAppsList {
                 int sectionAppCount, int numAppsPerRow, int mergeCount);
     }
 
-    private Launcher mLauncher;
+    private final Context mContext;
 
     // The set of apps from the system not including predictions
     private final List<AppInfo> mApps = new ArrayList<>();
     private final HashMap<ComponentKey, AppInfo> mComponentToAppMap = new HashMap<>();
+    // The index of the titles of all the apps, used for searching
+    private final AppSearchIndex mSearchIndex = new AppSearchIndex();
 
     // The set of filtered apps with the current filter
     private List<AppInfo> mFilteredApps = new ArrayList<>();
@@ -195,7 +200,7 @@ public class AlphabeticalAppsList {
     private int mNumAppRowsInAdapter;
 
     public AlphabeticalAppsList(Context context) {
-        mLauncher = (Launcher) context;
+        mContext = context;
         mIndexer = new AlphabeticIndexCompat(context);
         mAppNameComparator = new AppNameComparator(context);
     }
@@ -226,6 +231,13 @@ public class AlphabeticalAppsList {
         return mApps;
     }
 
+    /**
+     * Returns the search index of all the apps.
+     */
+    public AppSearchIndex getSearchIndex() {
+        return mSearchIndex;
+    }
+
     /**
      * Returns sections of all the current filtered applications.
      */
@@ -294,12 +306,16 @@ public class AlphabeticalAppsList {
 
     /**
      * Sets the current set of predicted apps.  Since this can be called before we get the full set
-     * of applications, we should merge the results only in onAppsUpdated() which is idempotent.
+     * of applications, the predictions are resolved each time the adapter items are rebuilt.
      */
     public void setPredictedApps(List<ComponentKey> apps) {
+        if (mPredictedAppComponents.equals(apps)) {
+            return;
+        }
         mPredictedAppComponents.clear();
         mPredictedAppComponents.addAll(apps);
-        onAppsUpdated();
+        // The order of the apps does not depend on the predictions, only the items change
+        updateAdapterItemsIncrementally(Collections.<AppInfo>emptySet());
     }
 
     /**
@@ -307,7 +323,15 @@ public class AlphabeticalAppsList {
      */
     public void setApps(List<AppInfo> apps) {
         mComponentToAppMap.clear();
-        addApps(apps);
+        mSearchIndex.clear();
+        if (apps != null) {
+            for (AppInfo app : apps) {
+                ComponentKey key = app.toComponentKey();
+                mComponentToAppMap.put(key, app);
+                mSearchIndex.addOrUpdate(key, app.title, app.searchKeys);
+            }
+        }
+        onAppsUpdated();
     }
 
     /**
@@ -322,20 +346,145 @@ public class AlphabeticalAppsList {
      */
     public void updateApps(List<AppInfo> apps) {
         if (apps == null) return;
+        Comparator<? super AppInfo> comparator = getAppOrderComparator();
         for (AppInfo app : apps) {
-            mComponentToAppMap.put(app.toComponentKey(), app);
+            ComponentKey key = app.toComponentKey();
+            AppInfo oldApp = mComponentToAppMap.put(key, app);
+            if (oldApp != null) {
+                removeSortedApp(oldApp, comparator);
+            }
+            insertSortedApp(app, comparator);
+            mSearchIndex.addOrUpdate(key, app.title, app.searchKeys);
         }
-        onAppsUpdated();
+        onAppsUpdatedIncrementally(new HashSet<>(apps));
     }
 
     /**
      * Removes some apps from the list.
      */
     public void removeApps(List<AppInfo> apps) {
+        Comparator<? super AppInfo> comparator = getAppOrderComparator();
         for (AppInfo app : apps) {
-            mComponentToAppMap.remove(app.toComponentKey());
+            ComponentKey key = app.toComponentKey();
+            AppInfo oldApp = mComponentToAppMap.remove(key);
+            if (oldApp != null) {
+                removeSortedApp(oldApp, comparator);
+            }
+            mSearchIndex.remove(key);
+        }
+        onAppsUpdatedIncrementally(Collections.<AppInfo>emptySet());
+    }
+
+    /**
+     * Returns the comparator defining the order of {@link #mApps}.
+     */
+    private Comparator<? super AppInfo> getAppOrderComparator() {
+        final Comparator<ItemInfo> appComparator = mAppNameComparator.getAppInfoComparator();
+        // As a special case for some languages (currently only Simplified Chinese), the apps are
+        // first ordered by section, see onAppsUpdated()
+        Locale curLocale = mContext.getResources().getConfiguration().locale;
+        if (!curLocale.equals(Locale.SIMPLIFIED_CHINESE)) {
+            return appComparator;
+        }
+        final Comparator<String> sectionComparator = mAppNameComparator.getSectionNameComparator();
+        return new Comparator<AppInfo>() {
+            @Override
+            public int compare(AppInfo a, AppInfo b) {
+                int result = sectionComparator.compare(getAndUpdateCachedSectionName(a),
+                        getAndUpdateCachedSectionName(b));
+                return result != 0 ? result : appComparator.compare(a, b);
+            }
+        };
+    }
+
+    /**
+     * Inserts {@param app} in {@link #mApps} at its sorted position, found by binary search.
+     */
+    private void insertSortedApp(AppInfo app, Comparator<? super AppInfo> comparator) {
+        int index = Collections.binarySearch(mApps, app, comparator);
+        mApps.add(index < 0 ? -(index + 1) : index, app);
+    }
+
+    /**
+     * Removes {@param app} from {@link #mApps}.
+     */
+    private void removeSortedApp(AppInfo app, Comparator<? super AppInfo> comparator) {
+        int index = Collections.binarySearch(mApps, app, comparator);
+        if (index < 0 || mApps.get(index) != app) {
+            // The app was updated in place, and is no longer at its sorted position
+            index = mApps.indexOf(app);
+        }
+        if (index >= 0) {
+            mApps.remove(index);
+        }
+    }
+
+    /**
+     * Updates internals when some apps were added, updated or removed in the already sorted
+     * {@link #mApps}, and notifies the adapter of the items which changed.
+     * @param updatedApps the apps added or updated, whose views need to be rebound.
+     */
+    private void onAppsUpdatedIncrementally(Set<AppInfo> updatedApps) {
+        updateSearchOrder();
+        updateAdapterItemsIncrementally(updatedApps);
+    }
+
+    /**
+     * Rebuilds the adapter items, and notifies the adapter of the items which changed.
+     * @param updatedApps the apps whose views need to be rebound.
+     */
+    private void updateAdapterItemsIncrementally(Set<AppInfo> updatedApps) {
+        ArrayList<AdapterItem> oldItems = new ArrayList<>(mAdapterItems);
+        rebuildAdapterItems();
+        if (mAdapter == null) {
+            return;
+        }
+        if (hasFilter()) {
+            // The search results are replaced as a whole anyway
+            mAdapter.notifyDataSetChanged();
+            return;
+        }
+
+        // The updates are usually local, so only the items between the common prefix and the
+        // common suffix of the old and new items changed
+        int oldSize = oldItems.size();
+        int newSize = mAdapterItems.size();
+        int start = 0;
+        while (start < oldSize && start < newSize
+                && isSameItem(oldItems.get(start), mAdapterItems.get(start), updatedApps)) {
+            start++;
+        }
+        int oldEnd = oldSize;
+        int newEnd = newSize;
+        while (oldEnd > start && newEnd > start && isSameItem(oldItems.get(oldEnd - 1),
+                mAdapterItems.get(newEnd - 1), updatedApps)) {
+            oldEnd--;
+            newEnd--;
+        }
+
+        int changedCount = Math.min(oldEnd, newEnd) - start;
+        if (changedCount > 0) {
+            mAdapter.notifyItemRangeChanged(start, changedCount);
+        }
+        if (oldEnd > newEnd) {
+            mAdapter.notifyItemRangeRemoved(start + changedCount, oldEnd - newEnd);
+        } else if (newEnd > oldEnd) {
+            mAdapter.notifyItemRangeInserted(start + changedCount, newEnd - oldEnd);
+        }
+        if (DEBUG) {
+            Log.d(TAG, "Incremental update: start=" + start + " changed=" + changedCount
+                    + " removed=" + Math.max(0, oldEnd - newEnd)
+                    + " inserted=" + Math.max(0, newEnd - oldEnd));
         }
-        onAppsUpdated();
+    }
+
+    /**
+     * Returns whether {@param oldItem} and {@param newItem} show the same content.
+     */
+    private static boolean isSameItem(AdapterItem oldItem, AdapterItem newItem,
+            Set<AppInfo> updatedApps) {
+        return oldItem.viewType == newItem.viewType && oldItem.appInfo == newItem.appInfo
+                && (newItem.appInfo == null || !updatedApps.contains(newItem.appInfo));
     }
 
     /**
@@ -349,7 +498,7 @@ public class AlphabeticalAppsList {
 
         // As a special case for some languages (currently only Simplified Chinese), we may need to
         // coalesce sections
-        Locale curLocale = mLauncher.getResources().getConfiguration().locale;
+        Locale curLocale = mContext.getResources().getConfiguration().locale;
         TreeMap<String, ArrayList<AppInfo>> sectionMap = null;
         boolean localeRequiresSectionSorting = curLocale.equals(Locale.SIMPLIFIED_CHINESE);
         if (localeRequiresSectionSorting) {
@@ -358,7 +507,7 @@ public class AlphabeticalAppsList {
             sectionMap = new TreeMap<>(mAppNameComparator.getSectionNameComparator());
             for (AppInfo info : mApps) {
                 // Add the section to the cache
-                String sectionName = getAndUpdateCachedSectionName(info.title);
+                String sectionName = getAndUpdateCachedSectionName(info);
 
                 // Add it to the mapping
                 ArrayList<AppInfo> sectionApps = sectionMap.get(sectionName);
@@ -381,19 +530,42 @@ public class AlphabeticalAppsList {
             // Just compute the section headers for use below
             for (AppInfo info : mApps) {
                 // Add the section to the cache
-                getAndUpdateCachedSectionName(info.title);
+                getAndUpdateCachedSectionName(info);
             }
         }
 
+        updateSearchOrder();
+
         // Recompose the set of adapter items from the current set of apps
         updateAdapterItems();
     }
 
+    private void updateSearchOrder() {
+        // Search results are returned in the same order as the apps
+        ArrayList<ComponentKey> order = new ArrayList<>(mApps.size());
+        for (AppInfo info : mApps) {
+            order.add(info.toComponentKey());
+        }
+        mSearchIndex.setOrder(order);
+    }
+
     /**
-     * Updates the set of filtered apps with the current filter.  At this point, we expect
-     * mCachedSectionNames to have been calculated for the set of all apps in mApps.
+     * Updates the set of filtered apps with the current filter, and refreshes the whole adapter.
      */
     private void updateAdapterItems() {
+        rebuildAdapterItems();
+
+        // Refresh the recycler view
+        if (mAdapter != null) {
+            mAdapter.notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Recomputes the set of filtered apps with the current filter.  At this point, we expect
+     * mCachedSectionNames to have been calculated for the set of all apps in mApps.
+     */
+    private void rebuildAdapterItems() {
         SectionInfo lastSectionInfo = null;
         String lastSectionName = null;
         FastScrollSectionInfo lastFastScrollerSectionInfo = null;
@@ -428,7 +600,7 @@ public class AlphabeticalAppsList {
                     mPredictedApps.add(info);
                 } else {
                     if (LauncherAppState.isDogfoodBuild()) {
-                        Log.e(TAG, "Predicted app not found: " + ck.flattenToString(mLauncher));
+                        Log.e(TAG, "Predicted app not found: " + ck.flattenToString(mContext));
                     }
                 }
                 // Stop at the number of predicted apps
@@ -463,7 +635,7 @@ public class AlphabeticalAppsList {
         // Recreate the filtered and sectioned apps (for convenience for the grid layout) from the
         // ordered set of sections
         for (AppInfo info : getFiltersAppInfos()) {
-            String sectionName = getAndUpdateCachedSectionName(info.title);
+            String sectionName = getAndUpdateCachedSectionName(info);
 
             // Create a new section if the section names do not match
             if (lastSectionInfo == null || !sectionName.equals(lastSectionName)) {
@@ -560,11 +732,6 @@ public class AlphabeticalAppsList {
                     break;
             }
         }
-
-        // Refresh the recycler view
-        if (mAdapter != null) {
-            mAdapter.notifyDataSetChanged();
-        }
     }
 
     private List<AppInfo> getFiltersAppInfos() {
@@ -638,10 +805,14 @@ public class AlphabeticalAppsList {
     }
 
     /**
-     * Returns the cached section name for the given title, recomputing and updating the cache if
-     * the title has no cached section name.
+     * Returns the section name for the given app, preferring the one stored in the icon cache,
+     * and otherwise recomputing and updating the cache if the title has no cached section name.
      */
-    private String getAndUpdateCachedSectionName(CharSequence title) {
+    private String getAndUpdateCachedSectionName(AppInfo info) {
+        if (info.sectionName != null) {
+            return info.sectionName;
+        }
+        CharSequence title = info.title;
         String sectionName = mCachedSectionNames.get(title);
         if (sectionName == null) {
             sectionName = mIndexer.computeSectionName(title);
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3.allapps;
+
+import com.android.launcher3.util.ComponentKey;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * An index of the words in the app titles, used to find the apps having a word starting with
+ * each of the words of a search query.
+ *
+ * The words are kept in a sorted map, so that all the words starting with a prefix are found
+ * with a single range lookup, and each word maps to the apps containing it. The index is updated
+ * incrementally as apps are added, updated and removed. When a query extends the previous one,
+ * only the previous results are checked again.
+ *
+ * All the methods are synchronized, so that queries can run on a background thread while the
+ * apps are updated on the UI thread.
+ */
+public class AppSearchIndex {
+
+    private static final Pattern SPLIT_PATTERN = Pattern.compile("[\\s|\\p{javaSpaceChar}]+");
+
+    // Number of apps checked between two checks for cancellation.
+    private static final int CANCEL_CHECK_INTERVAL = 64;
+    // Number of results reported early, when more apps remain to be checked.
+    private static final int PARTIAL_RESULT_SIZE = 20;
+
+    private static final Comparator<Entry> RANK_COMPARATOR = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            return lhs.rank - rhs.rank;
+        }
+    };
+
+    /**
+     * Receives the progress of a query.
+     */
+    public interface QueryCallbacks {
+        /**
+         * Returns whether the query is no longer needed, in which case it stops early.
+         */
+        boolean isCancelled();
+
+        /**
+         * Called with the first results of the query, in order, while the remaining apps are
+         * still being checked.
+         */
+        void onPartialResult(ArrayList<ComponentKey> topResults);
+    }
+
+    /**
+     * An indexed app.
+     */
+    private static class Entry {
+        final ComponentKey key;
+        final String title;
+        final String searchKeys;
+        final String[] words;
+        // Position of the app in the list of all apps, the results are returned in this order.
+        int rank;
+
+        Entry(ComponentKey key, String title, String searchKeys) {
+            this.key = key;
+            this.title = title;
+            this.searchKeys = searchKeys;
+            this.words = splitWords(searchKeys.isEmpty() ? title : title + " " + searchKeys);
+        }
+    }
+
+    // Apps by lowercase title word
+    private final TreeMap<String, HashSet<Entry>> mWords = new TreeMap<>();
+    private final HashMap<ComponentKey, Entry> mEntries = new HashMap<>();
+
+    // The last query and its results, ordered by rank
+    private String mLastQuery;
+    private ArrayList<Entry> mLastResult;
+
+    /**
+     * Adds an app to the index, or updates it if it is already indexed.
+     * @param searchKeys additional space separated words matching the app, can be null.
+     */
+    public synchronized void addOrUpdate(ComponentKey key, CharSequence title,
+            String searchKeys) {
+        String titleStr = title == null ? "" : title.toString();
+        String keysStr = searchKeys == null ? "" : searchKeys;
+        Entry old = mEntries.get(key);
+        if (old != null && old.title.equals(titleStr) && old.searchKeys.equals(keysStr)) {
+            return;
+        }
+        remove(key);
+
+        Entry entry = new Entry(key, titleStr, keysStr);
+        entry.rank = old != null ? old.rank : Integer.MAX_VALUE;
+        mEntries.put(key, entry);
+        for (String word : entry.words) {
+            HashSet<Entry> apps = mWords.get(word);
+            if (apps == null) {
+                apps = new HashSet<>();
+                mWords.put(word, apps);
+            }
+            apps.add(entry);
+        }
+        mLastQuery = null;
+    }
+
+    /**
+     * Removes an app from the index.
+     */
+    public synchronized void remove(ComponentKey key) {
+        Entry entry = mEntries.remove(key);
+        if (entry == null) {
+            return;
+        }
+        for (String word : entry.words) {
+            HashSet<Entry> apps = mWords.get(word);
+            if (apps != null) {
+                apps.remove(entry);
+                if (apps.isEmpty()) {
+                    mWords.remove(word);
+                }
+            }
+        }
+        mLastQuery = null;
+    }
+
+    /**
+     * Removes all the apps from the index.
+     */
+    public synchronized void clear() {
+        mWords.clear();
+        mEntries.clear();
+        mLastQuery = null;
+    }
+
+    /**
+     * Sets the order in which the matching apps are returned. Apps not in {@param apps} are
+     * returned last.
+     */
+    public synchronized void setOrder(List<ComponentKey> apps) {
+        for (Entry entry : mEntries.values()) {
+            entry.rank = Integer.MAX_VALUE;
+        }
+        for (int i = 0; i < apps.size(); i++) {
+            Entry entry = mEntries.get(apps.get(i));
+            if (entry != null) {
+                entry.rank = i;
+            }
+        }
+        mLastQuery = null;
+    }
+
+    /**
+     * Returns the apps having, for each word of {@param query}, a title word starting with it.
+     */
+    public ArrayList<ComponentKey> query(String query) {
+        return query(query, null);
+    }
+
+    /**
+     * Same as {@link #query(String)}, but reports the progress to {@param callbacks}.
+     * @return the matching apps, or null if the query was cancelled.
+     */
+    public synchronized ArrayList<ComponentKey> query(String query, QueryCallbacks callbacks) {
+        final String queryTextLower = query.toLowerCase();
+        final String[] queryWords = SPLIT_PATTERN.split(queryTextLower);
+
+        final ArrayList<Entry> candidates;
+        if (mLastQuery != null && queryTextLower.startsWith(mLastQuery)) {
+            // Every word of the new query extends or follows a word of the previous query, so
+            // the results can only be a subset of the previous ones.
+            candidates = mLastResult;
+        } else {
+            candidates = lookup(queryWords, callbacks);
+            if (candidates == null) {
+                return null;
+            }
+        }
+
+        // Check the candidates in order, so that the first results can be reported early.
+        ArrayList<Entry> result = new ArrayList<>();
+        boolean partialResultSent = false;
+        for (int i = 0; i < candidates.size(); i++) {
+            if (callbacks != null && i % CANCEL_CHECK_INTERVAL == 0 && i > 0) {
+                if (callbacks.isCancelled()) {
+                    return null;
+                }
+                if (!partialResultSent && result.size() >= PARTIAL_RESULT_SIZE) {
+                    callbacks.onPartialResult(toKeys(result));
+                    partialResultSent = true;
+                }
+            }
+            Entry entry = candidates.get(i);
+            if (matches(entry.words, queryWords)) {
+                result.add(entry);
+            }
+        }
+        mLastQuery = queryTextLower;
+        mLastResult = result;
+        return toKeys(result);
+    }
+
+    /**
+     * Returns the apps matching the most selective word of the query, ordered by rank, or null
+     * if the query was cancelled.
+     */
+    private ArrayList<Entry> lookup(String[] queryWords, QueryCallbacks callbacks) {
+        if (queryWords.length == 0) {
+            ArrayList<Entry> result = new ArrayList<>(mEntries.values());
+            Collections.sort(result, RANK_COMPARATOR);
+            return result;
+        }
+
+        HashSet<Entry> smallest = null;
+        for (String queryWord : queryWords) {
+            if (callbacks != null && callbacks.isCancelled()) {
+                return null;
+            }
+            HashSet<Entry> apps = new HashSet<>();
+            for (Map.Entry<String, HashSet<Entry>> e : mWords.tailMap(queryWord, true).entrySet()) {
+                if (!e.getKey().startsWith(queryWord)) {
+                    break;
+                }
+                apps.addAll(e.getValue());
+            }
+            if (smallest == null || apps.size() < smallest.size()) {
+                smallest = apps;
+            }
+            if (smallest.isEmpty()) {
+                break;
+            }
+        }
+        ArrayList<Entry> result = new ArrayList<>(smallest);
+        Collections.sort(result, RANK_COMPARATOR);
+        return result;
+    }
+
+    private static ArrayList<ComponentKey> toKeys(ArrayList<Entry> entries) {
+        ArrayList<ComponentKey> keys = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            keys.add(entry.key);
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the lowercase words of {@param title}.
+     */
+    public static String[] splitWords(String title) {
+        return SPLIT_PATTERN.split(title.toLowerCase());
+    }
+
+    /**
+     * Returns whether each of the {@param queryWords} is the prefix of one of {@param words}.
+     */
+    public static boolean matches(String[] words, String[] queryWords) {
+        for (int qi = 0; qi < queryWords.length; qi++) {
+            boolean foundMatch = false;
+            for (int i = 0; i < words.length; i++) {
+                if (words[i].startsWith(queryWords[qi])) {
+                    foundMatch = true;
+                    break;
+                }
+            }
+            if (!foundMatch) {
+                // If there is a word in the query that does not match any words in this
+                // title, so skip it.
+                return false;
+            }
+        }
+        return true;
+    }
+}
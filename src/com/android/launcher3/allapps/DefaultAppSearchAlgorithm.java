@@ -16,79 +16,120 @@
 package com.android.launcher3.allapps;
 
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 
-import com.android.launcher3.AppInfo;
 import com.android.launcher3.util.ComponentKey;
+import com.android.launcher3.util.LatencyStats;
 
 import java.util.ArrayList;
-import java.util.List;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The default search implementation.
+ *
+ * Queries run on a background thread, and each new query cancels the ones still running. Results
+ * are posted to the callbacks on the thread which created this object.
  */
 public class DefaultAppSearchAlgorithm {
 
-    private static final Pattern SPLIT_PATTERN = Pattern.compile("[\\s|\\p{javaSpaceChar}]+");
+    private static final LatencyStats sQueryLatency = new LatencyStats("Search latency", 100);
+    private static HandlerThread sSearchThread;
+    private static Handler sSearchHandler;
 
-    private final List<AppInfo> mApps;
+    private final AppSearchIndex mIndex;
     protected final Handler mResultHandler;
 
-    public DefaultAppSearchAlgorithm(List<AppInfo> apps) {
-        mApps = apps;
+    // Id of the latest query, older queries stop as soon as they see it changed.
+    private final AtomicInteger mQueryId = new AtomicInteger();
+
+    public DefaultAppSearchAlgorithm(AppSearchIndex index) {
+        mIndex = index;
         mResultHandler = new Handler();
     }
 
     public void cancel(boolean interruptActiveRequests) {
         if (interruptActiveRequests) {
+            mQueryId.incrementAndGet();
             mResultHandler.removeCallbacksAndMessages(null);
         }
     }
 
     public void doSearch(final String query,
             final AllAppsSearchBarController.Callbacks callback) {
-        final ArrayList<ComponentKey> result = getTitleMatchResult(query);
-        mResultHandler.post(new Runnable() {
+        final int queryId = mQueryId.incrementAndGet();
+        final long startTime = SystemClock.uptimeMillis();
+        getSearchHandler().post(new Runnable() {
 
             @Override
             public void run() {
-                callback.onSearchResult(query, result);
+                if (queryId != mQueryId.get()) {
+                    return;
+                }
+                final ArrayList<ComponentKey> result = getTitleMatchResult(query,
+                        new AppSearchIndex.QueryCallbacks() {
+
+                            @Override
+                            public boolean isCancelled() {
+                                return queryId != mQueryId.get();
+                            }
+
+                            @Override
+                            public void onPartialResult(ArrayList<ComponentKey> topResults) {
+                                postResult(queryId, startTime, query, topResults, true, callback);
+                            }
+                        });
+                if (result != null) {
+                    postResult(queryId, startTime, query, result, false, callback);
+                }
             }
         });
     }
 
-    protected ArrayList<ComponentKey> getTitleMatchResult(String query) {
+    /**
+     * Returns the apps matching {@param query}, or null if {@param callbacks} cancelled the query.
+     */
+    protected ArrayList<ComponentKey> getTitleMatchResult(String query,
+            AppSearchIndex.QueryCallbacks callbacks) {
         // Do an intersection of the words in the query and each title, and filter out all the
         // apps that don't match all of the words in the query.
-        final String queryTextLower = query.toLowerCase();
-        final String[] queryWords = SPLIT_PATTERN.split(queryTextLower);
-
-        final ArrayList<ComponentKey> result = new ArrayList<>();
-        for (AppInfo info : mApps) {
-            if (matches(info, queryWords)) {
-                result.add(info.toComponentKey());
-            }
-        }
-        return result;
+        return mIndex.query(query, callbacks);
     }
 
-    protected boolean matches(AppInfo info, String[] queryWords) {
-        String title = info.title.toString();
-        String[] words = SPLIT_PATTERN.split(title.toLowerCase());
-        for (int qi = 0; qi < queryWords.length; qi++) {
-            boolean foundMatch = false;
-            for (int i = 0; i < words.length; i++) {
-                if (words[i].startsWith(queryWords[qi])) {
-                    foundMatch = true;
-                    break;
+    private void postResult(final int queryId, final long startTime, final String query,
+            final ArrayList<ComponentKey> result, final boolean partial,
+            final AllAppsSearchBarController.Callbacks callback) {
+        mResultHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                if (queryId != mQueryId.get()) {
+                    // A newer query was started, drop the stale results.
+                    return;
+                }
+                if (partial) {
+                    callback.onPartialSearchResult(query, result);
+                } else {
+                    sQueryLatency.add(SystemClock.uptimeMillis() - startTime);
+                    callback.onSearchResult(query, result);
                 }
             }
-            if (!foundMatch) {
-                // If there is a word in the query that does not match any words in this
-                // title, so skip it.
-                return false;
-            }
+        });
+    }
+
+    /**
+     * Returns the latency of the recent queries, from the key stroke to the final results.
+     */
+    public static LatencyStats getLatencyStats() {
+        return sQueryLatency;
+    }
+
+    private static synchronized Handler getSearchHandler() {
+        if (sSearchHandler == null) {
+            sSearchThread = new HandlerThread("launcher-search");
+            sSearchThread.start();
+            sSearchHandler = new Handler(sSearchThread.getLooper());
         }
-        return true;
+        return sSearchHandler;
     }
 }
@@ -33,6 +33,7 @@ import com.android.launcher3.util.ComponentKey;
 
 import java.util.HashMap;
 import java.util.List;
+import java.util.Set;
 
 public abstract class AppWidgetManagerCompat {
 
@@ -72,6 +73,13 @@ public abstract class AppWidgetManagerCompat {
 
     public abstract List<AppWidgetProviderInfo> getAllProviders();
 
+    /**
+     * Returns the providers of the packages in {@param packageNames} for {@param user}. This
+     * only queries the providers of {@param user}, unlike {@link #getAllProviders()}.
+     */
+    public abstract List<AppWidgetProviderInfo> getProviders(
+            Set<String> packageNames, UserHandleCompat user);
+
     public abstract String loadLabel(LauncherAppWidgetProviderInfo info);
 
     public abstract boolean bindAppWidgetIdIfAllowed(
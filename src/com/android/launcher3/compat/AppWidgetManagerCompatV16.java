@@ -34,8 +34,10 @@ import com.android.launcher3.LauncherAppWidgetProviderInfo;
 import com.android.launcher3.Utilities;
 import com.android.launcher3.util.ComponentKey;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Set;
 
 class AppWidgetManagerCompatV16 extends AppWidgetManagerCompat {
 
@@ -48,6 +50,21 @@ class AppWidgetManagerCompatV16 extends AppWidgetManagerCompat {
         return mAppWidgetManager.getInstalledProviders();
     }
 
+    @Override
+    public List<AppWidgetProviderInfo> getProviders(
+            Set<String> packageNames, UserHandleCompat user) {
+        ArrayList<AppWidgetProviderInfo> providers = new ArrayList<>();
+        if (!UserHandleCompat.myUserHandle().equals(user)) {
+            return providers;
+        }
+        for (AppWidgetProviderInfo info : mAppWidgetManager.getInstalledProviders()) {
+            if (packageNames.contains(info.provider.getPackageName())) {
+                providers.add(info);
+            }
+        }
+        return providers;
+    }
+
     @Override
     public String loadLabel(LauncherAppWidgetProviderInfo info) {
         return Utilities.trim(info.label);
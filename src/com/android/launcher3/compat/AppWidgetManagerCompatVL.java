@@ -46,6 +46,7 @@ import com.android.launcher3.util.ComponentKey;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Set;
 
 @TargetApi(Build.VERSION_CODES.LOLLIPOP)
 class AppWidgetManagerCompatVL extends AppWidgetManagerCompat {
@@ -68,6 +69,19 @@ class AppWidgetManagerCompatVL extends AppWidgetManagerCompat {
         return providers;
     }
 
+    @Override
+    public List<AppWidgetProviderInfo> getProviders(
+            Set<String> packageNames, UserHandleCompat user) {
+        ArrayList<AppWidgetProviderInfo> providers = new ArrayList<AppWidgetProviderInfo>();
+        for (AppWidgetProviderInfo info :
+                mAppWidgetManager.getInstalledProvidersForProfile(user.getUser())) {
+            if (packageNames.contains(info.provider.getPackageName())) {
+                providers.add(info);
+            }
+        }
+        return providers;
+    }
+
     @Override
     public String loadLabel(LauncherAppWidgetProviderInfo info) {
         return info.getLabel(mPm);
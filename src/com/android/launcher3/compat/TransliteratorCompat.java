@@ -0,0 +1,187 @@
+package com.android.launcher3.compat;
+
+import android.util.Log;
+
+import com.android.launcher3.Utilities;
+
+import java.lang.reflect.Method;
+import java.text.Normalizer;
+import java.util.LinkedHashSet;
+import java.util.regex.Pattern;
+
+/**
+ * Computes additional search keys for app titles: the words without accents and, for titles in
+ * non latin scripts (mainly Chinese), their latin transliteration (full pinyin and initials).
+ * This lets search match titles using only prefix matching on plain latin words.
+ */
+public class TransliteratorCompat {
+    private static final String TAG = "TransliteratorCompat";
+
+    // Converts Han characters to pinyin with tone marks, and then removes the tone marks.
+    private static final String TRANSLITERATOR_ID = "Han-Latin; Latin-ASCII";
+
+    private static final Pattern SPLIT_PATTERN = Pattern.compile("[\\s|\\p{javaSpaceChar}]+");
+    private static final Pattern COMBINING_MARKS =
+            Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+
+    // Created on first use, as loading the ICU rules is expensive and most titles are ASCII.
+    private BaseTransliterator mTransliterator;
+
+    private synchronized BaseTransliterator getTransliterator() {
+        if (mTransliterator != null) {
+            return mTransliterator;
+        }
+        BaseTransliterator transliterator = null;
+        try {
+            if (Utilities.ATLEAST_N) {
+                transliterator = new TransliteratorVN();
+            }
+        } catch (Exception e) {
+            Log.d(TAG, "Unable to load the system transliterator", e);
+        }
+        if (transliterator == null) {
+            try {
+                transliterator = new TransliteratorV16();
+            } catch (Exception e) {
+                Log.d(TAG, "Unable to load the system transliterator", e);
+            }
+        }
+        mTransliterator = transliterator == null ? new BaseTransliterator() : transliterator;
+        return mTransliterator;
+    }
+
+    /**
+     * Returns the space separated search keys for {@param title}, in addition to the words of
+     * the title itself, or an empty string if there are none.
+     */
+    public String getSearchKeys(CharSequence title) {
+        if (title == null) {
+            return "";
+        }
+        String s = Utilities.trim(title).toLowerCase();
+        if (isAscii(s)) {
+            return "";
+        }
+
+        String[] words = SPLIT_PATTERN.split(s);
+        LinkedHashSet<String> keys = new LinkedHashSet<>();
+        for (String word : words) {
+            String folded = COMBINING_MARKS.matcher(
+                    Normalizer.normalize(word, Normalizer.Form.NFD)).replaceAll("");
+            keys.add(folded);
+            if (isAscii(folded)) {
+                continue;
+            }
+
+            String latin = getTransliterator().transliterate(folded);
+            if (latin == null || latin.equals(folded)) {
+                continue;
+            }
+            String[] syllables = SPLIT_PATTERN.split(Utilities.trim(latin).toLowerCase());
+            StringBuilder fullKey = new StringBuilder();
+            StringBuilder initials = new StringBuilder();
+            for (String syllable : syllables) {
+                if (!syllable.isEmpty()) {
+                    keys.add(syllable);
+                    fullKey.append(syllable);
+                    initials.append(syllable.charAt(0));
+                }
+            }
+            if (initials.length() > 1) {
+                keys.add(fullKey.toString());
+                keys.add(initials.toString());
+            }
+        }
+        for (String word : words) {
+            keys.remove(word);
+        }
+
+        StringBuilder result = new StringBuilder();
+        for (String key : keys) {
+            if (result.length() > 0) {
+                result.append(' ');
+            }
+            result.append(key);
+        }
+        return result.toString();
+    }
+
+    private static boolean isAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) > 0x7f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Base class used when the platform does not provide a transliterator.
+     */
+    private static class BaseTransliterator {
+
+        /**
+         * Returns the latin transliteration of {@param s}, or null if it is not supported.
+         */
+        protected String transliterate(String s) {
+            return null;
+        }
+    }
+
+    /**
+     * Reflected libcore.icu.Transliterator implementation.
+     */
+    private static class TransliteratorV16 extends BaseTransliterator {
+
+        private final Object mTransliterator;
+        private final Method mTransliterateMethod;
+
+        public TransliteratorV16() throws Exception {
+            Class clazz = Class.forName("libcore.icu.Transliterator");
+            mTransliterator = clazz.getConstructor(String.class).newInstance(TRANSLITERATOR_ID);
+            mTransliterateMethod = clazz.getDeclaredMethod("transliterate", String.class);
+        }
+
+        /**
+         * Synchronized as the underlying transliterator is not guaranteed to be thread safe.
+         */
+        @Override
+        protected synchronized String transliterate(String s) {
+            try {
+                return (String) mTransliterateMethod.invoke(mTransliterator, s);
+            } catch (Exception e) {
+                Log.d(TAG, "Unable to transliterate " + s, e);
+            }
+            return super.transliterate(s);
+        }
+    }
+
+    /**
+     * Reflected android.icu.text.Transliterator implementation.
+     */
+    private static class TransliteratorVN extends BaseTransliterator {
+
+        private final Object mTransliterator;
+        private final Method mTransliterateMethod;
+
+        public TransliteratorVN() throws Exception {
+            Class clazz = Class.forName("android.icu.text.Transliterator");
+            mTransliterator = clazz.getDeclaredMethod("getInstance", String.class)
+                    .invoke(null, TRANSLITERATOR_ID);
+            mTransliterateMethod = clazz.getDeclaredMethod("transliterate", String.class);
+        }
+
+        /**
+         * Synchronized as the underlying transliterator is not guaranteed to be thread safe.
+         */
+        @Override
+        protected synchronized String transliterate(String s) {
+            try {
+                return (String) mTransliterateMethod.invoke(mTransliterator, s);
+            } catch (Exception e) {
+                Log.d(TAG, "Unable to transliterate " + s, e);
+            }
+            return super.transliterate(s);
+        }
+    }
+}
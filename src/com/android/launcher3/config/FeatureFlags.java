@@ -33,5 +33,22 @@ public final class FeatureFlags {
 
     // Custom flags go below this
     public static boolean LAUNCHER3_ICON_NORMALIZATION = false;
+    // When enabled, the icon DB is refreshed in parallel shards instead of one app at a time.
+    public static boolean LAUNCHER3_PARALLEL_ICON_UPDATE = true;
+    // When enabled, high-res icons are also stored as raw pixels in a memory-mapped file, which
+    // is read instead of decoding the PNG blobs of the icon DB.
+    public static boolean LAUNCHER3_ICON_ATLAS = false;
+    // When enabled, the hotseat and the current page are bound before the rest of the workspace
+    // is loaded.
+    public static boolean LAUNCHER3_INCREMENTAL_WORKSPACE_LOAD = true;
+    // When enabled, the intents of the workspace items are parsed and validated on multiple
+    // threads before the items are built.
+    public static boolean LAUNCHER3_PARALLEL_WORKSPACE_PARSE = true;
+    // When enabled, all apps shows the apps predicted from the recent launches, unless the
+    // launcher callbacks provide the predictions.
+    public static boolean LAUNCHER3_APP_PREDICTIONS = true;
+    // When enabled, the missing widget previews are generated in the background after the
+    // widgets change, instead of when the widgets tray is opened.
+    public static boolean LAUNCHER3_WIDGET_PREVIEW_PREGENERATION = true;
 
 }
@@ -0,0 +1,397 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3.model;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.android.launcher3.compat.LauncherAppsCompat;
+import com.android.launcher3.compat.UserHandleCompat;
+import com.android.launcher3.compat.UserManagerCompat;
+import com.android.launcher3.util.ComponentKey;
+import com.android.launcher3.util.Thunk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Predicts the apps the user is likely to launch next, from the recent app launches.
+ *
+ * Each app is ranked by its number of launches, where every launch loses half of its weight
+ * after {@link #HALF_LIFE_MS}, so that both the frequency and the recency count. Only the last
+ * {@link #MAX_LAUNCHES} launches are kept, in memory in a ring buffer, and on disk in a file
+ * which is only appended to, and rewritten once it holds too many old launches.
+ *
+ * The launches of apps which are removed, or no longer resolve when the launches are loaded, are
+ * dropped, so that the predictions only contain apps which can be shown.
+ *
+ * All the work happens on the worker thread, the main thread only reads the latest predictions.
+ */
+public class AppLaunchPredictor {
+    private static final String TAG = "AppLaunchPredictor";
+    private static final boolean DEBUG = false;
+
+    private static final String FILE_NAME = "app_launches.log";
+
+    // Number of recent launches used for the predictions
+    static final int MAX_LAUNCHES = 500;
+    // The file is rewritten with only the recent launches once it holds this many launches
+    static final int MAX_FILE_LAUNCHES = 2 * MAX_LAUNCHES;
+    // Number of apps kept in the predictions
+    private static final int MAX_PREDICTIONS = 12;
+    // Duration after which a launch counts for half a launch
+    static final long HALF_LIFE_MS = 3 * DateUtils.DAY_IN_MILLIS;
+
+    static class Launch {
+        final ComponentKey key;
+        final long userSerial;
+        final long time;
+
+        Launch(ComponentKey key, long userSerial, long time) {
+            this.key = key;
+            this.userSerial = userSerial;
+            this.time = time;
+        }
+    }
+
+    /**
+     * The decayed launch count of an app, as of {@link #time}.
+     */
+    private static class Score {
+        double value;
+        long time;
+        int launchCount;
+
+        double getValueAt(long now) {
+            return value * Math.pow(2, -(double) (now - time) / HALF_LIFE_MS);
+        }
+    }
+
+    private final File mFile;
+    private final UserManagerCompat mUserManager;
+    private final Handler mWorkerHandler;
+
+    // Accessed on the worker thread only
+    private final Launch[] mLaunches = new Launch[MAX_LAUNCHES];
+    private int mNextLaunch;
+    private int mLaunchCount;
+    private int mFileLaunchCount;
+    private final HashMap<ComponentKey, Score> mScores = new HashMap<>();
+
+    private volatile List<ComponentKey> mPredictions = Collections.emptyList();
+
+    public AppLaunchPredictor(Context context, Looper workerLooper) {
+        this(new File(context.getFilesDir(), FILE_NAME), UserManagerCompat.getInstance(context),
+                workerLooper);
+        final LauncherAppsCompat launcherApps = LauncherAppsCompat.getInstance(context);
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                load();
+                removeInvalidLaunches(launcherApps);
+                updatePredictions();
+            }
+        });
+    }
+
+    /**
+     * Creates a predictor which does not load the launches, used by the tests.
+     */
+    AppLaunchPredictor(File file, UserManagerCompat userManager, Looper workerLooper) {
+        mFile = file;
+        mUserManager = userManager;
+        mWorkerHandler = new Handler(workerLooper);
+    }
+
+    /**
+     * Returns the predicted apps, the most likely first. Can be called on any thread.
+     */
+    public List<ComponentKey> getPredictedApps() {
+        return mPredictions;
+    }
+
+    /**
+     * Records a launch of {@param component}. Can be called on any thread.
+     */
+    public void recordLaunch(ComponentName component, UserHandleCompat user) {
+        final Launch launch = new Launch(new ComponentKey(component, user),
+                mUserManager.getSerialNumberForUser(user), System.currentTimeMillis());
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                addLaunch(launch);
+                append(launch);
+                updatePredictions();
+            }
+        });
+    }
+
+    /**
+     * Drops the launches of the apps in {@param packageNames} and of {@param components}, which
+     * were removed for {@param user}. Can be called on any thread.
+     */
+    public void removeApps(Set<String> packageNames, Set<ComponentName> components,
+            final UserHandleCompat user) {
+        final HashSet<String> packageNamesCopy = new HashSet<>(packageNames);
+        final HashSet<ComponentName> componentsCopy = new HashSet<>(components);
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                HashSet<ComponentKey> keys = new HashSet<>();
+                for (ComponentKey key : mScores.keySet()) {
+                    if (key.user.equals(user)
+                            && (componentsCopy.contains(key.componentName) || packageNamesCopy
+                                    .contains(key.componentName.getPackageName()))) {
+                        keys.add(key);
+                    }
+                }
+                if (removeLaunches(keys)) {
+                    updatePredictions();
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops the launches of the apps which no longer resolve, for instance because they were
+     * removed while Launcher was not running.
+     */
+    @Thunk void removeInvalidLaunches(LauncherAppsCompat launcherApps) {
+        HashSet<ComponentKey> keys = new HashSet<>();
+        for (ComponentKey key : mScores.keySet()) {
+            if (!launcherApps.isActivityEnabledForProfile(key.componentName, key.user)) {
+                keys.add(key);
+            }
+        }
+        removeLaunches(keys);
+    }
+
+    /**
+     * Removes all the launches of {@param keys} from the ring buffer and the file.
+     * @return true if any launch was removed.
+     */
+    boolean removeLaunches(Set<ComponentKey> keys) {
+        if (keys.isEmpty()) {
+            return false;
+        }
+        ArrayList<Launch> launches = new ArrayList<>(mLaunchCount);
+        int first = (mNextLaunch - mLaunchCount + MAX_LAUNCHES) % MAX_LAUNCHES;
+        for (int i = 0; i < mLaunchCount; i++) {
+            Launch launch = mLaunches[(first + i) % MAX_LAUNCHES];
+            if (!keys.contains(launch.key)) {
+                launches.add(launch);
+            }
+        }
+
+        // Replay the remaining launches, which recomputes the scores
+        Arrays.fill(mLaunches, null);
+        mNextLaunch = 0;
+        mLaunchCount = 0;
+        mScores.clear();
+        for (Launch launch : launches) {
+            addLaunch(launch);
+        }
+        rewrite();
+        if (DEBUG) {
+            Log.d(TAG, "Removed the launches of " + keys);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the decayed launch count of {@param key} at {@param now}.
+     */
+    double getScore(ComponentKey key, long now) {
+        Score score = mScores.get(key);
+        return score == null ? 0 : score.getValueAt(now);
+    }
+
+    @Thunk void addLaunch(Launch launch) {
+        Launch evicted = mLaunches[mNextLaunch];
+        if (evicted != null) {
+            Score score = mScores.get(evicted.key);
+            if (score != null) {
+                score.value = Math.max(0, score.value
+                        - Math.pow(2, -(double) (score.time - evicted.time) / HALF_LIFE_MS));
+                if (--score.launchCount == 0) {
+                    mScores.remove(evicted.key);
+                }
+            }
+        }
+        mLaunches[mNextLaunch] = launch;
+        mNextLaunch = (mNextLaunch + 1) % MAX_LAUNCHES;
+        mLaunchCount = Math.min(mLaunchCount + 1, MAX_LAUNCHES);
+
+        Score score = mScores.get(launch.key);
+        if (score == null) {
+            score = new Score();
+            score.time = launch.time;
+            mScores.put(launch.key, score);
+        }
+        long time = Math.max(score.time, launch.time);
+        score.value = score.getValueAt(time)
+                + Math.pow(2, -(double) (time - launch.time) / HALF_LIFE_MS);
+        score.time = time;
+        score.launchCount++;
+    }
+
+    @Thunk void updatePredictions() {
+        final long now = System.currentTimeMillis();
+        final HashMap<ComponentKey, Double> values = new HashMap<>();
+        for (Map.Entry<ComponentKey, Score> e : mScores.entrySet()) {
+            values.put(e.getKey(), e.getValue().getValueAt(now));
+        }
+        ArrayList<ComponentKey> predictions = new ArrayList<>(values.keySet());
+        Collections.sort(predictions, new Comparator<ComponentKey>() {
+            @Override
+            public int compare(ComponentKey lhs, ComponentKey rhs) {
+                return Double.compare(values.get(rhs), values.get(lhs));
+            }
+        });
+        if (predictions.size() > MAX_PREDICTIONS) {
+            predictions = new ArrayList<>(predictions.subList(0, MAX_PREDICTIONS));
+        }
+        mPredictions = Collections.unmodifiableList(predictions);
+        if (DEBUG) {
+            Log.d(TAG, "Predictions from " + mLaunchCount + " launches: " + predictions);
+        }
+    }
+
+    /**
+     * Reads the launches from the file. A truncated last launch, from a write which did not
+     * complete, is dropped.
+     */
+    @Thunk void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        boolean truncated = false;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            while (true) {
+                long time;
+                try {
+                    time = in.readLong();
+                } catch (EOFException e) {
+                    // End of the launches
+                    break;
+                }
+                truncated = true;
+                long userSerial = in.readLong();
+                String component = in.readUTF();
+                truncated = false;
+                mFileLaunchCount++;
+
+                UserHandleCompat user = mUserManager.getUserForSerialNumber(userSerial);
+                ComponentName cn = ComponentName.unflattenFromString(component);
+                if (user != null && cn != null) {
+                    addLaunch(new Launch(new ComponentKey(cn, user), userSerial, time));
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read the app launches", e);
+            truncated = true;
+        } finally {
+            closeSilently(in);
+        }
+        // Rewrite the file without the truncated launch, so that the next launches can be
+        // appended, and also when the user of some launches was removed.
+        if (truncated || mFileLaunchCount > mLaunchCount) {
+            rewrite();
+        }
+    }
+
+    @Thunk void append(Launch launch) {
+        if (mFileLaunchCount >= MAX_FILE_LAUNCHES) {
+            rewrite();
+            return;
+        }
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(mFile, true));
+            write(out, launch);
+            mFileLaunchCount++;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to record the app launch", e);
+        } finally {
+            closeSilently(out);
+        }
+    }
+
+    /**
+     * Replaces the file with the launches in the ring buffer.
+     */
+    private void rewrite() {
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            int first = (mNextLaunch - mLaunchCount + MAX_LAUNCHES) % MAX_LAUNCHES;
+            for (int i = 0; i < mLaunchCount; i++) {
+                write(out, mLaunches[(first + i) % MAX_LAUNCHES]);
+            }
+            out.close();
+            out = null;
+            if (tmpFile.renameTo(mFile)) {
+                mFileLaunchCount = mLaunchCount;
+            } else {
+                Log.e(TAG, "Unable to replace the app launches");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write the app launches", e);
+        } finally {
+            closeSilently(out);
+        }
+    }
+
+    private static void write(DataOutputStream out, Launch launch) throws IOException {
+        out.writeLong(launch.time);
+        out.writeLong(launch.userSerial);
+        out.writeUTF(launch.key.componentName.flattenToString());
+    }
+
+    private static void closeSilently(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+}
@@ -40,8 +40,15 @@ public class AppNameComparator {
 
             @Override
             public final int compare(ItemInfo a, ItemInfo b) {
-                // Order by the title in the current locale
-                int result = compareTitles(a.title.toString(), b.title.toString());
+                // Order by the title in the current locale, using the precomputed sort keys when
+                // available
+                int result;
+                if (a instanceof AppInfo && b instanceof AppInfo
+                        && ((AppInfo) a).sortKey != null && ((AppInfo) b).sortKey != null) {
+                    result = compareSortKeys(((AppInfo) a).sortKey, ((AppInfo) b).sortKey);
+                } else {
+                    result = compareTitles(a.title.toString(), b.title.toString());
+                }
                 if (result == 0 && a instanceof AppInfo && b instanceof AppInfo) {
                     AppInfo aAppInfo = (AppInfo) a;
                     AppInfo bAppInfo = (AppInfo) b;
@@ -78,6 +85,41 @@ public class AppNameComparator {
         return mSectionNameComparator;
     }
 
+    /**
+     * Returns a key of {@param title} which compares, using unsigned byte order, the same way as
+     * {@link #compareTitles} does. The key is only valid for the current locale.
+     */
+    public byte[] getSortKey(String title) {
+        byte[] collationKey;
+        synchronized (mCollator) {
+            collationKey = mCollator.getCollationKey(title).toByteArray();
+        }
+        byte[] key = new byte[collationKey.length + 1];
+        // De-prioritize any titles that don't start with a linguistic letter or digit
+        key[0] = (byte) (startsWithLetter(title) ? 0 : 1);
+        System.arraycopy(collationKey, 0, key, 1, collationKey.length);
+        return key;
+    }
+
+    /**
+     * Compares two keys returned by {@link #getSortKey} with the same return value semantics as
+     * Comparator.
+     */
+    @Thunk static int compareSortKeys(byte[] keyA, byte[] keyB) {
+        int length = Math.min(keyA.length, keyB.length);
+        for (int i = 0; i < length; i++) {
+            int result = (keyA[i] & 0xff) - (keyB[i] & 0xff);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return keyA.length - keyB.length;
+    }
+
+    private static boolean startsWithLetter(String title) {
+        return (title.length() > 0) && Character.isLetterOrDigit(title.codePointAt(0));
+    }
+
     /**
      * Compares two titles with the same return value semantics as Comparator.
      */
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3.model;
+
+import com.android.launcher3.FolderInfo;
+import com.android.launcher3.ItemInfo;
+import com.android.launcher3.util.LatencyStats;
+
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * Decides how many workspace items are bound in each message posted to the main thread, so that
+ * each message takes about {@link #TARGET_CHUNK_MS}.
+ *
+ * The cost of binding an item is measured as the items are bound, and the following chunks are
+ * sized from it. Folders cost more than shortcuts as their icon previews the first items, and
+ * widgets are measured separately as they are bound on their own.
+ *
+ * Must be used on the main thread.
+ */
+public class BindChunkPolicy {
+
+    // Target duration of each bind message
+    private static final float TARGET_CHUNK_MS = 4f;
+    private static final int MAX_CHUNK_SIZE = 36;
+    private static final int MAX_WIDGET_CHUNK_SIZE = 4;
+
+    // Cost of a folder, relative to a shortcut
+    private static final float FOLDER_WEIGHT = 3f;
+
+    // Initial estimates, which bind the shortcuts in chunks of about 6 and the widgets one by one
+    private static final float DEFAULT_ITEM_COST_MS = 0.7f;
+    private static final float DEFAULT_WIDGET_COST_MS = TARGET_CHUNK_MS;
+
+    // Weight of the last measure in the moving averages of the costs
+    private static final float SMOOTHING = 0.3f;
+
+    private float mItemCostMs = DEFAULT_ITEM_COST_MS;
+    private float mWidgetCostMs = DEFAULT_WIDGET_COST_MS;
+
+    private final LatencyStats mChunkSizes = new LatencyStats("Bind chunk size", 100, " items");
+    private final LatencyStats mWidgetChunkSizes =
+            new LatencyStats("Bind widget chunk size", 100, " widgets");
+
+    /**
+     * Returns the end (exclusive) of the chunk of {@param items} starting at {@param start}.
+     */
+    public int getChunkEnd(List<ItemInfo> items, int start) {
+        int size = items.size();
+        int end = start;
+        float cost = 0;
+        while (end < size && end - start < MAX_CHUNK_SIZE
+                && (end == start || cost + getWeight(items.get(end)) * mItemCostMs
+                        <= TARGET_CHUNK_MS)) {
+            cost += getWeight(items.get(end)) * mItemCostMs;
+            end++;
+        }
+        mChunkSizes.add(end - start);
+        return end;
+    }
+
+    /**
+     * Records that binding the {@param items} from {@param start} to {@param end} (exclusive)
+     * took {@param durationNanos}.
+     */
+    public void onItemsBound(List<ItemInfo> items, int start, int end, long durationNanos) {
+        float weight = 0;
+        for (int i = start; i < end; i++) {
+            weight += getWeight(items.get(i));
+        }
+        if (weight > 0) {
+            mItemCostMs = smooth(mItemCostMs, durationNanos / 1000000f / weight);
+        }
+    }
+
+    /**
+     * Returns the number of widgets to bind in the next message.
+     */
+    public int getWidgetChunkSize() {
+        int size = Math.max(1, Math.min(MAX_WIDGET_CHUNK_SIZE,
+                (int) (TARGET_CHUNK_MS / mWidgetCostMs)));
+        mWidgetChunkSizes.add(size);
+        return size;
+    }
+
+    /**
+     * Records that binding {@param count} widgets took {@param durationNanos}.
+     */
+    public void onWidgetsBound(int count, long durationNanos) {
+        if (count > 0) {
+            mWidgetCostMs = smooth(mWidgetCostMs, durationNanos / 1000000f / count);
+        }
+    }
+
+    private static float getWeight(ItemInfo item) {
+        return item instanceof FolderInfo ? FOLDER_WEIGHT : 1f;
+    }
+
+    private static float smooth(float average, float value) {
+        return average + SMOOTHING * (value - average);
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "Bind cost: item=" + mItemCostMs + "ms widget=" + mWidgetCostMs
+                + "ms");
+        writer.println(prefix + mChunkSizes);
+        writer.println(prefix + mWidgetChunkSizes);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.model;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.util.LongSparseArray;
+
+import com.android.launcher3.LauncherSettings;
+import com.android.launcher3.Utilities;
+import com.android.launcher3.compat.UserHandleCompat;
+import com.android.launcher3.util.Thunk;
+
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parses the intents of the favorites rows, and checks whether their target packages and
+ * activities are enabled, on a few threads in parallel. The loader then builds the items
+ * serially using the results, see {@link #parseIntent} and {@link PackageValidityCache}.
+ *
+ * The work is done in two stages: {@link #prefetch} first copies the relevant columns of the
+ * rows into a compact form, and then parses and validates them in chunks. The calling thread
+ * takes part in the second stage, so it completes even if no other thread is available.
+ */
+public class FavoritesRowParser {
+
+    // Number of rows processed by a thread at a time.
+    private static final int CHUNK_SIZE = 16;
+    // Maximum number of threads used in addition to the calling thread.
+    private static final int MAX_HELPER_THREADS = 3;
+
+    private final PackageValidityCache mValidityCache;
+    private final LongSparseArray<UserHandleCompat> mUsers;
+
+    // Results of the parse stage, by row id
+    private final ConcurrentHashMap<Long, Intent> mIntents = new ConcurrentHashMap<>();
+
+    // Stats
+    private int mRowCount;
+    private long mReadMs;
+    private long mParseMs;
+    private int mMaxThreads;
+
+    public FavoritesRowParser(PackageValidityCache validityCache,
+            LongSparseArray<UserHandleCompat> users) {
+        mValidityCache = validityCache;
+        mUsers = users;
+    }
+
+    /**
+     * Parses and validates the rows starting at the current position of {@param c}, or at the
+     * first row if the cursor is before the first row. If {@param groupIndex} is valid, only the
+     * rows having the same value as the first one in that column are processed. The cursor is
+     * moved back to its original position.
+     */
+    public void prefetch(Cursor c, int groupIndex) {
+        long start = SystemClock.uptimeMillis();
+        final int idIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites._ID);
+        final int itemTypeIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.ITEM_TYPE);
+        final int intentIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.INTENT);
+        final int profileIdIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.PROFILE_ID);
+
+        // Stage 1: read the raw rows
+        final ArrayList<Long> ids = new ArrayList<>();
+        final ArrayList<String> intents = new ArrayList<>();
+        final ArrayList<UserHandleCompat> users = new ArrayList<>();
+        int position = c.getPosition();
+        if (position < 0 ? c.moveToNext() : !c.isAfterLast()) {
+            int group = groupIndex < 0 ? 0 : c.getInt(groupIndex);
+            do {
+                if (groupIndex >= 0 && c.getInt(groupIndex) != group) {
+                    break;
+                }
+                int itemType = c.getInt(itemTypeIndex);
+                if (itemType != LauncherSettings.Favorites.ITEM_TYPE_APPLICATION
+                        && itemType != LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT) {
+                    continue;
+                }
+                UserHandleCompat user = mUsers.get(c.getInt(profileIdIndex));
+                String intent = c.getString(intentIndex);
+                if (user != null && intent != null) {
+                    ids.add(c.getLong(idIndex));
+                    intents.add(intent);
+                    users.add(user);
+                }
+            } while (c.moveToNext());
+        }
+        c.moveToPosition(position);
+        long readEnd = SystemClock.uptimeMillis();
+        mReadMs += readEnd - start;
+
+        // Stage 2: parse and validate the rows in parallel
+        final int chunkCount = (ids.size() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        final AtomicInteger nextChunk = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(chunkCount);
+        Runnable worker = new Runnable() {
+
+            @Override
+            public void run() {
+                int chunk;
+                while ((chunk = nextChunk.getAndIncrement()) < chunkCount) {
+                    int end = Math.min((chunk + 1) * CHUNK_SIZE, ids.size());
+                    for (int i = chunk * CHUNK_SIZE; i < end; i++) {
+                        parseRow(ids.get(i), intents.get(i), users.get(i));
+                    }
+                    done.countDown();
+                }
+            }
+        };
+        int helpers = Math.max(0, Math.min(Math.min(MAX_HELPER_THREADS, chunkCount - 1),
+                Runtime.getRuntime().availableProcessors() - 1));
+        for (int i = 0; i < helpers; i++) {
+            Utilities.THREAD_POOL_EXECUTOR.execute(worker);
+        }
+        worker.run();
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            // The remaining rows are parsed by the loader if needed.
+        }
+
+        mRowCount += ids.size();
+        mParseMs += SystemClock.uptimeMillis() - readEnd;
+        mMaxThreads = Math.max(mMaxThreads, helpers + 1);
+    }
+
+    @Thunk void parseRow(long id, String intentDescription, UserHandleCompat user) {
+        try {
+            Intent intent = Intent.parseUri(intentDescription, 0);
+            ComponentName cn = intent.getComponent();
+            if (cn != null && cn.getPackageName() != null
+                    && mValidityCache.isPackageEnabled(cn.getPackageName(), user)) {
+                mValidityCache.isActivityEnabled(cn, user);
+            }
+            mIntents.put(id, intent);
+        } catch (URISyntaxException e) {
+            // Reported by the loader when it parses the row again.
+        }
+    }
+
+    /**
+     * Returns the intent of the row {@param id}, which is parsed from {@param description}
+     * unless it was already parsed by {@link #prefetch}.
+     */
+    public Intent parseIntent(long id, String description) throws URISyntaxException {
+        Intent intent = mIntents.remove(id);
+        return intent != null ? intent : Intent.parseUri(description, 0);
+    }
+
+    /**
+     * Returns the total time spent in {@link #prefetch}.
+     */
+    public long getPrefetchMs() {
+        return mReadMs + mParseMs;
+    }
+
+    /**
+     * Returns a summary of the time spent in each stage, for debugging.
+     */
+    public String getStats() {
+        return mRowCount + " rows, read " + mReadMs + "ms, parse & validate " + mParseMs
+                + "ms on " + mMaxThreads + " threads";
+    }
+}
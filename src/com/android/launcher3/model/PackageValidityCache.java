@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.model;
+
+import android.content.ComponentName;
+import android.util.Pair;
+
+import com.android.launcher3.compat.LauncherActivityInfoCompat;
+import com.android.launcher3.compat.LauncherAppsCompat;
+import com.android.launcher3.compat.UserHandleCompat;
+import com.android.launcher3.util.ComponentKey;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A snapshot of the {@link LauncherAppsCompat} queries made during a single model operation,
+ * like a loader run or a package update. Each query is usually sent to the system only once,
+ * and the activity lists are used to answer the enabled checks of their packages and
+ * activities.
+ *
+ * The results are not updated when packages change, so an instance must not outlive the
+ * operation it was created for. All the methods are thread safe.
+ */
+public class PackageValidityCache {
+
+    private final LauncherAppsCompat mLauncherApps;
+
+    // Launcher activities of all packages, by user
+    private final ConcurrentHashMap<UserHandleCompat, List<LauncherActivityInfoCompat>>
+            mAllActivities = new ConcurrentHashMap<>();
+    // Launcher activities of a single package, for users not in mAllActivities
+    private final ConcurrentHashMap<Pair<String, UserHandleCompat>,
+            List<LauncherActivityInfoCompat>> mPackageActivities = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<Pair<String, UserHandleCompat>, Boolean> mValidPackages =
+            new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<ComponentKey, Boolean> mValidActivities =
+            new ConcurrentHashMap<>();
+
+    // Stats
+    private final AtomicInteger mQueries = new AtomicInteger();
+    private final AtomicInteger mCacheHits = new AtomicInteger();
+
+    public PackageValidityCache(LauncherAppsCompat launcherApps) {
+        mLauncherApps = launcherApps;
+    }
+
+    /**
+     * @see LauncherAppsCompat#getActivityList
+     * The returned list is shared and must not be modified.
+     */
+    public List<LauncherActivityInfoCompat> getActivityList(String packageName,
+            UserHandleCompat user) {
+        List<LauncherActivityInfoCompat> all = mAllActivities.get(user);
+        if (packageName == null) {
+            if (all == null) {
+                all = mLauncherApps.getActivityList(null, user);
+                mQueries.incrementAndGet();
+                if (all != null) {
+                    seed(all, user);
+                    mAllActivities.put(user, all);
+                }
+            } else {
+                mCacheHits.incrementAndGet();
+            }
+            return all;
+        }
+
+        if (all != null) {
+            mCacheHits.incrementAndGet();
+            ArrayList<LauncherActivityInfoCompat> result = new ArrayList<>();
+            for (LauncherActivityInfoCompat info : all) {
+                if (packageName.equals(info.getComponentName().getPackageName())) {
+                    result.add(info);
+                }
+            }
+            return result;
+        }
+
+        Pair<String, UserHandleCompat> key = Pair.create(packageName, user);
+        List<LauncherActivityInfoCompat> result = mPackageActivities.get(key);
+        if (result == null) {
+            result = mLauncherApps.getActivityList(packageName, user);
+            mQueries.incrementAndGet();
+            if (result != null) {
+                seed(result, user);
+                mPackageActivities.put(key, result);
+            }
+        } else {
+            mCacheHits.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * @see LauncherAppsCompat#isPackageEnabledForProfile
+     */
+    public boolean isPackageEnabled(String packageName, UserHandleCompat user) {
+        Pair<String, UserHandleCompat> key = Pair.create(packageName, user);
+        Boolean result = mValidPackages.get(key);
+        if (result == null) {
+            result = mLauncherApps.isPackageEnabledForProfile(packageName, user);
+            mQueries.incrementAndGet();
+            mValidPackages.put(key, result);
+        } else {
+            mCacheHits.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * @see LauncherAppsCompat#isActivityEnabledForProfile
+     */
+    public boolean isActivityEnabled(ComponentName cn, UserHandleCompat user) {
+        ComponentKey key = new ComponentKey(cn, user);
+        Boolean result = mValidActivities.get(key);
+        if (result == null) {
+            result = mLauncherApps.isActivityEnabledForProfile(cn, user);
+            mQueries.incrementAndGet();
+            mValidActivities.put(key, result);
+        } else {
+            mCacheHits.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * Marks all the activities in {@param activities} and their packages as enabled. Packages
+     * and activities which are not listed are still checked individually, as the list only
+     * contains the launchable activities.
+     */
+    private void seed(List<LauncherActivityInfoCompat> activities, UserHandleCompat user) {
+        for (LauncherActivityInfoCompat info : activities) {
+            ComponentName cn = info.getComponentName();
+            mValidActivities.put(new ComponentKey(cn, user), Boolean.TRUE);
+            mValidPackages.put(Pair.create(cn.getPackageName(), user), Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Returns the number of queries sent to the system and answered from the cache.
+     */
+    public String getStats() {
+        return mQueries.get() + " queries, " + mCacheHits.get() + " cache hits, "
+                + mValidPackages.size() + " packages, " + mValidActivities.size() + " activities";
+    }
+}
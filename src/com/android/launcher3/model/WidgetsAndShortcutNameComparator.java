@@ -15,6 +15,8 @@ import com.android.launcher3.util.ComponentKey;
 import java.text.Collator;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
 
 public class WidgetsAndShortcutNameComparator implements Comparator<Object> {
     private final AppWidgetManagerCompat mManager;
@@ -38,6 +40,18 @@ public class WidgetsAndShortcutNameComparator implements Comparator<Object> {
         mLabelCache.clear();
     }
 
+    /**
+     * Resets the stored state of the widgets and shortcuts in {@param packageNames}.
+     */
+    public void reset(Set<String> packageNames) {
+        Iterator<ComponentKey> iterator = mLabelCache.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (packageNames.contains(iterator.next().componentName.getPackageName())) {
+                iterator.remove();
+            }
+        }
+    }
+
     @Override
     public final int compare(Object objA, Object objB) {
         ComponentKey keyA = getComponentKey(objA);
@@ -21,12 +21,15 @@ import com.android.launcher3.compat.AlphabeticIndexCompat;
 import com.android.launcher3.compat.AppWidgetManagerCompat;
 import com.android.launcher3.compat.UserHandleCompat;
 import com.android.launcher3.config.ProviderConfig;
+import com.android.launcher3.util.ComponentKey;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Widgets data model that is used by the adapters of the widget views and controllers.
@@ -53,6 +56,9 @@ public class WidgetsModel {
 
     private ArrayList<Object> mRawList;
 
+    /* Set when a query of the providers failed, so that the next update queries all packages. */
+    private boolean mNeedsFullUpdate;
+
     public WidgetsModel(Context context,  IconCache iconCache, AppFilter appFilter) {
         mAppWidgetMgr = AppWidgetManagerCompat.getInstance(context);
         mWidgetAndShortcutNameComparator = new WidgetsAndShortcutNameComparator(context);
@@ -119,21 +125,148 @@ public class WidgetsModel {
             widgetsAndShortcuts.addAll(context.getPackageManager().queryIntentActivities(
                     new Intent(Intent.ACTION_CREATE_SHORTCUT), 0));
             setWidgetsAndShortcuts(widgetsAndShortcuts);
+            mNeedsFullUpdate = false;
         } catch (Exception e) {
-            if (!LauncherAppState.isDogfoodBuild() &&
-                    (e.getCause() instanceof TransactionTooLargeException ||
-                            e.getCause() instanceof DeadObjectException)) {
-                // the returned value may be incomplete and will not be refreshed until the next
-                // time Launcher starts.
-                // TODO: after figuring out a repro step, introduce a dirty bit to check when
-                // onResume is called to refresh the widget provider list.
-            } else {
+            if (!isQueryFailure(e)) {
+                throw e;
+            }
+            // the returned value may be incomplete, it is refreshed on the next update.
+            Log.w(TAG, "Failed to query the widgets and shortcuts", e);
+            mNeedsFullUpdate = true;
+        }
+        return clone();
+    }
+
+    /**
+     * Updates the widgets and shortcuts of {@param packageNames} for {@param user}, and returns a
+     * snapshot of the model. The lists of the other packages are left as they are and shared with
+     * the previous snapshots, so that the views can tell which packages changed.
+     *
+     * @return null if the model was never loaded, in which case there is nothing to update.
+     */
+    public WidgetsModel updatePackagesAndClone(Context context, Set<String> packageNames,
+            UserHandleCompat user) {
+        Utilities.assertWorkerThread();
+        if (mRawList.isEmpty()) {
+            return null;
+        }
+        if (mNeedsFullUpdate) {
+            return updateAndClone(context);
+        }
+
+        final ArrayList<Object> widgetsAndShortcuts = new ArrayList<>();
+        try {
+            // Widgets
+            for (AppWidgetProviderInfo widgetInfo :
+                    mAppWidgetMgr.getProviders(packageNames, user)) {
+                widgetsAndShortcuts.add(LauncherAppWidgetProviderInfo
+                        .fromProviderInfo(context, widgetInfo));
+            }
+            // Shortcuts, which only exist for the main user
+            if (UserHandleCompat.myUserHandle().equals(user)) {
+                for (String packageName : packageNames) {
+                    widgetsAndShortcuts.addAll(context.getPackageManager().queryIntentActivities(
+                            new Intent(Intent.ACTION_CREATE_SHORTCUT).setPackage(packageName), 0));
+                }
+            }
+        } catch (Exception e) {
+            if (!isQueryFailure(e)) {
                 throw e;
             }
+            // Keep the current content, it is refreshed on the next update.
+            Log.w(TAG, "Failed to query the widgets and shortcuts of " + packageNames, e);
+            mNeedsFullUpdate = true;
+            return clone();
+        }
+
+        // Replace the entries of the packages in the raw list.
+        ArrayList<Object> rawList = new ArrayList<>(mRawList.size() + widgetsAndShortcuts.size());
+        for (Object o : mRawList) {
+            ComponentKey key = getComponentKey(o);
+            if (key == null || !user.equals(key.user)
+                    || !packageNames.contains(key.componentName.getPackageName())) {
+                rawList.add(o);
+            }
+        }
+        rawList.addAll(widgetsAndShortcuts);
+        mRawList = rawList;
+        mWidgetAndShortcutNameComparator.reset(packageNames);
+
+        InvariantDeviceProfile idp = LauncherAppState.getInstance().getInvariantDeviceProfile();
+        for (String packageName : packageNames) {
+            // Keep the entries of the other users, the package rows are shared between users.
+            ArrayList<Object> widgetsShortcutsList = new ArrayList<>();
+            Iterator<PackageItemInfo> iterator = mPackageItemInfos.iterator();
+            while (iterator.hasNext()) {
+                PackageItemInfo pInfo = iterator.next();
+                if (pInfo.packageName.equals(packageName)) {
+                    for (Object o : mWidgetsList.remove(pInfo)) {
+                        if (!user.equals(getComponentKey(o).user)) {
+                            widgetsShortcutsList.add(o);
+                        }
+                    }
+                    iterator.remove();
+                    break;
+                }
+            }
+            for (Object o : widgetsAndShortcuts) {
+                ComponentKey key = getKeyIfShown(o, idp);
+                if (key != null && packageName.equals(key.componentName.getPackageName())) {
+                    widgetsShortcutsList.add(o);
+                }
+            }
+            if (widgetsShortcutsList.isEmpty()) {
+                continue;
+            }
+
+            // Lists are never changed once published, as the snapshots share them.
+            Collections.sort(widgetsShortcutsList, mWidgetAndShortcutNameComparator);
+            PackageItemInfo pInfo = newPackageItemInfo(packageName,
+                    getComponentKey(widgetsShortcutsList.get(0)).user);
+            int index = Collections.binarySearch(mPackageItemInfos, pInfo, mAppNameComparator);
+            mPackageItemInfos.add(index < 0 ? -index - 1 : index, pInfo);
+            mWidgetsList.put(pInfo, widgetsShortcutsList);
         }
         return clone();
     }
 
+    /**
+     * Returns whether the widgets of the model are exactly the installed providers of all the
+     * users, i.e. a change of the providers was already applied to the model.
+     */
+    public boolean hasAllProviders() {
+        Utilities.assertWorkerThread();
+        if (mNeedsFullUpdate) {
+            return false;
+        }
+        HashMap<ComponentKey, AppWidgetProviderInfo> providers;
+        try {
+            providers = mAppWidgetMgr.getAllProvidersMap();
+        } catch (Exception e) {
+            if (!isQueryFailure(e)) {
+                throw e;
+            }
+            Log.w(TAG, "Failed to query the widget providers", e);
+            return false;
+        }
+        int widgetCount = 0;
+        for (Object o : mRawList) {
+            if (o instanceof LauncherAppWidgetProviderInfo) {
+                if (!providers.containsKey(getComponentKey(o))) {
+                    return false;
+                }
+                widgetCount++;
+            }
+        }
+        return widgetCount == providers.size();
+    }
+
+    private static boolean isQueryFailure(Exception e) {
+        return !LauncherAppState.isDogfoodBuild() &&
+                (e.getCause() instanceof TransactionTooLargeException ||
+                        e.getCause() instanceof DeadObjectException);
+    }
+
     private void setWidgetsAndShortcuts(ArrayList<Object> rawWidgetsShortcuts) {
         mRawList = rawWidgetsShortcuts;
         if (DEBUG) {
@@ -153,47 +286,11 @@ public class WidgetsModel {
 
         // add and update.
         for (Object o: rawWidgetsShortcuts) {
-            String packageName = "";
-            UserHandleCompat userHandle = null;
-            ComponentName componentName = null;
-            if (o instanceof LauncherAppWidgetProviderInfo) {
-                LauncherAppWidgetProviderInfo widgetInfo = (LauncherAppWidgetProviderInfo) o;
-
-                // Ensure that all widgets we show can be added on a workspace of this size
-                int minSpanX = Math.min(widgetInfo.spanX, widgetInfo.minSpanX);
-                int minSpanY = Math.min(widgetInfo.spanY, widgetInfo.minSpanY);
-                if (minSpanX <= (int) idp.numColumns &&
-                    minSpanY <= (int) idp.numRows) {
-                    componentName = widgetInfo.provider;
-                    packageName = widgetInfo.provider.getPackageName();
-                    userHandle = mAppWidgetMgr.getUser(widgetInfo);
-                } else {
-                    if (DEBUG) {
-                        Log.d(TAG, String.format(
-                                "Widget %s : (%d X %d) can't fit on this device",
-                                widgetInfo.provider, minSpanX, minSpanY));
-                    }
-                    continue;
-                }
-            } else if (o instanceof ResolveInfo) {
-                ResolveInfo resolveInfo = (ResolveInfo) o;
-                componentName = new ComponentName(resolveInfo.activityInfo.packageName,
-                        resolveInfo.activityInfo.name);
-                packageName = resolveInfo.activityInfo.packageName;
-                userHandle = UserHandleCompat.myUserHandle();
-            }
-
-            if (componentName == null || userHandle == null) {
-                Log.e(TAG, String.format("Widget cannot be set for %s.", o.getClass().toString()));
-                continue;
-            }
-            if (mAppFilter != null && !mAppFilter.shouldShowApp(componentName)) {
-                if (DEBUG) {
-                    Log.d(TAG, String.format("%s is filtered and not added to the widget tray.",
-                        packageName));
-                }
+            ComponentKey key = getKeyIfShown(o, idp);
+            if (key == null) {
                 continue;
             }
+            String packageName = key.componentName.getPackageName();
 
             PackageItemInfo pInfo = tmpPackageItemInfos.get(packageName);
             ArrayList<Object> widgetsShortcutsList = mWidgetsList.get(pInfo);
@@ -202,10 +299,7 @@ public class WidgetsModel {
             } else {
                 widgetsShortcutsList = new ArrayList<>();
                 widgetsShortcutsList.add(o);
-                pInfo = new PackageItemInfo(packageName);
-                mIconCache.getTitleAndIconForApp(packageName, userHandle,
-                        true /* userLowResIcon */, pInfo);
-                pInfo.titleSectionName = mIndexer.computeSectionName(pInfo.title);
+                pInfo = newPackageItemInfo(packageName, key.user);
                 mWidgetsList.put(pInfo, widgetsShortcutsList);
                 tmpPackageItemInfos.put(packageName,  pInfo);
                 mPackageItemInfos.add(pInfo);
@@ -219,6 +313,62 @@ public class WidgetsModel {
         }
     }
 
+    private PackageItemInfo newPackageItemInfo(String packageName, UserHandleCompat userHandle) {
+        PackageItemInfo pInfo = new PackageItemInfo(packageName);
+        mIconCache.getTitleAndIconForApp(packageName, userHandle,
+                true /* userLowResIcon */, pInfo);
+        pInfo.titleSectionName = mIndexer.computeSectionName(pInfo.title);
+        return pInfo;
+    }
+
+    /**
+     * @return the component key of the given widget or shortcut info, or null if it should not be
+     * shown in the widget tray.
+     */
+    private ComponentKey getKeyIfShown(Object o, InvariantDeviceProfile idp) {
+        if (o instanceof LauncherAppWidgetProviderInfo) {
+            LauncherAppWidgetProviderInfo widgetInfo = (LauncherAppWidgetProviderInfo) o;
+
+            // Ensure that all widgets we show can be added on a workspace of this size
+            int minSpanX = Math.min(widgetInfo.spanX, widgetInfo.minSpanX);
+            int minSpanY = Math.min(widgetInfo.spanY, widgetInfo.minSpanY);
+            if (minSpanX > (int) idp.numColumns || minSpanY > (int) idp.numRows) {
+                if (DEBUG) {
+                    Log.d(TAG, String.format(
+                            "Widget %s : (%d X %d) can't fit on this device",
+                            widgetInfo.provider, minSpanX, minSpanY));
+                }
+                return null;
+            }
+        }
+
+        ComponentKey key = getComponentKey(o);
+        if (key == null || key.user == null) {
+            Log.e(TAG, String.format("Widget cannot be set for %s.", o.getClass().toString()));
+            return null;
+        }
+        if (mAppFilter != null && !mAppFilter.shouldShowApp(key.componentName)) {
+            if (DEBUG) {
+                Log.d(TAG, String.format("%s is filtered and not added to the widget tray.",
+                    key.componentName.getPackageName()));
+            }
+            return null;
+        }
+        return key;
+    }
+
+    private ComponentKey getComponentKey(Object o) {
+        if (o instanceof LauncherAppWidgetProviderInfo) {
+            LauncherAppWidgetProviderInfo widgetInfo = (LauncherAppWidgetProviderInfo) o;
+            return new ComponentKey(widgetInfo.provider, mAppWidgetMgr.getUser(widgetInfo));
+        } else if (o instanceof ResolveInfo) {
+            ResolveInfo resolveInfo = (ResolveInfo) o;
+            return new ComponentKey(new ComponentName(resolveInfo.activityInfo.packageName,
+                    resolveInfo.activityInfo.name), UserHandleCompat.myUserHandle());
+        }
+        return null;
+    }
+
     /**
      * Create a snapshot of the widgets model.
      * <p>
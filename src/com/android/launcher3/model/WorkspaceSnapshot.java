@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3.model;
+
+import com.android.launcher3.FolderInfo;
+import com.android.launcher3.ItemInfo;
+import com.android.launcher3.LauncherAppWidgetInfo;
+import com.android.launcher3.util.LongArrayMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable copy of the workspace collections of the model, taken at a given version. The
+ * same snapshot is shared by all the readers until the model changes, so that binding again
+ * (e.g. after a rotation) does not copy the collections. The items themselves are shared with
+ * the model, as with any copy of the collections.
+ */
+public class WorkspaceSnapshot {
+
+    // The version of the model this snapshot was taken at
+    public final long version;
+
+    // The folders and shortcuts directly on the home screen and in the hotseat
+    public final List<ItemInfo> workspaceItems;
+    public final List<LauncherAppWidgetInfo> appWidgets;
+    public final List<Long> orderedScreenIds;
+    // The maps below throw an exception if they are modified
+    public final LongArrayMap<FolderInfo> folders;
+    public final LongArrayMap<ItemInfo> itemsIdMap;
+
+    public WorkspaceSnapshot(long version, List<ItemInfo> workspaceItems,
+            List<LauncherAppWidgetInfo> appWidgets, List<Long> orderedScreenIds,
+            LongArrayMap<FolderInfo> folders, LongArrayMap<ItemInfo> itemsIdMap) {
+        this.version = version;
+        this.workspaceItems = Collections.unmodifiableList(new ArrayList<>(workspaceItems));
+        this.appWidgets = Collections.unmodifiableList(new ArrayList<>(appWidgets));
+        this.orderedScreenIds = Collections.unmodifiableList(new ArrayList<>(orderedScreenIds));
+        this.folders = folders.frozenCopy();
+        this.itemsIdMap = itemsIdMap.frozenCopy();
+    }
+}
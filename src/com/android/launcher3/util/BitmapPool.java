@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.util;
+
+import android.graphics.Bitmap;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of unused mutable bitmaps, grouped by width, height and config, so that bitmaps of the
+ * same size can be reused instead of allocated. The bitmaps are strongly held, up to a total byte
+ * count, beyond which the returned bitmaps are dropped.
+ *
+ * Can be used from any thread without locking.
+ */
+public class BitmapPool {
+
+    private final ConcurrentHashMap<Long, Queue<Bitmap>> mBuckets = new ConcurrentHashMap<>();
+    private final long mMaxBytes;
+    private final AtomicLong mSizeBytes = new AtomicLong();
+
+    private final AtomicInteger mReuseCount = new AtomicInteger();
+    private final AtomicInteger mAllocationCount = new AtomicInteger();
+    private final AtomicInteger mDropCount = new AtomicInteger();
+
+    public BitmapPool(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns a bitmap from the pool matching the given size and config, or a new one if there
+     * is none. The content of a reused bitmap is undefined, it should be cleared before drawing.
+     */
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        Queue<Bitmap> bucket = mBuckets.get(getBucketKey(width, height, config));
+        Bitmap bitmap = bucket == null ? null : bucket.poll();
+        if (bitmap != null) {
+            mSizeBytes.addAndGet(-bitmap.getByteCount());
+            mReuseCount.incrementAndGet();
+            return bitmap;
+        }
+        mAllocationCount.incrementAndGet();
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Returns {@param bitmap} to the pool. The caller must not use the bitmap afterwards.
+     */
+    public void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                || bitmap.getConfig() == null) {
+            return;
+        }
+        int byteCount = bitmap.getByteCount();
+        if (mSizeBytes.addAndGet(byteCount) > mMaxBytes) {
+            mSizeBytes.addAndGet(-byteCount);
+            mDropCount.incrementAndGet();
+            return;
+        }
+
+        Long key = getBucketKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        Queue<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            Queue<Bitmap> newBucket = new ConcurrentLinkedQueue<>();
+            bucket = mBuckets.putIfAbsent(key, newBucket);
+            if (bucket == null) {
+                bucket = newBucket;
+            }
+        }
+        bucket.offer(bitmap);
+    }
+
+    private static Long getBucketKey(int width, int height, Bitmap.Config config) {
+        return ((long) width << 32) | ((long) height << 8) | config.ordinal();
+    }
+
+    @Override
+    public String toString() {
+        return "Bitmap pool: " + (mSizeBytes.get() / 1024) + "/" + (mMaxBytes / 1024)
+                + " KB, reused=" + mReuseCount.get() + ", allocated=" + mAllocationCount.get()
+                + ", dropped=" + mDropCount.get();
+    }
+}
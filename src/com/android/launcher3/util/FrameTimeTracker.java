@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.util;
+
+import android.view.Choreographer;
+
+/**
+ * Records the time between consecutive frames into a {@link LatencyStats}, while started.
+ * Must be used on the UI thread.
+ */
+public class FrameTimeTracker implements Choreographer.FrameCallback {
+
+    private static final long NANOS_PER_MS = 1000000;
+
+    private LatencyStats mStats;
+    private long mLastFrameTimeNanos;
+    private long mStopTimeNanos;
+
+    /**
+     * Starts recording the frame times into {@param stats}, replacing any running recording.
+     * @param maxDurationMs the recording stops by itself after this duration.
+     */
+    public void start(LatencyStats stats, long maxDurationMs) {
+        stop();
+        mStats = stats;
+        mLastFrameTimeNanos = 0;
+        mStopTimeNanos = System.nanoTime() + maxDurationMs * NANOS_PER_MS;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    public void stop() {
+        if (mStats != null) {
+            Choreographer.getInstance().removeFrameCallback(this);
+            mStats = null;
+        }
+    }
+
+    public boolean isRunning() {
+        return mStats != null;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (mStats == null) {
+            return;
+        }
+        if (mLastFrameTimeNanos != 0) {
+            mStats.add((frameTimeNanos - mLastFrameTimeNanos) / NANOS_PER_MS);
+        }
+        mLastFrameTimeNanos = frameTimeNanos;
+        if (frameTimeNanos < mStopTimeNanos) {
+            Choreographer.getInstance().postFrameCallback(this);
+        } else {
+            mStats = null;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.util;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A file of fixed size slots, each holding the raw ARGB_8888 pixels of one square icon. The file
+ * is memory-mapped, so that reading an icon is a single copy into a new bitmap instead of a PNG
+ * decode.
+ *
+ * Slots are assigned to string keys. The owner is expected to persist the slot of every key
+ * somewhere else (and provide it back through {@link #setSlotIndex}), the atlas only stores a
+ * hash of the key along with the pixels, to detect slots which were reused or never written.
+ */
+public class IconAtlas {
+    private static final String TAG = "IconAtlas";
+
+    private static final int MAGIC = 0x49434f41; // "ICOA"
+    private static final int FILE_VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 16;
+    private static final int SLOT_HEADER_SIZE = 4;
+
+    // Hash stored in slots which do not contain a valid icon.
+    private static final int EMPTY_SLOT_HASH = 0;
+
+    // The file is mapped in segments of this many slots, as it grows.
+    private static final int SLOTS_PER_SEGMENT = 32;
+
+    private final File mFile;
+    private final int mIconSize;
+    private final int mPixelBytes;
+    private final int mSlotSize;
+
+    private final ArrayList<MappedByteBuffer> mSegments = new ArrayList<>();
+    private RandomAccessFile mRaf;
+    private boolean mOpenFailed;
+
+    // Key to slot mapping, null until set by the owner.
+    private HashMap<String, Integer> mSlots;
+    private final BitSet mUsedSlots = new BitSet();
+
+    public IconAtlas(File file, int iconSize) {
+        mFile = file;
+        mIconSize = iconSize;
+        mPixelBytes = iconSize * iconSize * 4;
+        mSlotSize = SLOT_HEADER_SIZE + mPixelBytes;
+    }
+
+    /**
+     * Returns true if the slot index was set, which is required before calling {@link #write}.
+     */
+    public synchronized boolean hasSlotIndex() {
+        return mSlots != null;
+    }
+
+    /**
+     * Sets the slots currently in use. Any slot not present in {@param slots} is considered free.
+     */
+    public synchronized void setSlotIndex(HashMap<String, Integer> slots) {
+        mSlots = slots;
+        mUsedSlots.clear();
+        for (Integer slot : slots.values()) {
+            mUsedSlots.set(slot);
+        }
+    }
+
+    /**
+     * Stores the pixels of {@param icon} in the slot of {@param key}, assigning a new slot if
+     * needed.
+     * @return the slot used, or -1 if the icon cannot be stored in the atlas.
+     */
+    public synchronized int write(String key, Bitmap icon) {
+        if (mSlots == null || icon.getWidth() != mIconSize || icon.getHeight() != mIconSize
+                || icon.getConfig() != Bitmap.Config.ARGB_8888) {
+            return -1;
+        }
+        Integer slot = mSlots.get(key);
+        if (slot == null) {
+            slot = mUsedSlots.nextClearBit(0);
+        }
+        ByteBuffer buffer = getSlotBuffer(slot);
+        if (buffer == null) {
+            return -1;
+        }
+
+        // Invalidate the slot while the pixels are being written.
+        buffer.putInt(0, EMPTY_SLOT_HASH);
+        buffer.position(SLOT_HEADER_SIZE);
+        icon.copyPixelsToBuffer(buffer);
+        buffer.putInt(0, hashKey(key));
+
+        mSlots.put(key, slot);
+        mUsedSlots.set(slot);
+        return slot;
+    }
+
+    /**
+     * Returns a new bitmap with the icon stored for {@param key} at {@param slot}, or null if the
+     * slot does not hold that icon.
+     */
+    public synchronized Bitmap read(int slot, String key) {
+        if (slot < 0) {
+            return null;
+        }
+        ByteBuffer buffer = getSlotBuffer(slot);
+        if (buffer == null || buffer.getInt(0) != hashKey(key)) {
+            return null;
+        }
+        buffer.position(SLOT_HEADER_SIZE);
+        Bitmap icon = Bitmap.createBitmap(mIconSize, mIconSize, Bitmap.Config.ARGB_8888);
+        icon.copyPixelsFromBuffer(buffer);
+        return icon;
+    }
+
+    /**
+     * Releases the slots of all the keys starting with {@param prefix} and ending with
+     * {@param suffix}.
+     */
+    public synchronized void release(String prefix, String suffix) {
+        if (mSlots == null) {
+            return;
+        }
+        Iterator<Map.Entry<String, Integer>> itr = mSlots.entrySet().iterator();
+        while (itr.hasNext()) {
+            Map.Entry<String, Integer> e = itr.next();
+            if (e.getKey().startsWith(prefix) && e.getKey().endsWith(suffix)) {
+                releaseSlot(e.getValue());
+                itr.remove();
+            }
+        }
+    }
+
+    private void releaseSlot(int slot) {
+        ByteBuffer buffer = getSlotBuffer(slot);
+        if (buffer != null) {
+            buffer.putInt(0, EMPTY_SLOT_HASH);
+        }
+        mUsedSlots.clear(slot);
+    }
+
+    /**
+     * Releases the slots of all the {@param keys}.
+     */
+    public synchronized void release(Collection<String> keys) {
+        if (mSlots == null) {
+            return;
+        }
+        for (String key : keys) {
+            Integer slot = mSlots.remove(key);
+            if (slot != null) {
+                releaseSlot(slot);
+            }
+        }
+    }
+
+    /**
+     * Returns the size of the atlas file on disk.
+     */
+    public long getFileSize() {
+        return mFile.length();
+    }
+
+    public synchronized void close() {
+        mSegments.clear();
+        if (mRaf != null) {
+            try {
+                mRaf.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Error closing icon atlas", e);
+            }
+            mRaf = null;
+        }
+    }
+
+    /**
+     * Returns a buffer spanning exactly the given slot, mapping more of the file if needed.
+     */
+    private ByteBuffer getSlotBuffer(int slot) {
+        if (!open()) {
+            return null;
+        }
+        int segment = slot / SLOTS_PER_SEGMENT;
+        try {
+            while (mSegments.size() <= segment) {
+                long offset = FILE_HEADER_SIZE
+                        + (long) mSegments.size() * SLOTS_PER_SEGMENT * mSlotSize;
+                mSegments.add(mRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, offset,
+                        (long) SLOTS_PER_SEGMENT * mSlotSize));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to map icon atlas", e);
+            return null;
+        }
+
+        ByteBuffer buffer = mSegments.get(segment).duplicate();
+        int start = (slot % SLOTS_PER_SEGMENT) * mSlotSize;
+        buffer.limit(start + mSlotSize);
+        buffer.position(start);
+        return buffer.slice();
+    }
+
+    private boolean open() {
+        if (mRaf != null) {
+            return true;
+        }
+        if (mOpenFailed) {
+            return false;
+        }
+        try {
+            mRaf = new RandomAccessFile(mFile, "rw");
+            boolean valid = mRaf.length() >= FILE_HEADER_SIZE
+                    && mRaf.readInt() == MAGIC
+                    && mRaf.readInt() == FILE_VERSION
+                    && mRaf.readInt() == mIconSize;
+            if (!valid) {
+                // Start over, the owner's slot index is validated against the key hashes anyway.
+                mRaf.setLength(0);
+                mRaf.seek(0);
+                mRaf.writeInt(MAGIC);
+                mRaf.writeInt(FILE_VERSION);
+                mRaf.writeInt(mIconSize);
+                mRaf.writeInt(0);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open icon atlas " + mFile, e);
+            mOpenFailed = true;
+            close();
+            return false;
+        }
+    }
+
+    private static int hashKey(String key) {
+        int hash = key.hashCode();
+        return hash == EMPTY_SLOT_HASH ? 1 : hash;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.util;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent samples of a duration, or of any other value, and reports their
+ * percentiles for debugging. All the methods are thread safe.
+ */
+public class LatencyStats {
+
+    private final String mName;
+    private final String mUnit;
+    private final long[] mSamples;
+    private int mNextSample;
+    private int mSampleCount;
+    private long mTotalCount;
+
+    public LatencyStats(String name, int maxSamples) {
+        this(name, maxSamples, "ms");
+    }
+
+    /**
+     * @param unit the unit of the samples, appended to the values in {@link #toString()}.
+     */
+    public LatencyStats(String name, int maxSamples, String unit) {
+        mName = name;
+        mUnit = unit;
+        mSamples = new long[maxSamples];
+    }
+
+    public synchronized void add(long durationMs) {
+        mSamples[mNextSample] = durationMs;
+        mNextSample = (mNextSample + 1) % mSamples.length;
+        mSampleCount = Math.min(mSampleCount + 1, mSamples.length);
+        mTotalCount++;
+    }
+
+    public synchronized void clear() {
+        mNextSample = 0;
+        mSampleCount = 0;
+        mTotalCount = 0;
+    }
+
+    /**
+     * Returns the given percentile, between 0 and 100, of the recent samples.
+     */
+    public synchronized long getPercentile(int percentile) {
+        if (mSampleCount == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(mSamples, mSampleCount);
+        Arrays.sort(sorted);
+        return getPercentile(sorted, percentile);
+    }
+
+    private static long getPercentile(long[] sorted, int percentile) {
+        int index = (int) Math.ceil(percentile / 100f * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (mSampleCount == 0) {
+            return mName + ": no samples";
+        }
+        long[] sorted = Arrays.copyOf(mSamples, mSampleCount);
+        Arrays.sort(sorted);
+        return mName + ": " + mTotalCount + " samples, last " + mSampleCount
+                + " p50=" + getPercentile(sorted, 50) + mUnit
+                + " p90=" + getPercentile(sorted, 90) + mUnit
+                + " p99=" + getPercentile(sorted, 99) + mUnit
+                + " max=" + sorted[sorted.length - 1] + mUnit;
+    }
+}
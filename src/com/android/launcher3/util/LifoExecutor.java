@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.util;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An {@link Executor} with its own fixed number of threads, which runs the most recently
+ * submitted tasks first. This suits requests made while scrolling, where the latest requests are
+ * for the views on screen and the oldest ones are likely for views which are gone.
+ *
+ * Submitted {@link Future}s which are cancelled while queued are dropped without running. The
+ * queue depths and the time the tasks wait before running are recorded for debugging.
+ */
+public class LifoExecutor implements Executor {
+
+    private static final long KEEP_ALIVE_SECONDS = 1;
+
+    private final String mName;
+    private final ThreadPoolExecutor mExecutor;
+
+    private final LatencyStats mQueueDepths;
+    private final LatencyStats mWaitTimes;
+    private final AtomicInteger mDroppedCount = new AtomicInteger();
+
+    public LifoExecutor(final String name, int threadCount) {
+        mName = name;
+        mExecutor = new ThreadPoolExecutor(threadCount, threadCount, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LifoBlockingDeque<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, name + " #" + mCount.incrementAndGet());
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+        mQueueDepths = new LatencyStats(name + " queue depth", 100, " tasks");
+        mWaitTimes = new LatencyStats(name + " wait time", 100);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        mQueueDepths.add(mExecutor.getQueue().size());
+        mExecutor.execute(new QueuedTask(command));
+    }
+
+    int getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + mName + ": " + mDroppedCount.get() + " cancelled tasks dropped");
+        writer.println(prefix + mQueueDepths);
+        writer.println(prefix + mWaitTimes);
+    }
+
+    private class QueuedTask implements Runnable {
+        private final Runnable mCommand;
+        private final long mQueueTime = SystemClock.uptimeMillis();
+
+        QueuedTask(Runnable command) {
+            mCommand = command;
+        }
+
+        @Override
+        public void run() {
+            if (mCommand instanceof Future && ((Future<?>) mCommand).isCancelled()) {
+                mDroppedCount.incrementAndGet();
+                return;
+            }
+            mWaitTimes.add(SystemClock.uptimeMillis() - mQueueTime);
+            mCommand.run();
+        }
+    }
+
+    /**
+     * A deque where the tasks offered by the {@link ThreadPoolExecutor} are added at the head,
+     * so that the most recent ones are taken first.
+     */
+    private static class LifoBlockingDeque<E> extends LinkedBlockingDeque<E> {
+
+        @Override
+        public boolean offer(E e) {
+            return offerFirst(e);
+        }
+
+        @Override
+        public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+            return offerFirst(e, timeout, unit);
+        }
+
+        @Override
+        public boolean add(E e) {
+            addFirst(e);
+            return true;
+        }
+
+        @Override
+        public void put(E e) throws InterruptedException {
+            putFirst(e);
+        }
+    }
+}
@@ -25,6 +25,10 @@ import java.util.Iterator;
  */
 public class LongArrayMap<E> extends LongSparseArray<E> implements Iterable<E> {
 
+    // Incremented on every modification, to detect changes without comparing the contents
+    private int mModCount;
+    private boolean mFrozen;
+
     public boolean containsKey(long key) {
         return indexOfKey(key) >= 0;
     }
@@ -35,7 +39,71 @@ public class LongArrayMap<E> extends LongSparseArray<E> implements Iterable<E> {
 
     @Override
     public LongArrayMap<E> clone() {
-        return (LongArrayMap<E>) super.clone();
+        LongArrayMap<E> clone = (LongArrayMap<E>) super.clone();
+        clone.mFrozen = false;
+        return clone;
+    }
+
+    /**
+     * Returns a copy of this map which throws an {@link UnsupportedOperationException} when
+     * modified, and can therefore be shared between threads.
+     */
+    public LongArrayMap<E> frozenCopy() {
+        LongArrayMap<E> copy = clone();
+        // Compact the deleted entries now, as reads would otherwise do it on any thread
+        copy.size();
+        copy.mFrozen = true;
+        return copy;
+    }
+
+    /**
+     * Returns a number which changes every time this map is modified.
+     */
+    public int getModCount() {
+        return mModCount;
+    }
+
+    private void onModified() {
+        if (mFrozen) {
+            throw new UnsupportedOperationException();
+        }
+        mModCount++;
+    }
+
+    @Override
+    public void put(long key, E value) {
+        onModified();
+        super.put(key, value);
+    }
+
+    @Override
+    public void append(long key, E value) {
+        onModified();
+        super.append(key, value);
+    }
+
+    @Override
+    public void delete(long key) {
+        onModified();
+        super.delete(key);
+    }
+
+    @Override
+    public void removeAt(int index) {
+        onModified();
+        super.removeAt(index);
+    }
+
+    @Override
+    public void setValueAt(int index, E value) {
+        onModified();
+        super.setValueAt(index, value);
+    }
+
+    @Override
+    public void clear() {
+        onModified();
+        super.clear();
     }
 
     @Override
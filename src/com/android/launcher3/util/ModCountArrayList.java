@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.util;
+
+import java.util.ArrayList;
+
+/**
+ * Extension of {@link ArrayList} which exposes its modification count, to detect changes
+ * without comparing the contents.
+ */
+public class ModCountArrayList<E> extends ArrayList<E> {
+
+    /**
+     * Returns a number which changes every time an element is added or removed.
+     */
+    public int getModCount() {
+        return modCount;
+    }
+}
@@ -7,11 +7,21 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteFullException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * An extension of {@link SQLiteOpenHelper} with utility methods for a single table cache DB.
  * Any exception during write operations are ignored, and any version change causes a DB reset.
+ *
+ * By default every write is executed immediately. After {@link #enableWriteBatching}, insertions
+ * are queued and executed together in a single transaction, on the thread of the batching handler.
  */
 public abstract class SQLiteCacheHelper {
     private static final String TAG = "SQLiteCacheHelper";
@@ -21,6 +31,28 @@ public abstract class SQLiteCacheHelper {
 
     private boolean mIgnoreWrites;
 
+    // Write batching, all guarded by mPendingWrites
+    private final ArrayList<WriteOp> mPendingWrites = new ArrayList<>();
+    // Held while a batch is executed, so that batches are executed in order.
+    private final Object mFlushLock = new Object();
+    private Handler mBatchHandler;
+    private int mMaxBatchSize;
+    private long mMaxBatchLatencyMs;
+    private boolean mFlushScheduled;
+    private final Runnable mFlushRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            flushPendingWrites();
+        }
+    };
+
+    // Flush stats, guarded by mPendingWrites
+    private int mFlushCount;
+    private int mFlushedWrites;
+    private long mTotalFlushMs;
+    private long mMaxFlushMs;
+
     public SQLiteCacheHelper(Context context, String name, int version, String tableName) {
         mTableName = tableName;
         mOpenHelper = new MySQLiteOpenHelper(context, name, version);
@@ -28,48 +60,222 @@ public abstract class SQLiteCacheHelper {
         mIgnoreWrites = false;
     }
 
+    /**
+     * Queues all the subsequent insertions instead of executing them immediately. The queue is
+     * executed in a single transaction once it contains {@param maxBatchSize} writes, or
+     * {@param maxLatencyMs} after the first write, on {@param handler}.
+     *
+     * The writes which remove or change existing rows, i.e. deletes, updates and
+     * {@link #replace}, are still executed immediately on the calling thread, together with the
+     * queue so that the writes stay in order. Queries made on the thread of {@param handler}
+     * flush the queue first. Queries from other threads do not wait for the queue: they never
+     * see a removed or outdated row, but may miss the rows inserted most recently.
+     */
+    public void enableWriteBatching(Handler handler, int maxBatchSize, long maxLatencyMs) {
+        synchronized (mPendingWrites) {
+            mBatchHandler = handler;
+            mMaxBatchSize = maxBatchSize;
+            mMaxBatchLatencyMs = maxLatencyMs;
+        }
+    }
+
+    /**
+     * Executes all the queued writes on the calling thread.
+     */
+    public void flushPendingWrites() {
+        flushPendingWrites(null);
+    }
+
+    /**
+     * Executes all the queued writes followed by {@param op}, if not null, in a single
+     * transaction on the calling thread.
+     */
+    private void flushPendingWrites(WriteOp op) {
+        synchronized (mFlushLock) {
+            ArrayList<WriteOp> ops;
+            synchronized (mPendingWrites) {
+                mFlushScheduled = false;
+                if (mBatchHandler != null) {
+                    mBatchHandler.removeCallbacks(mFlushRunnable);
+                }
+                ops = new ArrayList<>(mPendingWrites);
+                mPendingWrites.clear();
+            }
+            int queuedCount = ops.size();
+            if (op != null) {
+                ops.add(op);
+            }
+            if (ops.isEmpty()) {
+                return;
+            }
+
+            long start = SystemClock.uptimeMillis();
+            executeInTransaction(ops);
+            long elapsed = SystemClock.uptimeMillis() - start;
+
+            if (queuedCount > 0) {
+                synchronized (mPendingWrites) {
+                    mFlushCount++;
+                    mFlushedWrites += queuedCount;
+                    mTotalFlushMs += elapsed;
+                    mMaxFlushMs = Math.max(mMaxFlushMs, elapsed);
+                }
+            }
+        }
+    }
+
     /**
      * @see SQLiteDatabase#update(String, ContentValues, String, String[])
      */
-    public void update(ContentValues values, String whereClause, String[] whereArgs) {
-        if (mIgnoreWrites) {
+    public void update(final ContentValues values, final String whereClause,
+            final String[] whereArgs) {
+        writeNow(new WriteOp() {
+            @Override
+            void execute(SQLiteDatabase db) {
+                db.update(mTableName, values, whereClause, whereArgs);
+            }
+        });
+    }
+
+    /**
+     * @see SQLiteDatabase#delete(String, String, String[])
+     */
+    public void delete(final String whereClause, final String[] whereArgs) {
+        writeNow(new WriteOp() {
+            @Override
+            void execute(SQLiteDatabase db) {
+                db.delete(mTableName, whereClause, whereArgs);
+            }
+        });
+    }
+
+    /**
+     * @see SQLiteDatabase#insertWithOnConflict(String, String, ContentValues, int)
+     */
+    public void insertOrReplace(final ContentValues values) {
+        write(new WriteOp() {
+            @Override
+            void execute(SQLiteDatabase db) {
+                db.insertWithOnConflict(
+                        mTableName, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+        });
+    }
+
+    /**
+     * Inserts or replaces all the rows in {@param valuesList} in a single transaction.
+     * @see #insertOrReplace(ContentValues)
+     */
+    public void insertOrReplace(final List<ContentValues> valuesList) {
+        if (valuesList.isEmpty()) {
             return;
         }
-        try {
-            mOpenHelper.getWritableDatabase().update(mTableName, values, whereClause, whereArgs);
-        } catch (SQLiteFullException e) {
-            onDiskFull(e);
-        } catch (SQLiteException e) {
-            Log.d(TAG, "Ignoring sqlite exception", e);
+        write(newInsertOp(valuesList));
+    }
+
+    /**
+     * Same as {@link #insertOrReplace(List)}, for rows which are expected to exist already. The
+     * rows are replaced immediately, even when the insertions are batched, so that no query sees
+     * the outdated rows.
+     */
+    public void replace(List<ContentValues> valuesList) {
+        if (valuesList.isEmpty()) {
+            return;
         }
+        writeNow(newInsertOp(valuesList));
+    }
+
+    private WriteOp newInsertOp(final List<ContentValues> valuesList) {
+        return new WriteOp() {
+            @Override
+            void execute(SQLiteDatabase db) {
+                for (ContentValues values : valuesList) {
+                    db.insertWithOnConflict(
+                            mTableName, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                }
+            }
+        };
     }
 
     /**
-     * @see SQLiteDatabase#delete(String, String, String[])
+     * Replaces all the rows of {@param table} matching {@param whereClause} with
+     * {@param valuesList}, in a single transaction. This is meant for subclasses which keep
+     * additional tables, see {@link #onDropTables}.
      */
-    public void delete(String whereClause, String[] whereArgs) {
+    protected void replaceRows(final String table, final String whereClause,
+            final String[] whereArgs, final List<ContentValues> valuesList) {
+        writeNow(new WriteOp() {
+            @Override
+            void execute(SQLiteDatabase db) {
+                db.delete(table, whereClause, whereArgs);
+                for (ContentValues values : valuesList) {
+                    db.insertWithOnConflict(table, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                }
+            }
+        });
+    }
+
+    private void write(WriteOp op) {
         if (mIgnoreWrites) {
             return;
         }
-        try {
-            mOpenHelper.getWritableDatabase().delete(mTableName, whereClause, whereArgs);
-        } catch (SQLiteFullException e) {
-            onDiskFull(e);
-        } catch (SQLiteException e) {
-            Log.d(TAG, "Ignoring sqlite exception", e);
+        synchronized (mPendingWrites) {
+            if (mBatchHandler != null) {
+                mPendingWrites.add(op);
+                if (mPendingWrites.size() >= mMaxBatchSize) {
+                    // Execute the batch as soon as possible, but on the batching thread.
+                    mBatchHandler.removeCallbacks(mFlushRunnable);
+                    mBatchHandler.post(mFlushRunnable);
+                    mFlushScheduled = true;
+                } else if (!mFlushScheduled) {
+                    mFlushScheduled = true;
+                    mBatchHandler.postDelayed(mFlushRunnable, mMaxBatchLatencyMs);
+                }
+                return;
+            }
         }
+        executeInTransaction(Collections.singletonList(op));
     }
 
     /**
-     * @see SQLiteDatabase#insertWithOnConflict(String, String, ContentValues, int)
+     * Executes {@param op} on the calling thread, after the queued writes.
      */
-    public void insertOrReplace(ContentValues values) {
+    private void writeNow(WriteOp op) {
+        if (mIgnoreWrites) {
+            return;
+        }
+        flushPendingWrites(op);
+    }
+
+    private void executeInTransaction(List<WriteOp> ops) {
         if (mIgnoreWrites) {
             return;
         }
         try {
-            mOpenHelper.getWritableDatabase().insertWithOnConflict(
-                    mTableName, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                // A failing write only loses its own changes, not the rest of the batch.
+                int failedCount = 0;
+                SQLiteException lastFailure = null;
+                for (WriteOp op : ops) {
+                    try {
+                        op.execute(db);
+                    } catch (SQLiteFullException e) {
+                        throw e;
+                    } catch (SQLiteException e) {
+                        failedCount++;
+                        lastFailure = e;
+                    }
+                }
+                db.setTransactionSuccessful();
+                if (lastFailure != null) {
+                    Log.w(TAG, mTableName + ": " + failedCount + "/" + ops.size()
+                            + " writes failed", lastFailure);
+                }
+            } finally {
+                db.endTransaction();
+            }
         } catch (SQLiteFullException e) {
             onDiskFull(e);
         } catch (SQLiteException e) {
@@ -82,16 +288,55 @@ public abstract class SQLiteCacheHelper {
         mIgnoreWrites = true;
     }
 
+    /**
+     * Returns a summary of the batched writes executed so far.
+     */
+    public String getWriteStats() {
+        synchronized (mPendingWrites) {
+            return mTableName + ": " + mFlushedWrites + " writes in " + mFlushCount
+                    + " flushes, avg " + (mFlushCount == 0 ? 0 : mTotalFlushMs / mFlushCount)
+                    + "ms, max " + mMaxFlushMs + "ms, " + mPendingWrites.size() + " pending";
+        }
+    }
+
     /**
      * @see SQLiteDatabase#query(String, String[], String, String[], String, String, String)
      */
     public Cursor query(String[] columns, String selection, String[] selectionArgs) {
+        return query(mTableName, columns, selection, selectionArgs);
+    }
+
+    /**
+     * Same as {@link #query(String[], String, String[])} but for any table of the DB.
+     */
+    protected Cursor query(String table, String[] columns, String selection,
+            String[] selectionArgs) {
+        Handler batchHandler;
+        synchronized (mPendingWrites) {
+            batchHandler = mBatchHandler;
+        }
+        if (batchHandler != null && batchHandler.getLooper() == Looper.myLooper()) {
+            flushPendingWrites();
+        }
         return mOpenHelper.getReadableDatabase().query(
-                mTableName, columns, selection, selectionArgs, null, null, null);
+                table, columns, selection, selectionArgs, null, null, null);
     }
 
     protected abstract void onCreateTable(SQLiteDatabase db);
 
+    /**
+     * Called when the DB is reset. Subclasses which create more than one table in
+     * {@link #onCreateTable} must drop the additional tables here.
+     */
+    protected void onDropTables(SQLiteDatabase db) { }
+
+    /**
+     * A single write operation, which can be queued.
+     */
+    private static abstract class WriteOp {
+        abstract void execute(SQLiteDatabase db);
+    }
+
     /**
      * A private inner class to prevent direct DB access.
      */
@@ -122,6 +367,7 @@ public abstract class SQLiteCacheHelper {
 
         private void clearDB(SQLiteDatabase db) {
             db.execSQL("DROP TABLE IF EXISTS " + mTableName);
+            onDropTables(db);
             onCreate(db);
         }
     }
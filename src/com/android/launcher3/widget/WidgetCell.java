@@ -105,7 +105,14 @@ public class WidgetCell extends LinearLayout implements OnLayoutChangeListener {
     private void setContainerWidth() {
         DeviceProfile profile = mLauncher.getDeviceProfile();
         cellSize = (int) (profile.cellWidthPx * WIDTH_SCALE);
-        mPresetPreviewSize = (int) (cellSize * PREVIEW_SCALE);
+        mPresetPreviewSize = getPresetPreviewSize(profile);
+    }
+
+    /**
+     * Returns the width and height of the previews shown in the widgets tray for {@param profile}.
+     */
+    public static int getPresetPreviewSize(DeviceProfile profile) {
+        return (int) ((int) (profile.cellWidthPx * WIDTH_SCALE) * PREVIEW_SCALE);
     }
 
     @Override
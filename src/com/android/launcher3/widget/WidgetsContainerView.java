@@ -324,12 +324,49 @@ public class WidgetsContainerView extends BaseContainerView
     }
 
     /**
-     * Initialize the widget data model.
+     * Initialize or update the widget data model. When updating, only the rows of the packages
+     * which changed are notified.
      */
     public void addWidgets(WidgetsModel model) {
+        WidgetsModel oldModel = mAdapter.getWidgetsModel();
         mRecyclerView.setWidgets(model);
         mAdapter.setWidgetsModel(model);
-        mAdapter.notifyDataSetChanged();
+        if (oldModel == null) {
+            mAdapter.notifyDataSetChanged();
+            return;
+        }
+
+        // The snapshots share the rows of the packages which did not change, so the changed range
+        // is what remains between the common rows at the start and at the end.
+        int oldSize = oldModel.getPackageSize();
+        int newSize = model.getPackageSize();
+        int start = 0;
+        while (start < oldSize && start < newSize && isSameRow(oldModel, start, model, start)) {
+            start++;
+        }
+        int oldEnd = oldSize;
+        int newEnd = newSize;
+        while (oldEnd > start && newEnd > start
+                && isSameRow(oldModel, oldEnd - 1, model, newEnd - 1)) {
+            oldEnd--;
+            newEnd--;
+        }
+
+        int changedCount = Math.min(oldEnd, newEnd) - start;
+        if (changedCount > 0) {
+            mAdapter.notifyItemRangeChanged(start, changedCount);
+        }
+        if (oldEnd > newEnd) {
+            mAdapter.notifyItemRangeRemoved(start + changedCount, oldEnd - newEnd);
+        } else if (newEnd > oldEnd) {
+            mAdapter.notifyItemRangeInserted(start + changedCount, newEnd - oldEnd);
+        }
+    }
+
+    private static boolean isSameRow(WidgetsModel oldModel, int oldPos,
+            WidgetsModel newModel, int newPos) {
+        return oldModel.getPackageItemInfo(oldPos) == newModel.getPackageItemInfo(newPos)
+                && oldModel.getSortedWidgets(oldPos) == newModel.getSortedWidgets(newPos);
     }
 
     public boolean isEmpty() {
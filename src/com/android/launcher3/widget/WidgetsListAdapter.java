@@ -84,6 +84,10 @@ public class WidgetsListAdapter extends Adapter<WidgetsRowViewHolder> {
         mWidgetsModel = w;
     }
 
+    public WidgetsModel getWidgetsModel() {
+        return mWidgetsModel;
+    }
+
     @Override
     public int getItemCount() {
         if (mWidgetsModel == null) {
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.allapps;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.support.v7.widget.RecyclerView;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.view.ViewGroup;
+
+import com.android.launcher3.AppInfo;
+import com.android.launcher3.allapps.AlphabeticalAppsList.AdapterItem;
+import com.android.launcher3.compat.UserHandleCompat;
+import com.android.launcher3.util.ComponentKey;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Tests that the incremental updates of {@link AlphabeticalAppsList} give the same apps and
+ * adapter items as a full update, and notify the adapter of consistent ranges.
+ */
+@SmallTest
+public class AlphabeticalAppsListTest extends AndroidTestCase {
+
+    private static final int NUM_APPS_PER_ROW = 4;
+
+    private static final String[] TITLES = {
+            "Camera", "Calendar", "Maps", "Music", "Notes", "Zoo", "1Weather",
+            "\u5730\u56fe", "\u5fae\u4fe1"};
+
+    private ArrayList<AppInfo> mApps;
+    private List<ComponentKey> mPredictions;
+
+    public void testIncrementalUpdates() throws Exception {
+        verifyIncrementalUpdates(getContext());
+    }
+
+    public void testIncrementalUpdates_simplifiedChinese() throws Exception {
+        Configuration config = new Configuration(getContext().getResources().getConfiguration());
+        config.locale = Locale.SIMPLIFIED_CHINESE;
+        verifyIncrementalUpdates(getContext().createConfigurationContext(config));
+    }
+
+    private void verifyIncrementalUpdates(Context context) throws Exception {
+        mApps = new ArrayList<>();
+        for (int i = 0; i < TITLES.length; i++) {
+            mApps.add(newApp(i, TITLES[i]));
+        }
+        mPredictions = Arrays.asList(mApps.get(2).toComponentKey(),
+                mApps.get(5).toComponentKey());
+
+        RecordingAdapter adapter = new RecordingAdapter();
+        AlphabeticalAppsList list = newAppsList(context, adapter);
+        list.setApps(mApps);
+        list.setPredictedApps(mPredictions);
+        verifySameAsFullUpdate(context, list);
+
+        // Add apps at the start, in the middle and at the end
+        List<AppInfo> added = Arrays.asList(newApp(100, "Browser"), newApp(101, "Mail"),
+                newApp(102, "Zzz"), newApp(103, "\u7535\u8bdd"));
+        mApps.addAll(added);
+        adapter.startRecording(list.getAdapterItems());
+        list.addApps(added);
+        verifyUpdate(context, list, adapter, new HashSet<>(added));
+
+        // Rename an app, which moves it to another section
+        AppInfo renamed = newApp(4, "Alarm");
+        mApps.set(4, renamed);
+        adapter.startRecording(list.getAdapterItems());
+        list.updateApps(Collections.singletonList(renamed));
+        verifyUpdate(context, list, adapter, Collections.singleton(renamed));
+
+        // Update an app in place, including a predicted app
+        AppInfo updated = newApp(2, "Maps");
+        mApps.set(2, updated);
+        adapter.startRecording(list.getAdapterItems());
+        list.updateApps(Collections.singletonList(updated));
+        verifyUpdate(context, list, adapter, Collections.singleton(updated));
+
+        // Remove apps, including a predicted app
+        List<AppInfo> removed = Arrays.asList(mApps.get(5), mApps.get(0), mApps.get(7));
+        mApps.removeAll(removed);
+        adapter.startRecording(list.getAdapterItems());
+        list.removeApps(removed);
+        verifyUpdate(context, list, adapter, Collections.<AppInfo>emptySet());
+    }
+
+    /**
+     * Verifies the result of an update, and that replaying the notified ranges on the previous
+     * items gives the new items.
+     */
+    private void verifyUpdate(Context context, AlphabeticalAppsList list, RecordingAdapter adapter,
+            Set<AppInfo> updatedApps) throws Exception {
+        verifySameAsFullUpdate(context, list);
+
+        List<AdapterItem> newItems = list.getAdapterItems();
+        List<AdapterItem> items = adapter.getReplayedItems();
+        assertEquals(newItems.size(), items.size());
+        for (int i = 0; i < items.size(); i++) {
+            AdapterItem oldItem = items.get(i);
+            AdapterItem newItem = newItems.get(i);
+            if (oldItem == null) {
+                // Changed or inserted, the view is rebound.
+                continue;
+            }
+            assertEquals("Item " + i + " was not notified", oldItem.viewType, newItem.viewType);
+            assertSame("Item " + i + " was not notified", oldItem.appInfo, newItem.appInfo);
+            assertFalse("Item " + i + " was not rebound", updatedApps.contains(newItem.appInfo));
+        }
+    }
+
+    private void verifySameAsFullUpdate(Context context, AlphabeticalAppsList list) {
+        AlphabeticalAppsList expected = newAppsList(context, null);
+        expected.setApps(mApps);
+        expected.setPredictedApps(mPredictions);
+
+        assertEquals(expected.getApps(), list.getApps());
+        List<AdapterItem> expectedItems = expected.getAdapterItems();
+        List<AdapterItem> items = list.getAdapterItems();
+        assertEquals(expectedItems.size(), items.size());
+        for (int i = 0; i < items.size(); i++) {
+            assertEquals(expectedItems.get(i).viewType, items.get(i).viewType);
+            assertEquals(expectedItems.get(i).position, items.get(i).position);
+            assertEquals(expectedItems.get(i).sectionName, items.get(i).sectionName);
+            assertSame(expectedItems.get(i).appInfo, items.get(i).appInfo);
+        }
+    }
+
+    private static AlphabeticalAppsList newAppsList(Context context,
+            RecyclerView.Adapter adapter) {
+        AlphabeticalAppsList list = new AlphabeticalAppsList(context);
+        list.setAdapter(adapter);
+        list.setNumAppsPerRow(NUM_APPS_PER_ROW, NUM_APPS_PER_ROW, null);
+        return list;
+    }
+
+    private static AppInfo newApp(int id, String title) throws Exception {
+        Constructor<AppInfo> constructor = AppInfo.class.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        AppInfo app = constructor.newInstance();
+        app.componentName = new ComponentName("com.android.launcher3.app" + id, "Main");
+        app.user = UserHandleCompat.myUserHandle();
+        app.title = title;
+        return app;
+    }
+
+    /**
+     * An adapter which records the notified ranges, to replay them on the previous items.
+     */
+    private static class RecordingAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
+        // The previous items, updated with the notified changes. Null until recording starts.
+        private ArrayList<AdapterItem> mItems;
+
+        RecordingAdapter() {
+            registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+                @Override
+                public void onChanged() {
+                    if (mItems != null) {
+                        fail("The whole data set was notified");
+                    }
+                }
+
+                @Override
+                public void onItemRangeChanged(int positionStart, int itemCount) {
+                    if (mItems == null) {
+                        return;
+                    }
+                    assertTrue(positionStart + itemCount <= mItems.size());
+                    for (int i = positionStart; i < positionStart + itemCount; i++) {
+                        mItems.set(i, null);
+                    }
+                }
+
+                @Override
+                public void onItemRangeInserted(int positionStart, int itemCount) {
+                    if (mItems == null) {
+                        return;
+                    }
+                    assertTrue(positionStart <= mItems.size());
+                    mItems.addAll(positionStart,
+                            Collections.<AdapterItem>nCopies(itemCount, null));
+                }
+
+                @Override
+                public void onItemRangeRemoved(int positionStart, int itemCount) {
+                    if (mItems == null) {
+                        return;
+                    }
+                    assertTrue(positionStart + itemCount <= mItems.size());
+                    mItems.subList(positionStart, positionStart + itemCount).clear();
+                }
+
+                @Override
+                public void onItemRangeMoved(int fromPosition, int toPosition, int itemCount) {
+                    fail("Moves are not expected");
+                }
+            });
+        }
+
+        void startRecording(List<AdapterItem> items) {
+            mItems = new ArrayList<>(items);
+        }
+
+        /**
+         * Returns the previous items after the notified changes, where null items were changed
+         * or inserted.
+         */
+        List<AdapterItem> getReplayedItems() {
+            return mItems;
+        }
+
+        @Override
+        public RecyclerView.ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+            return null;
+        }
+
+        @Override
+        public void onBindViewHolder(RecyclerView.ViewHolder holder, int position) { }
+
+        @Override
+        public int getItemCount() {
+            return mItems == null ? 0 : mItems.size();
+        }
+    }
+}
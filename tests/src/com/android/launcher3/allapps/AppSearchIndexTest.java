@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.allapps;
+
+import android.content.ComponentName;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import com.android.launcher3.compat.TransliteratorCompat;
+import com.android.launcher3.compat.UserHandleCompat;
+import com.android.launcher3.util.ComponentKey;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests for {@link AppSearchIndex}, including a comparison against a linear scan of the titles.
+ */
+@MediumTest
+public class AppSearchIndexTest extends AndroidTestCase {
+    private static final String TAG = "AppSearchIndexTest";
+
+    private static final String[] SYLLABLES = {
+            "ca", "lu", "me", "ra", "pho", "to", "mail", "ma", "ps", "set", "ting", "s", "clo",
+            "ck", "no", "te", "mu", "sic", "we", "ather", " ", " "};
+    private static final String[] QUERIES = {"c", "ca", "cal", "m", "ma", "ma p", "ma ps", "xyz"};
+    private static final int BENCHMARK_ITERATIONS = 20;
+
+    private ArrayList<ComponentKey> mKeys;
+    private ArrayList<String> mTitles;
+
+    public void testQuery() {
+        AppSearchIndex index = new AppSearchIndex();
+        add(index, "Calculator");
+        add(index, "Calendar");
+        add(index, "Google Maps");
+        add(index, "Maps Go");
+        index.setOrder(mKeys);
+
+        assertEquals(Arrays.asList(mKeys.get(0), mKeys.get(1)), index.query("Cal"));
+        assertEquals(Arrays.asList(mKeys.get(0)), index.query("calc"));
+        assertEquals(Arrays.asList(mKeys.get(2), mKeys.get(3)), index.query("go ma"));
+        assertEquals(Arrays.asList(mKeys.get(2), mKeys.get(3)), index.query("go map"));
+        assertTrue(index.query("go maps x").isEmpty());
+    }
+
+    public void testUpdateAndRemove() {
+        AppSearchIndex index = new AppSearchIndex();
+        add(index, "Calculator");
+        add(index, "Calendar");
+        index.setOrder(mKeys);
+        assertEquals(2, index.query("cal").size());
+
+        index.addOrUpdate(mKeys.get(0), "Notes", null);
+        assertEquals(Arrays.asList(mKeys.get(1)), index.query("cal"));
+        assertEquals(Arrays.asList(mKeys.get(0)), index.query("no"));
+
+        index.remove(mKeys.get(1));
+        assertTrue(index.query("cal").isEmpty());
+
+        index.clear();
+        assertTrue(index.query("no").isEmpty());
+    }
+
+    public void testSearchKeys() {
+        TransliteratorCompat transliterator = new TransliteratorCompat();
+        assertEquals("", transliterator.getSearchKeys("Calculator"));
+        assertEquals("cafe", transliterator.getSearchKeys("Caf\u00e9"));
+
+        AppSearchIndex index = new AppSearchIndex();
+        ComponentKey key = new ComponentKey(new ComponentName("com.test", "com.test.Activity"),
+                UserHandleCompat.myUserHandle());
+        index.addOrUpdate(key, "\u5fae\u4fe1", "wei xin weixin wx");
+        assertEquals(Arrays.asList(key), index.query("\u5fae"));
+        assertEquals(Arrays.asList(key), index.query("wx"));
+        assertEquals(Arrays.asList(key), index.query("weix"));
+        assertEquals(Arrays.asList(key), index.query("xin"));
+        assertTrue(index.query("xw").isEmpty());
+    }
+
+    public void testMatchesLinearScan() {
+        AppSearchIndex index = createIndex(500, new Random(1));
+        for (String query : QUERIES) {
+            // Type the query one character at a time, to go through the narrowing path
+            for (int i = 1; i <= query.length(); i++) {
+                String prefix = query.substring(0, i);
+                assertEquals(prefix, linearScan(prefix), index.query(prefix));
+            }
+        }
+    }
+
+    public void testCancelAndPartialResult() {
+        AppSearchIndex index = createIndex(500, new Random(2));
+        final ArrayList<ComponentKey> partial = new ArrayList<>();
+        ArrayList<ComponentKey> result = index.query("", new AppSearchIndex.QueryCallbacks() {
+
+            @Override
+            public boolean isCancelled() {
+                return false;
+            }
+
+            @Override
+            public void onPartialResult(ArrayList<ComponentKey> topResults) {
+                partial.addAll(topResults);
+            }
+        });
+        assertFalse(partial.isEmpty());
+        assertEquals(partial, result.subList(0, partial.size()));
+
+        assertNull(index.query("c", new AppSearchIndex.QueryCallbacks() {
+
+            @Override
+            public boolean isCancelled() {
+                return true;
+            }
+
+            @Override
+            public void onPartialResult(ArrayList<ComponentKey> topResults) {
+                fail();
+            }
+        }));
+    }
+
+    /**
+     * Compares the time taken to type the queries with the index and with a linear scan. The
+     * results are only logged, as they depend on the device.
+     */
+    public void testBenchmark() {
+        for (int count : new int[] {50, 500, 5000}) {
+            AppSearchIndex index = createIndex(count, new Random(count));
+
+            long start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+                for (String query : QUERIES) {
+                    for (int j = 1; j <= query.length(); j++) {
+                        linearScan(query.substring(0, j));
+                    }
+                }
+            }
+            long linearNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+            start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+                for (String query : QUERIES) {
+                    for (int j = 1; j <= query.length(); j++) {
+                        index.query(query.substring(0, j));
+                    }
+                }
+            }
+            long indexNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+            Log.d(TAG, count + " titles: linear=" + (linearNanos / 1000) + "us, index="
+                    + (indexNanos / 1000) + "us");
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mKeys = new ArrayList<>();
+        mTitles = new ArrayList<>();
+    }
+
+    private AppSearchIndex createIndex(int count, Random random) {
+        AppSearchIndex index = new AppSearchIndex();
+        for (int i = 0; i < count; i++) {
+            StringBuilder title = new StringBuilder();
+            int length = 2 + random.nextInt(5);
+            for (int j = 0; j < length; j++) {
+                title.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+            }
+            add(index, title.toString());
+        }
+        index.setOrder(mKeys);
+        return index;
+    }
+
+    private void add(AppSearchIndex index, String title) {
+        ComponentKey key = new ComponentKey(
+                new ComponentName("com.test", "com.test.Activity" + mKeys.size()),
+                UserHandleCompat.myUserHandle());
+        mKeys.add(key);
+        mTitles.add(title);
+        index.addOrUpdate(key, title, null);
+    }
+
+    private ArrayList<ComponentKey> linearScan(String query) {
+        String[] queryWords = AppSearchIndex.splitWords(query);
+        ArrayList<ComponentKey> result = new ArrayList<>();
+        for (int i = 0; i < mTitles.size(); i++) {
+            if (AppSearchIndex.matches(AppSearchIndex.splitWords(mTitles.get(i)), queryWords)) {
+                result.add(mKeys.get(i));
+            }
+        }
+        return result;
+    }
+}
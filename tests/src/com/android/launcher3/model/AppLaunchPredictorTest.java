@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.model;
+
+import android.content.ComponentName;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.launcher3.compat.UserHandleCompat;
+import com.android.launcher3.compat.UserManagerCompat;
+import com.android.launcher3.util.ComponentKey;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+
+/**
+ * Tests for {@link AppLaunchPredictor}.
+ */
+@SmallTest
+public class AppLaunchPredictorTest extends AndroidTestCase {
+
+    private static final double EPSILON = 1e-6;
+
+    private File mFile;
+    private long mUserSerial;
+    private ComponentKey mAppA;
+    private ComponentKey mAppB;
+    private ComponentKey mAppC;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "test_app_launches.log");
+        mFile.delete();
+
+        UserHandleCompat user = UserHandleCompat.myUserHandle();
+        mUserSerial = UserManagerCompat.getInstance(getContext()).getSerialNumberForUser(user);
+        mAppA = new ComponentKey(new ComponentName("com.test.a", "com.test.a.Main"), user);
+        mAppB = new ComponentKey(new ComponentName("com.test.b", "com.test.b.Main"), user);
+        mAppC = new ComponentKey(new ComponentName("com.test.c", "com.test.c.Main"), user);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testEvictedLaunchesLoseTheirDecayedWeight() {
+        AppLaunchPredictor predictor = newPredictor();
+        long t0 = System.currentTimeMillis() - 2 * AppLaunchPredictor.HALF_LIFE_MS;
+        long t1 = t0 + AppLaunchPredictor.HALF_LIFE_MS;
+        launch(predictor, mAppA, t0);
+        launch(predictor, mAppA, t1);
+        assertEquals(1.5, predictor.getScore(mAppA, t1), EPSILON);
+
+        // Fill the ring buffer
+        for (int i = 2; i < AppLaunchPredictor.MAX_LAUNCHES; i++) {
+            launch(predictor, mAppB, t1);
+        }
+        assertEquals(1.5, predictor.getScore(mAppA, t1), EPSILON);
+
+        // The first launch of A is evicted, with the half weight it has at t1
+        launch(predictor, mAppB, t1);
+        assertEquals(1, predictor.getScore(mAppA, t1), EPSILON);
+
+        // The last launch of A is evicted
+        launch(predictor, mAppB, t1);
+        assertEquals(0, predictor.getScore(mAppA, t1), EPSILON);
+        assertEquals(AppLaunchPredictor.MAX_LAUNCHES, predictor.getScore(mAppB, t1), EPSILON);
+        predictor.updatePredictions();
+        assertEquals(Collections.singletonList(mAppB), predictor.getPredictedApps());
+    }
+
+    public void testLoadDropsTruncatedLaunch() throws Exception {
+        long now = System.currentTimeMillis();
+        AppLaunchPredictor predictor = newPredictor();
+        launch(predictor, mAppA, now);
+        launch(predictor, mAppB, now);
+        launch(predictor, mAppC, now);
+
+        // Simulate a write which did not complete
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        predictor = newPredictor();
+        predictor.load();
+        assertEquals(1, predictor.getScore(mAppA, now), EPSILON);
+        assertEquals(1, predictor.getScore(mAppB, now), EPSILON);
+        assertEquals(0, predictor.getScore(mAppC, now), EPSILON);
+
+        // The next launches are appended after the complete ones
+        launch(predictor, mAppC, now);
+        predictor = newPredictor();
+        predictor.load();
+        assertEquals(1, predictor.getScore(mAppA, now), EPSILON);
+        assertEquals(1, predictor.getScore(mAppB, now), EPSILON);
+        assertEquals(1, predictor.getScore(mAppC, now), EPSILON);
+    }
+
+    public void testRewriteWhenFileIsFull() throws Exception {
+        long now = System.currentTimeMillis();
+        AppLaunchPredictor predictor = newPredictor();
+        for (int i = 0; i < AppLaunchPredictor.MAX_FILE_LAUNCHES; i++) {
+            launch(predictor, mAppA, now);
+        }
+        long fullLength = mFile.length();
+
+        // The file only keeps the launches of the ring buffer
+        launch(predictor, mAppB, now);
+        assertEquals(fullLength * AppLaunchPredictor.MAX_LAUNCHES
+                / AppLaunchPredictor.MAX_FILE_LAUNCHES, mFile.length());
+
+        predictor = newPredictor();
+        predictor.load();
+        assertEquals(AppLaunchPredictor.MAX_LAUNCHES - 1, predictor.getScore(mAppA, now),
+                EPSILON);
+        assertEquals(1, predictor.getScore(mAppB, now), EPSILON);
+    }
+
+    public void testRemovedAppsAreNotPredicted() {
+        long now = System.currentTimeMillis();
+        AppLaunchPredictor predictor = newPredictor();
+        launch(predictor, mAppA, now);
+        launch(predictor, mAppA, now);
+        launch(predictor, mAppB, now);
+
+        assertTrue(predictor.removeLaunches(Collections.singleton(mAppA)));
+        predictor.updatePredictions();
+        assertEquals(Collections.singletonList(mAppB), predictor.getPredictedApps());
+
+        // The launches are also removed from the file
+        predictor = newPredictor();
+        predictor.load();
+        assertEquals(0, predictor.getScore(mAppA, now), EPSILON);
+        assertEquals(1, predictor.getScore(mAppB, now), EPSILON);
+    }
+
+    private AppLaunchPredictor newPredictor() {
+        return new AppLaunchPredictor(mFile, UserManagerCompat.getInstance(getContext()),
+                Looper.getMainLooper());
+    }
+
+    private void launch(AppLaunchPredictor predictor, ComponentKey key, long time) {
+        AppLaunchPredictor.Launch launch = new AppLaunchPredictor.Launch(key, mUserSerial, time);
+        predictor.addLaunch(launch);
+        predictor.append(launch);
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.util;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for {@link BitmapPool}.
+ */
+@SmallTest
+public class BitmapPoolTest extends AndroidTestCase {
+
+    public void testReuseMatchingBitmap() {
+        BitmapPool pool = new BitmapPool(1024 * 1024);
+        Bitmap bitmap = pool.get(10, 20, Bitmap.Config.ARGB_8888);
+        pool.put(bitmap);
+
+        assertNotSame(bitmap, pool.get(20, 10, Bitmap.Config.ARGB_8888));
+        assertNotSame(bitmap, pool.get(10, 20, Bitmap.Config.ALPHA_8));
+        assertSame(bitmap, pool.get(10, 20, Bitmap.Config.ARGB_8888));
+        // The bitmap was taken out of the pool
+        assertNotSame(bitmap, pool.get(10, 20, Bitmap.Config.ARGB_8888));
+    }
+
+    public void testDropBeyondBudget() {
+        BitmapPool pool = new BitmapPool(10 * 10 * 4);
+        Bitmap first = pool.get(10, 10, Bitmap.Config.ARGB_8888);
+        Bitmap second = pool.get(10, 10, Bitmap.Config.ARGB_8888);
+        pool.put(first);
+        pool.put(second);
+
+        assertSame(first, pool.get(10, 10, Bitmap.Config.ARGB_8888));
+        assertNotSame(second, pool.get(10, 10, Bitmap.Config.ARGB_8888));
+    }
+
+    public void testIgnoreImmutableAndRecycledBitmaps() {
+        BitmapPool pool = new BitmapPool(1024 * 1024);
+        Bitmap bitmap = pool.get(10, 10, Bitmap.Config.ARGB_8888);
+        pool.put(bitmap.copy(Bitmap.Config.ARGB_8888, false));
+        bitmap.recycle();
+        pool.put(bitmap);
+
+        Bitmap other = pool.get(10, 10, Bitmap.Config.ARGB_8888);
+        assertTrue(other.isMutable());
+        assertFalse(other.isRecycled());
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import com.android.launcher3.Utilities;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Tests for {@link IconAtlas}, including a comparison against the PNG blobs used by the icon DB.
+ */
+@MediumTest
+public class IconAtlasTest extends AndroidTestCase {
+    private static final String TAG = "IconAtlasTest";
+
+    private static final int ICON_SIZE = 192;
+    private static final int BENCHMARK_ICON_COUNT = 100;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "test_icons.atlas");
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testWriteAndRead() {
+        IconAtlas atlas = newAtlas(new HashMap<String, Integer>());
+        Bitmap icon = createIcon(Color.RED);
+
+        int slot = atlas.write("a", icon);
+        assertTrue(slot >= 0);
+        assertTrue(icon.sameAs(atlas.read(slot, "a")));
+
+        // Rewriting the same key reuses the slot
+        assertEquals(slot, atlas.write("a", createIcon(Color.BLUE)));
+        assertFalse(slot == atlas.write("b", icon));
+        atlas.close();
+
+        // Data survives reopening the file
+        HashMap<String, Integer> slots = new HashMap<>();
+        slots.put("a", slot);
+        atlas = newAtlas(slots);
+        assertTrue(createIcon(Color.BLUE).sameAs(atlas.read(slot, "a")));
+        atlas.close();
+    }
+
+    public void testReadInvalidSlot() {
+        IconAtlas atlas = newAtlas(new HashMap<String, Integer>());
+        int slot = atlas.write("a", createIcon(Color.RED));
+
+        assertNull(atlas.read(slot, "b"));
+        assertNull(atlas.read(slot + 1, "a"));
+        assertNull(atlas.read(-1, "a"));
+
+        atlas.release("a", "");
+        assertNull(atlas.read(slot, "a"));
+        atlas.close();
+    }
+
+    public void testWrongSizeNotStored() {
+        IconAtlas atlas = newAtlas(new HashMap<String, Integer>());
+        assertEquals(-1, atlas.write("a",
+                Bitmap.createBitmap(ICON_SIZE / 2, ICON_SIZE / 2, Bitmap.Config.ARGB_8888)));
+        atlas.close();
+    }
+
+    /**
+     * Compares the load time and disk footprint of the atlas with the PNG blobs. The results
+     * are only logged, as they depend on the device.
+     */
+    public void testBenchmarkAgainstPng() {
+        ArrayList<Bitmap> icons = new ArrayList<>();
+        for (int i = 0; i < BENCHMARK_ICON_COUNT; i++) {
+            icons.add(createIcon(Color.HSVToColor(new float[] {i * 3.6f, 1, 1})));
+        }
+
+        long pngBytes = 0;
+        ArrayList<byte[]> blobs = new ArrayList<>();
+        for (Bitmap icon : icons) {
+            byte[] blob = Utilities.flattenBitmap(icon);
+            pngBytes += blob.length;
+            blobs.add(blob);
+        }
+
+        HashMap<String, Integer> slots = new HashMap<>();
+        IconAtlas atlas = newAtlas(slots);
+        for (int i = 0; i < icons.size(); i++) {
+            slots.put(Integer.toString(i), atlas.write(Integer.toString(i), icons.get(i)));
+        }
+        atlas.close();
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (byte[] blob : blobs) {
+            assertNotNull(BitmapFactory.decodeByteArray(blob, 0, blob.length));
+        }
+        long pngNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        atlas = newAtlas(new HashMap<>(slots));
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < icons.size(); i++) {
+            assertNotNull(atlas.read(slots.get(Integer.toString(i)), Integer.toString(i)));
+        }
+        long atlasNanos = SystemClock.elapsedRealtimeNanos() - start;
+        long atlasBytes = atlas.getFileSize();
+        atlas.close();
+
+        Log.d(TAG, "Loaded " + icons.size() + " icons: png=" + (pngNanos / 1000) + "us/"
+                + (pngBytes / 1024) + "KB, atlas=" + (atlasNanos / 1000) + "us/"
+                + (atlasBytes / 1024) + "KB");
+    }
+
+    private IconAtlas newAtlas(HashMap<String, Integer> slots) {
+        IconAtlas atlas = new IconAtlas(mFile, ICON_SIZE);
+        atlas.setSlotIndex(slots);
+        return atlas;
+    }
+
+    private static Bitmap createIcon(int color) {
+        Bitmap icon = Bitmap.createBitmap(ICON_SIZE, ICON_SIZE, Bitmap.Config.ARGB_8888);
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setColor(color);
+        new Canvas(icon).drawCircle(ICON_SIZE / 2, ICON_SIZE / 2, ICON_SIZE / 3, paint);
+        return icon;
+    }
+}
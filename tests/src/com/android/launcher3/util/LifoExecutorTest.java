@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.util;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tests for {@link LifoExecutor}.
+ */
+@SmallTest
+public class LifoExecutorTest extends AndroidTestCase {
+
+    public void testMostRecentTasksRunFirst() throws Exception {
+        LifoExecutor executor = new LifoExecutor("Test", 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(3);
+        final List<Integer> order = new ArrayList<>();
+
+        // Block the only thread, so that the next tasks are queued
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // FutureTask.run() does nothing once cancelled, so record whether the executor called it.
+        final AtomicBoolean cancelledRan = new AtomicBoolean();
+        FutureTask<Void> cancelled = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() { }
+        }, null) {
+            @Override
+            public void run() {
+                cancelledRan.set(true);
+                super.run();
+            }
+        };
+        for (int i = 1; i <= 3; i++) {
+            final int task = i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (order) {
+                        order.add(task);
+                    }
+                    done.countDown();
+                }
+            });
+            if (i == 2) {
+                executor.execute(cancelled);
+            }
+        }
+        cancelled.cancel(true);
+        release.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        synchronized (order) {
+            assertEquals(Arrays.asList(3, 2, 1), order);
+        }
+        assertFalse(cancelledRan.get());
+        assertEquals(1, executor.getDroppedCount());
+    }
+}